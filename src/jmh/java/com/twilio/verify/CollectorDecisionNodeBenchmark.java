@@ -0,0 +1,112 @@
+/*
+ * Copyright 2019-2020 ForgeRock AS. All Rights Reserved
+ *
+ * Use of this code requires a commercial software license with ForgeRock AS.
+ * or with one of its affiliates. All use shall be exclusively subject
+ * to such license between the licensee and ForgeRock AS.
+ */
+
+package com.twilio.verify;
+
+import org.forgerock.openam.auth.node.api.Action;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.ConfirmationCallback;
+import javax.security.auth.callback.NameCallback;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Cost of {@link VerifyAuthCollectorDecisionNode#process} when rendering the code prompt, checking a code, taking the
+ * resend and cancel buttons, rejecting a malformed code and failing to check a code.
+ */
+@State(Scope.Benchmark)
+public class CollectorDecisionNodeBenchmark extends NodeBenchmark {
+
+    private TwilioComponents components;
+    private VerifyAuthCollectorDecisionNode node;
+    private List<Callback> code;
+    private List<Callback> malformedCode;
+    private List<Callback> resend;
+    private List<Callback> cancel;
+
+    @Setup
+    public void setUp() {
+        components = new TwilioComponents();
+        node = new VerifyAuthCollectorDecisionNode(new VerifyAuthCollectorDecisionNode.Config() {
+            @Override
+            public boolean hideCode() {
+                return false;
+            }
+
+            @Override
+            public boolean showResendButton() {
+                return true;
+            }
+
+            @Override
+            public boolean showCancelButton() {
+                return true;
+            }
+        }, components.clientRegistry, components.dispatcher, components.callGuard, components.retrier,
+                components.pendingStore, components.metrics, components.errorLog,
+                components.deadline);
+        code = codeCallbacks("123456", 0);
+        malformedCode = codeCallbacks("12345a", 0);
+        resend = codeCallbacks("", 1);
+        cancel = codeCallbacks("", 2);
+    }
+
+    @TearDown
+    public void tearDown() {
+        components.shutdown();
+    }
+
+    @Benchmark
+    public Action renderCodePrompt() {
+        return node.process(TwilioComponents.context(TwilioComponents.sentState(StubTwilioTransport.ACCOUNT),
+                                                     Collections.emptyList()));
+    }
+
+    @Benchmark
+    public Action submitCode() {
+        return node.process(TwilioComponents.context(TwilioComponents.sentState(StubTwilioTransport.ACCOUNT), code));
+    }
+
+    @Benchmark
+    public Action submitMalformedCode() {
+        return node.process(TwilioComponents.context(TwilioComponents.sentState(StubTwilioTransport.ACCOUNT),
+                                                     malformedCode));
+    }
+
+    @Benchmark
+    public Action resend() {
+        return node.process(TwilioComponents.context(TwilioComponents.sentState(StubTwilioTransport.ACCOUNT), resend));
+    }
+
+    @Benchmark
+    public Action cancel() {
+        return node.process(TwilioComponents.context(TwilioComponents.sentState(StubTwilioTransport.ACCOUNT), cancel));
+    }
+
+    @Benchmark
+    public Action submitCodeFailure() {
+        return node.process(TwilioComponents.context(
+                TwilioComponents.sentState(StubTwilioTransport.FAILING_ACCOUNT), code));
+    }
+
+    private static List<Callback> codeCallbacks(String code, int selectedIndex) {
+        NameCallback name = new NameCallback("Code");
+        name.setName(code);
+        ConfirmationCallback confirmation = new ConfirmationCallback(ConfirmationCallback.INFORMATION,
+                                                                     new String[] {"next", "resend", "cancel"}, 1);
+        confirmation.setSelectedIndex(selectedIndex);
+        return Arrays.asList(name, confirmation);
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2019-2020 ForgeRock AS. All Rights Reserved
+ *
+ * Use of this code requires a commercial software license with ForgeRock AS.
+ * or with one of its affiliates. All use shall be exclusively subject
+ * to such license between the licensee and ForgeRock AS.
+ */
+
+package com.twilio.verify;
+
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.openam.auth.node.api.SharedStateConstants.REALM;
+import static org.forgerock.openam.auth.node.api.SharedStateConstants.USERNAME;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.sun.identity.idm.AMIdentity;
+import org.forgerock.openam.auth.node.api.Action;
+import org.forgerock.openam.core.CoreWrapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Collections;
+
+/**
+ * Cost of {@link VerifyAuthIdentifierNode#process} reading the identifier from a mocked directory and when the
+ * directory read fails. The identity cache is left disabled because filling it registers a listener with the
+ * identity repository of a running AM.
+ */
+@State(Scope.Benchmark)
+public class IdentifierNodeBenchmark extends NodeBenchmark {
+
+    private static final String ATTRIBUTE = "telephoneNumber";
+    private static final VerifyAuthIdentifierNode.Config CONFIG = new VerifyAuthIdentifierNode.Config() {
+        @Override
+        public String identifierAttribute() {
+            return ATTRIBUTE;
+        }
+    };
+
+    private IdentityAttributeCache identityCache;
+    private VerifyAuthIdentifierNode node;
+    private VerifyAuthIdentifierNode failingNode;
+
+    @Setup
+    public void setUp() throws Exception {
+        CoreWrapper coreWrapper = mock(CoreWrapper.class);
+        AMIdentity identity = mock(AMIdentity.class);
+        when(coreWrapper.convertRealmPathToRealmDn(anyString())).thenReturn("o=root");
+        when(coreWrapper.getIdentityOrElseSearchUsingAuthNUserAlias(anyString(), anyString())).thenReturn(identity);
+        when(identity.getAttribute(ATTRIBUTE)).thenReturn(Collections.singleton(TwilioComponents.PHONE));
+        CoreWrapper failingCoreWrapper = mock(CoreWrapper.class);
+        when(failingCoreWrapper.getIdentityOrElseSearchUsingAuthNUserAlias(any(), any()))
+                .thenThrow(new IllegalStateException("Directory unavailable"));
+
+        identityCache = new IdentityAttributeCache();
+        TwilioMetrics metrics = new TwilioMetrics();
+        TwilioErrorLog errorLog = new TwilioErrorLog();
+        JourneyDeadline deadline = new JourneyDeadline();
+        node = new VerifyAuthIdentifierNode(CONFIG, coreWrapper, identityCache, metrics, errorLog, deadline);
+        failingNode = new VerifyAuthIdentifierNode(CONFIG, failingCoreWrapper, identityCache, metrics, errorLog,
+                                                   deadline);
+    }
+
+    @TearDown
+    public void tearDown() {
+        identityCache.shutdown();
+    }
+
+    @Benchmark
+    public Action readIdentifier() {
+        return node.process(TwilioComponents.context(json(object(field(USERNAME, "demo"), field(REALM, "/")))));
+    }
+
+    @Benchmark
+    public Action readIdentifierFailure() {
+        return failingNode.process(TwilioComponents.context(json(object(field(USERNAME, "demo"),
+                                                                        field(REALM, "/")))));
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2019-2020 ForgeRock AS. All Rights Reserved
+ *
+ * Use of this code requires a commercial software license with ForgeRock AS.
+ * or with one of its affiliates. All use shall be exclusively subject
+ * to such license between the licensee and ForgeRock AS.
+ */
+
+package com.twilio.verify;
+
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+
+import org.forgerock.openam.auth.node.api.Action;
+import org.forgerock.openam.core.CoreWrapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Cost of {@link VerifyAuthLookupNode#process} with and without the carrier lookup cache, and when the lookup fails.
+ */
+@State(Scope.Benchmark)
+public class LookupNodeBenchmark extends NodeBenchmark {
+
+    private TwilioComponents components;
+    private VerifyAuthLookupNode uncachedNode;
+    private VerifyAuthLookupNode cachedNode;
+    private VerifyAuthLookupNode failingNode;
+
+    @Setup
+    public void setUp() {
+        components = new TwilioComponents();
+        uncachedNode = node(StubTwilioTransport.ACCOUNT, 0);
+        cachedNode = node(StubTwilioTransport.ACCOUNT, 3600);
+        failingNode = node(StubTwilioTransport.FAILING_ACCOUNT, 0);
+    }
+
+    @TearDown
+    public void tearDown() {
+        components.shutdown();
+    }
+
+    @Benchmark
+    public Action lookup() {
+        return uncachedNode.process(TwilioComponents.context(json(object(field("userIdentifier",
+                                                                               TwilioComponents.PHONE)))));
+    }
+
+    @Benchmark
+    public Action cachedLookup() {
+        return cachedNode.process(TwilioComponents.context(json(object(field("userIdentifier",
+                                                                             TwilioComponents.PHONE)))));
+    }
+
+    @Benchmark
+    public Action lookupFailure() {
+        return failingNode.process(TwilioComponents.context(json(object(field("userIdentifier",
+                                                                              TwilioComponents.PHONE)))));
+    }
+
+    private VerifyAuthLookupNode node(String accountSID, int cacheTimeToLive) {
+        return new VerifyAuthLookupNode(new VerifyAuthLookupNode.Config() {
+            @Override
+            public String accountSID() {
+                return accountSID;
+            }
+
+            @Override
+            public char[] authToken() {
+                return TwilioComponents.TOKEN;
+            }
+
+            @Override
+            public int cacheTimeToLive() {
+                return cacheTimeToLive;
+            }
+        }, components.clientRegistry, components.lookupCache, new CoreWrapper(), components.identityCache,
+                components.executor, components.callGuard, components.metrics, components.errorLog,
+                components.deadline);
+    }
+}
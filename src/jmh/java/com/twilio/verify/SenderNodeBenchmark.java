@@ -0,0 +1,89 @@
+/*
+ * Copyright 2019-2020 ForgeRock AS. All Rights Reserved
+ *
+ * Use of this code requires a commercial software license with ForgeRock AS.
+ * or with one of its affiliates. All use shall be exclusively subject
+ * to such license between the licensee and ForgeRock AS.
+ */
+
+package com.twilio.verify;
+
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+
+import org.forgerock.openam.auth.node.api.Action;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Cost of {@link VerifyAuthSenderNode#process} when prompting for an identifier, sending a verification and failing
+ * to send one.
+ */
+@State(Scope.Benchmark)
+public class SenderNodeBenchmark extends NodeBenchmark {
+
+    private TwilioComponents components;
+    private VerifyAuthSenderNode promptingNode;
+    private VerifyAuthSenderNode sendingNode;
+    private VerifyAuthSenderNode failingNode;
+
+    @Setup
+    public void setUp() {
+        components = new TwilioComponents();
+        promptingNode = node(StubTwilioTransport.ACCOUNT, true);
+        sendingNode = node(StubTwilioTransport.ACCOUNT, false);
+        failingNode = node(StubTwilioTransport.FAILING_ACCOUNT, false);
+    }
+
+    @TearDown
+    public void tearDown() {
+        components.shutdown();
+    }
+
+    @Benchmark
+    public Action renderIdentifierPrompt() {
+        return promptingNode.process(TwilioComponents.context(json(object())));
+    }
+
+    @Benchmark
+    public Action send() {
+        return sendingNode.process(TwilioComponents.context(json(object(field("userIdentifier",
+                                                                              TwilioComponents.PHONE)))));
+    }
+
+    @Benchmark
+    public Action sendFailure() {
+        return failingNode.process(TwilioComponents.context(json(object(field("userIdentifier",
+                                                                              TwilioComponents.PHONE)))));
+    }
+
+    private VerifyAuthSenderNode node(String accountSID, boolean requestIdentifier) {
+        return new VerifyAuthSenderNode(new VerifyAuthSenderNode.Config() {
+            @Override
+            public String accountSID() {
+                return accountSID;
+            }
+
+            @Override
+            public char[] authToken() {
+                return TwilioComponents.TOKEN;
+            }
+
+            @Override
+            public String serviceSID() {
+                return StubTwilioTransport.SERVICE;
+            }
+
+            @Override
+            public boolean requestIdentifier() {
+                return requestIdentifier;
+            }
+        }, components.clientRegistry, components.dispatcher, components.callGuard, components.sendThrottle,
+                components.pendingStore, components.metrics, components.errorLog,
+                components.deadline);
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2019-2020 ForgeRock AS. All Rights Reserved
+ *
+ * Use of this code requires a commercial software license with ForgeRock AS.
+ * or with one of its affiliates. All use shall be exclusively subject
+ * to such license between the licensee and ForgeRock AS.
+ */
+
+package com.twilio.verify;
+
+import com.twilio.http.Request;
+import com.twilio.http.Response;
+
+/**
+ * Transport answering Twilio requests with canned responses, so that benchmarks measure the nodes rather than the
+ * network. Requests made with an account SID starting with {@link #FAILING_ACCOUNT} are answered with a 400 error.
+ */
+class StubTwilioTransport extends TwilioHttpTransport {
+
+    static final String ACCOUNT = "AC00000000000000000000000000000000";
+    static final String FAILING_ACCOUNT = "ACfail";
+    static final String SERVICE = "VA00000000000000000000000000000000";
+
+    private static final Response VERIFICATION = new Response(
+            "{\"sid\":\"VE00000000000000000000000000000000\",\"service_sid\":\"" + SERVICE + "\","
+                    + "\"account_sid\":\"" + ACCOUNT + "\",\"to\":\"+18457412693\",\"channel\":\"sms\","
+                    + "\"status\":\"pending\",\"valid\":false}", 201);
+    private static final Response VERIFICATION_CHECK = new Response(
+            "{\"sid\":\"VE00000000000000000000000000000000\",\"service_sid\":\"" + SERVICE + "\","
+                    + "\"account_sid\":\"" + ACCOUNT + "\",\"to\":\"+18457412693\",\"channel\":\"sms\","
+                    + "\"status\":\"approved\",\"valid\":true}", 201);
+    private static final Response LOOKUP = new Response(
+            "{\"phone_number\":\"+18457412693\",\"country_code\":\"US\","
+                    + "\"carrier\":{\"type\":\"mobile\",\"name\":\"Carrier\"}}", 200);
+    private static final Response ERROR = new Response(
+            "{\"code\":60200,\"message\":\"Invalid parameter\",\"status\":400}", 400);
+
+    @Override
+    public Response makeRequest(Request request) {
+        // Responses are rebuilt because their content is read once.
+        Response response;
+        if (request.getUsername().startsWith(FAILING_ACCOUNT)) {
+            response = ERROR;
+        } else if (request.getUrl().endsWith("/VerificationCheck")) {
+            response = VERIFICATION_CHECK;
+        } else if (request.getUrl().endsWith("/Verifications")) {
+            response = VERIFICATION;
+        } else {
+            response = LOOKUP;
+        }
+        return new Response(response.getContent(), response.getStatusCode());
+    }
+}
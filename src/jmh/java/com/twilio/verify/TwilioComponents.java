@@ -0,0 +1,73 @@
+/*
+ * Copyright 2019-2020 ForgeRock AS. All Rights Reserved
+ *
+ * Use of this code requires a commercial software license with ForgeRock AS.
+ * or with one of its affiliates. All use shall be exclusively subject
+ * to such license between the licensee and ForgeRock AS.
+ */
+
+package com.twilio.verify;
+
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.auth.node.api.ExternalRequestContext;
+import org.forgerock.openam.auth.node.api.TreeContext;
+
+import javax.security.auth.callback.Callback;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * The plugin singletons wired together as Guice would, on top of a {@link StubTwilioTransport}.
+ */
+class TwilioComponents {
+
+    static final String PHONE = "+18457412693";
+    static final char[] TOKEN = "token".toCharArray();
+
+    final StubTwilioTransport transport = new StubTwilioTransport();
+    final TwilioClientRegistry clientRegistry = new TwilioClientRegistry(transport);
+    final TwilioTaskExecutor executor = new TwilioTaskExecutor();
+    final VerificationDispatcher dispatcher = new VerificationDispatcher(executor);
+    final TwilioCallGuard callGuard = new TwilioCallGuard();
+    final TwilioRetrier retrier = new TwilioRetrier();
+    final SendThrottle sendThrottle = new SendThrottle();
+    final PendingVerificationStore pendingStore = new PendingVerificationStore();
+    final CarrierLookupCache lookupCache = new CarrierLookupCache();
+    final IdentityAttributeCache identityCache = new IdentityAttributeCache();
+    final TwilioMetrics metrics = new TwilioMetrics();
+    final TwilioErrorLog errorLog = new TwilioErrorLog();
+    final JourneyDeadline deadline = new JourneyDeadline();
+
+    TwilioComponents() {
+        clientRegistry.getClient(StubTwilioTransport.ACCOUNT, TOKEN);
+        clientRegistry.getClient(StubTwilioTransport.FAILING_ACCOUNT, TOKEN);
+    }
+
+    void shutdown() {
+        executor.shutdown();
+        transport.shutdown();
+        identityCache.shutdown();
+    }
+
+    /**
+     * The shared state left by the sender node.
+     */
+    static JsonValue sentState(String accountSID) {
+        return json(object(field("userIdentifier", PHONE), field(VerifyAuthSenderNode.ACCOUNT_SID, accountSID),
+                           field(VerifyAuthSenderNode.SERVICE_SID, StubTwilioTransport.SERVICE)));
+    }
+
+    static TreeContext context(JsonValue sharedState, List<? extends Callback> callbacks) {
+        return new TreeContext(sharedState, json(object()), new ExternalRequestContext.Builder().build(), callbacks,
+                               Optional.empty());
+    }
+
+    static TreeContext context(JsonValue sharedState) {
+        return context(sharedState, Collections.emptyList());
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2018 ForgeRock AS.
+ */
+
+
+package com.twilio.verify;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Bounded, in-memory cache of carrier line types returned by the Twilio Lookup API, keyed by E.164 phone number.
+ * <p>
+ * Each entry carries its own expiry so that callers can keep positive ("mobile") results for longer than negative
+ * ones. The cache is concurrent, and when it is full the least recently used entries are evicted.
+ */
+@Singleton
+public class CarrierLookupCache {
+
+    static final String MOBILE = "mobile";
+
+    private final LongSupplier clock;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final RemovalListener<String, CachedType> onRemoval = removal -> {
+        if (removal.getCause() == RemovalCause.SIZE) {
+            evictions.increment();
+        }
+    };
+    private volatile Cache<String, CachedType> entries = newCache(10000);
+
+    /**
+     * Create the cache. Guice binds this class as a singleton, so all nodes of the plugin share one instance.
+     */
+    @Inject
+    public CarrierLookupCache() {
+        this(() -> TimeUnit.NANOSECONDS.toMillis(System.nanoTime()));
+    }
+
+    CarrierLookupCache(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Get the cached line type for a phone number.
+     *
+     * @param phoneNumber The phone number.
+     * @return The line type, or empty if the number is not cached or its entry has expired.
+     */
+    public Optional<String> get(String phoneNumber) {
+        CachedType entry = fresh(IdentifierNormalizer.normalizePhone(phoneNumber));
+        if (entry == null) {
+            misses.increment();
+            return Optional.empty();
+        }
+        hits.increment();
+        return Optional.of(entry.type);
+    }
+
+    /**
+     * Whether a phone number has a line type cached, without counting a hit or a miss, for callers other than the
+     * nodes.
+     *
+     * @param phoneNumber The phone number.
+     * @return Whether the number is cached and its entry has not expired.
+     */
+    public boolean contains(String phoneNumber) {
+        return fresh(IdentifierNormalizer.normalizePhone(phoneNumber)) != null;
+    }
+
+    /**
+     * Cache the line type of a phone number.
+     *
+     * @param phoneNumber The phone number.
+     * @param type The carrier line type, such as "mobile", "landline" or "voip".
+     * @param positiveTtl Milliseconds to keep a "mobile" result.
+     * @param negativeTtl Milliseconds to keep any other result.
+     */
+    public void put(String phoneNumber, String type, long positiveTtl, long negativeTtl) {
+        long ttl = MOBILE.equals(type) ? positiveTtl : negativeTtl;
+        if (type == null || ttl <= 0) {
+            return;
+        }
+        entries.put(IdentifierNormalizer.normalizePhone(phoneNumber), new CachedType(type, clock.getAsLong() + ttl));
+    }
+
+    /**
+     * Set the maximum number of cached numbers. Least recently used entries are evicted beyond it.
+     *
+     * @param maxEntries The maximum number of entries.
+     */
+    public synchronized void setMaxEntries(int maxEntries) {
+        Cache<String, CachedType> resized = newCache(maxEntries);
+        resized.putAll(entries.asMap());
+        entries = resized;
+    }
+
+    /**
+     * Remove all entries.
+     */
+    public void clear() {
+        entries.invalidateAll();
+    }
+
+    /**
+     * The number of cached numbers, including expired entries not yet removed.
+     *
+     * @return The cache size.
+     */
+    public int size() {
+        return (int) entries.size();
+    }
+
+    /**
+     * The number of lookups answered from the cache.
+     *
+     * @return The hit count.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * The number of lookups not answered from the cache.
+     *
+     * @return The miss count.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * The number of entries evicted to honour the maximum size.
+     *
+     * @return The eviction count.
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    private CachedType fresh(String key) {
+        CachedType entry = entries.getIfPresent(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expiresAt <= clock.getAsLong()) {
+            entries.asMap().remove(key, entry);
+            return null;
+        }
+        return entry;
+    }
+
+    private Cache<String, CachedType> newCache(int maxEntries) {
+        return CacheBuilder.newBuilder().maximumSize(Math.max(0, maxEntries)).removalListener(onRemoval).build();
+    }
+
+    private static final class CachedType {
+        private final String type;
+        private final long expiresAt;
+
+        private CachedType(String type, long expiresAt) {
+            this.type = type;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
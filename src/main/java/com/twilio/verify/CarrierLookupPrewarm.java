@@ -0,0 +1,282 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2018 ForgeRock AS.
+ */
+
+
+package com.twilio.verify;
+
+import com.iplanet.sso.SSOException;
+import com.sun.identity.sm.SMSException;
+import com.twilio.http.TwilioRestClient;
+import org.forgerock.openam.core.realms.RealmLookupException;
+import org.forgerock.openam.core.realms.Realms;
+import org.forgerock.openam.sm.AnnotatedServiceRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fills the {@link CarrierLookupCache} ahead of a known login peak, exposed over JMX under {@link #OBJECT_NAME}.
+ * <p>
+ * A job streams a file of phone numbers, one per line, and looks up the numbers that are not cached yet on a pool of
+ * its own, so that it never takes threads from the nodes. It keeps at most {@code parallelism} lookups in flight and
+ * starts at most {@code lookupsPerSecond} per second. Lookups go through the {@link TwilioCallGuard}, sharing its
+ * concurrent call limit and the lookup circuit breaker of the account with the nodes: a job backs off when Twilio is
+ * unhealthy, and its own failures count towards opening the breaker for the nodes too. So that it leaves most of the
+ * concurrent calls to the nodes, a job never keeps more than a quarter of them in flight, whatever its
+ * {@code parallelism}. The Twilio credentials are read from the {@link TwilioVerifyService} of the realm the job is
+ * started for, so they never travel over JMX.
+ */
+@Singleton
+public class CarrierLookupPrewarm implements CarrierLookupPrewarmMBean {
+
+    /**
+     * The JMX object name of the prewarm job.
+     */
+    public static final String OBJECT_NAME = "com.twilio.verify:type=CarrierLookupPrewarm";
+    static final String NODE_NAME = "prewarm";
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    private final Logger logger = LoggerFactory.getLogger(CarrierLookupPrewarm.class);
+    private final String loggerPrefix = "[Twilio Lookup Prewarm][Partner] ";
+    private final AnnotatedServiceRegistry serviceRegistry;
+    private final TwilioClientRegistry clientRegistry;
+    private final CarrierLookupCache lookupCache;
+    private final TwilioCallGuard callGuard;
+    private final TwilioMetrics metrics;
+    private final TwilioErrorLog errorLog;
+    private final AtomicLong read = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private volatile String lastFailure;
+    private volatile boolean cancelled;
+    private Thread job;
+
+    /**
+     * Create the prewarm job.
+     *
+     * @param serviceRegistry The registry the {@link TwilioVerifyService} settings of a realm are read from.
+     * @param clientRegistry The registry of shared Twilio clients.
+     * @param lookupCache The cache to fill.
+     * @param callGuard The circuit breaker and bulkhead guarding Twilio calls.
+     * @param metrics The latency and outcome metrics of the nodes.
+     * @param errorLog The log of the errors the nodes run into.
+     */
+    @Inject
+    public CarrierLookupPrewarm(AnnotatedServiceRegistry serviceRegistry, TwilioClientRegistry clientRegistry,
+                                CarrierLookupCache lookupCache, TwilioCallGuard callGuard, TwilioMetrics metrics,
+                                TwilioErrorLog errorLog) {
+        this.serviceRegistry = serviceRegistry;
+        this.clientRegistry = clientRegistry;
+        this.lookupCache = lookupCache;
+        this.callGuard = callGuard;
+        this.metrics = metrics;
+        this.errorLog = errorLog;
+    }
+
+    @Override
+    public synchronized String start(String file, String realm, int parallelism, int lookupsPerSecond,
+                                     int cacheTimeToLive, int negativeCacheTimeToLive) {
+        if (isRunning()) {
+            return "A prewarm job is already running";
+        }
+        if (parallelism <= 0 || lookupsPerSecond <= 0 || cacheTimeToLive <= 0) {
+            return "Parallelism, lookups per second and cache time to live must be positive";
+        }
+        Path path = Paths.get(file);
+        if (!Files.isReadable(path)) {
+            return "Cannot read " + file;
+        }
+        Optional<TwilioVerifyService> settings;
+        try {
+            settings = settings(realm);
+        } catch (RealmLookupException | SSOException | SMSException e) {
+            errorLog.log(logger, loggerPrefix, e);
+            return "Cannot read the Twilio Verify service of realm " + realm + ": " + e.getMessage();
+        }
+        String accountSID = settings.map(TwilioVerifyService::prewarmAccountSID).orElse("");
+        if (accountSID.isEmpty()) {
+            return "No prewarm account configured in the Twilio Verify service of realm " + realm;
+        }
+        char[] authToken = settings.get().prewarmAuthToken();
+        TwilioRestClient client = authToken == null || authToken.length == 0
+                ? clientRegistry.getClient(accountSID).orElse(null)
+                : clientRegistry.getClient(accountSID, authToken);
+        if (client == null) {
+            return "No client for account " + accountSID + ", configure its prewarm auth token";
+        }
+        int lookups = Math.min(parallelism, Math.max(1, callGuard.getMaxConcurrentCalls() / 4));
+        read.set(0);
+        skipped.set(0);
+        completed.set(0);
+        failed.set(0);
+        lastFailure = null;
+        cancelled = false;
+        job = new Thread(() -> run(path, accountSID, client, lookups, lookupsPerSecond,
+                                   TimeUnit.SECONDS.toMillis(cacheTimeToLive),
+                                   TimeUnit.SECONDS.toMillis(negativeCacheTimeToLive)),
+                         "twilio-prewarm-" + THREAD_COUNT.incrementAndGet());
+        job.setDaemon(true);
+        job.start();
+        logger.info("{}Started prewarming from {} with {} lookups in flight", loggerPrefix, file, lookups);
+        return lookups < parallelism ? "Started with parallelism " + lookups : "Started";
+    }
+
+    @Override
+    public void cancel() {
+        cancelled = true;
+    }
+
+    @Override
+    public synchronized boolean isRunning() {
+        return job != null && job.isAlive();
+    }
+
+    @Override
+    public long getRead() {
+        return read.get();
+    }
+
+    @Override
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    @Override
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    @Override
+    public long getFailed() {
+        return failed.get();
+    }
+
+    @Override
+    public String getLastFailure() {
+        return lastFailure;
+    }
+
+    /**
+     * Read the {@link TwilioVerifyService} settings of a realm.
+     */
+    Optional<TwilioVerifyService> settings(String realm) throws RealmLookupException, SSOException, SMSException {
+        return serviceRegistry.getRealmSingleton(TwilioVerifyService.class, Realms.of(realm));
+    }
+
+    /**
+     * Wait for the running job, if any, to finish.
+     *
+     * @param timeout How long to wait.
+     * @param unit The unit of the timeout.
+     * @return Whether no job is running.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        Thread running;
+        synchronized (this) {
+            running = job;
+        }
+        if (running != null) {
+            running.join(unit.toMillis(timeout));
+        }
+        return !isRunning();
+    }
+
+    private void run(Path path, String accountSID, TwilioRestClient client, int parallelism, int lookupsPerSecond,
+                     long positiveTtl, long negativeTtl) {
+        ExecutorService pool = TwilioExecutors.newExecutor(Thread.currentThread().getName() + "-lookup-", parallelism,
+                                                           parallelism);
+        Semaphore inFlight = new Semaphore(parallelism);
+        long interval = TimeUnit.SECONDS.toNanos(1) / lookupsPerSecond;
+        long nextStart = System.nanoTime();
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while (!cancelled && (line = reader.readLine()) != null) {
+                read.incrementAndGet();
+                String number = line.trim();
+                if (number.isEmpty() || number.startsWith("#")) {
+                    skipped.incrementAndGet();
+                    continue;
+                }
+                String phoneNumber;
+                try {
+                    phoneNumber = IdentifierNormalizer.normalizePhone(number);
+                } catch (IllegalArgumentException e) {
+                    fail("Line " + read.get() + ": " + e.getMessage());
+                    continue;
+                }
+                if (lookupCache.contains(phoneNumber)) {
+                    skipped.incrementAndGet();
+                    continue;
+                }
+                long wait = nextStart - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                nextStart = Math.max(nextStart, System.nanoTime()) + interval;
+                inFlight.acquire();
+                pool.execute(() -> {
+                    try {
+                        String type = metrics.time(NODE_NAME, TwilioEndpoint.LOOKUP, "carrier", () -> callGuard.call(
+                                accountSID, TwilioEndpoint.LOOKUP,
+                                () -> VerifyAuthLookupNode.fetchLineType(client, phoneNumber)));
+                        lookupCache.put(phoneNumber, type, positiveTtl, negativeTtl);
+                        completed.incrementAndGet();
+                    } catch (RuntimeException e) {
+                        errorLog.log(logger, loggerPrefix, e);
+                        fail(phoneNumber + ": " + e.getMessage());
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            }
+        } catch (IOException e) {
+            fail("Cannot read " + path + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdown();
+            try {
+                pool.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            logger.info("{}Prewarming {}: {} read, {} skipped, {} cached, {} failed", loggerPrefix,
+                        cancelled ? "cancelled" : "finished", read.get(), skipped.get(), completed.get(),
+                        failed.get());
+        }
+    }
+
+    private void fail(String failure) {
+        failed.incrementAndGet();
+        lastFailure = failure;
+    }
+}
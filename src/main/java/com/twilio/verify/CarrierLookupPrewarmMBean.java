@@ -0,0 +1,73 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2018 ForgeRock AS.
+ */
+
+
+package com.twilio.verify;
+
+/**
+ * JMX management interface of {@link CarrierLookupPrewarm}.
+ */
+public interface CarrierLookupPrewarmMBean {
+
+    /**
+     * Start looking up the phone numbers of a file in the background.
+     *
+     * @param file Path of a file on the AM host with one phone number per line.
+     * @param realm The realm whose Twilio Verify service holds the prewarm account and auth token.
+     * @param parallelism The maximum number of lookups in flight, capped to a quarter of the maximum concurrent calls.
+     * @param lookupsPerSecond The maximum number of lookups started per second.
+     * @param cacheTimeToLive Seconds to cache a mobile line type.
+     * @param negativeCacheTimeToLive Seconds to cache any other line type.
+     * @return Whether the job started, or why it did not.
+     */
+    String start(String file, String realm, int parallelism, int lookupsPerSecond, int cacheTimeToLive,
+                 int negativeCacheTimeToLive);
+
+    /**
+     * Stop the running job after the lookups in flight.
+     */
+    void cancel();
+
+    /**
+     * @return Whether a job is running.
+     */
+    boolean isRunning();
+
+    /**
+     * @return The number of lines read by the last job.
+     */
+    long getRead();
+
+    /**
+     * @return The number of blank lines, comments and numbers already cached skipped by the last job.
+     */
+    long getSkipped();
+
+    /**
+     * @return The number of line types looked up and cached by the last job.
+     */
+    long getCompleted();
+
+    /**
+     * @return The number of invalid numbers and failed lookups of the last job.
+     */
+    long getFailed();
+
+    /**
+     * @return The last failure of the last job, if any.
+     */
+    String getLastFailure();
+}
@@ -0,0 +1,195 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2018 ForgeRock AS.
+ */
+
+
+package com.twilio.verify;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Count based circuit breaker for one Twilio account and endpoint.
+ * <p>
+ * The breaker records the outcome of the last {@code windowSize} calls. Once at least {@code minimumCalls} have been
+ * recorded, it opens when the share of failed calls or of slow calls reaches its threshold. While open, no calls are
+ * permitted. After {@code openDuration} it lets a few probe calls through: if they all succeed quickly it closes
+ * again, otherwise it reopens.
+ */
+public final class CircuitBreaker {
+
+    /**
+     * The state of a circuit breaker.
+     */
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private static final byte SUCCESS = 0;
+    private static final byte FAILURE = 1;
+    private static final byte SLOW = 2;
+
+    private final LongSupplier clock;
+    private final int minimumCalls;
+    private final int failureRateThreshold;
+    private final long slowCallThreshold;
+    private final int slowCallRateThreshold;
+    private final long openDuration;
+    private final int halfOpenCalls;
+    private final byte[] window;
+
+    private State state = State.CLOSED;
+    private int position;
+    private int recorded;
+    private int failures;
+    private int slowCalls;
+    private long openUntil;
+    private int probesPermitted;
+    private int probesRecorded;
+
+    /**
+     * Create a breaker from the plugin settings.
+     *
+     * @param settings The plugin settings.
+     * @param clock Time source in milliseconds.
+     */
+    CircuitBreaker(TwilioVerifyService settings, LongSupplier clock) {
+        this.clock = clock;
+        this.window = new byte[Math.max(1, settings.circuitBreakerWindowSize())];
+        this.minimumCalls = Math.max(1, Math.min(settings.circuitBreakerMinimumCalls(), window.length));
+        this.failureRateThreshold = settings.circuitBreakerFailureRate();
+        this.slowCallThreshold = TimeUnit.MILLISECONDS.toNanos(settings.circuitBreakerSlowCallDuration());
+        this.slowCallRateThreshold = settings.circuitBreakerSlowCallRate();
+        this.openDuration = settings.circuitBreakerOpenDuration();
+        this.halfOpenCalls = Math.max(1, settings.circuitBreakerHalfOpenCalls());
+    }
+
+    /**
+     * Ask for permission to make a call. Every permitted call must be followed by {@link #onResult(long, boolean)} or
+     * {@link #releasePermission()}.
+     *
+     * @return Whether the call may be made.
+     */
+    public synchronized boolean tryAcquirePermission() {
+        if (state == State.CLOSED) {
+            return true;
+        }
+        if (state == State.OPEN) {
+            if (clock.getAsLong() < openUntil) {
+                return false;
+            }
+            state = State.HALF_OPEN;
+            probesPermitted = 0;
+            probesRecorded = 0;
+            failures = 0;
+            slowCalls = 0;
+        }
+        if (probesPermitted < halfOpenCalls) {
+            probesPermitted++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Whether the breaker is open and its open duration has not yet elapsed. Unlike
+     * {@link #tryAcquirePermission()} this does not start probing.
+     *
+     * @return Whether calls are currently refused.
+     */
+    public synchronized boolean isRejecting() {
+        return state == State.OPEN && clock.getAsLong() < openUntil;
+    }
+
+    /**
+     * Record the outcome of a permitted call.
+     *
+     * @param durationNanos How long the call took.
+     * @param failed Whether the call failed in a way that indicates Twilio is unhealthy.
+     */
+    public synchronized void onResult(long durationNanos, boolean failed) {
+        byte outcome = failed ? FAILURE : durationNanos >= slowCallThreshold ? SLOW : SUCCESS;
+        if (state == State.HALF_OPEN) {
+            probesRecorded++;
+            if (outcome != SUCCESS) {
+                open();
+            } else if (probesRecorded >= halfOpenCalls) {
+                close();
+            }
+            return;
+        }
+        if (state == State.OPEN) {
+            return;
+        }
+        if (recorded == window.length) {
+            forget(window[position]);
+        } else {
+            recorded++;
+        }
+        window[position] = outcome;
+        position = (position + 1) % window.length;
+        if (outcome == FAILURE) {
+            failures++;
+        } else if (outcome == SLOW) {
+            slowCalls++;
+        }
+        if (recorded >= minimumCalls
+                && (failures * 100 >= failureRateThreshold * recorded
+                    || slowCalls * 100 >= slowCallRateThreshold * recorded)) {
+            open();
+        }
+    }
+
+    /**
+     * Give back the permission of a call whose outcome says nothing about the health of Twilio, without recording it.
+     * A probe given back this way lets another probe in.
+     */
+    public synchronized void releasePermission() {
+        if (state == State.HALF_OPEN && probesPermitted > probesRecorded) {
+            probesPermitted--;
+        }
+    }
+
+    /**
+     * The current state. An open breaker whose open duration has elapsed still reports {@link State#OPEN} until the
+     * next call asks for permission.
+     *
+     * @return The state.
+     */
+    public synchronized State getState() {
+        return state;
+    }
+
+    private void forget(byte outcome) {
+        if (outcome == FAILURE) {
+            failures--;
+        } else if (outcome == SLOW) {
+            slowCalls--;
+        }
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openUntil = clock.getAsLong() + openDuration;
+    }
+
+    private void close() {
+        state = State.CLOSED;
+        position = 0;
+        recorded = 0;
+        failures = 0;
+        slowCalls = 0;
+    }
+}
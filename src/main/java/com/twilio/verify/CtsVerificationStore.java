@@ -0,0 +1,125 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2018 ForgeRock AS.
+ */
+
+
+package com.twilio.verify;
+
+import org.forgerock.openam.cts.CTSPersistentStore;
+import org.forgerock.openam.cts.api.tokens.Token;
+import org.forgerock.openam.cts.exceptions.CoreTokenException;
+import org.forgerock.openam.tokens.TokenType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.nio.charset.StandardCharsets;
+import java.util.Calendar;
+import java.util.Optional;
+import java.util.function.LongSupplier;
+
+/**
+ * {@link VerificationStore} shared by all AM servers of a cluster, kept as generic tokens in the Core Token Service.
+ * <p>
+ * Each entry is one token whose ID is the entry key and whose blob is the value. Reading an entry costs a single CTS
+ * read, and writing a new one a single create; a create refused because the token already exists is replaced by an
+ * update of the whole token, without a version check, so two servers writing the same entry at the same time keep the
+ * last write. The CTS reaper deletes tokens once they expire, and expired tokens not reaped yet are ignored. Removing
+ * an entry that does not exist does nothing. A CTS failure is logged and treated as a missing entry, so that an
+ * unavailable CTS never blocks a journey.
+ */
+@Singleton
+public class CtsVerificationStore implements VerificationStore {
+
+    private final Logger logger = LoggerFactory.getLogger(CtsVerificationStore.class);
+    private final String loggerPrefix = "[Twilio Verification Store][Partner] ";
+    private final CTSPersistentStore cts;
+    private final TwilioErrorLog errorLog;
+    private final LongSupplier clock;
+
+    /**
+     * Create the store.
+     *
+     * @param cts The Core Token Service of AM.
+     * @param errorLog The log of the errors the nodes run into.
+     */
+    @Inject
+    public CtsVerificationStore(CTSPersistentStore cts, TwilioErrorLog errorLog) {
+        this(cts, errorLog, System::currentTimeMillis);
+    }
+
+    CtsVerificationStore(CTSPersistentStore cts, TwilioErrorLog errorLog, LongSupplier clock) {
+        this.cts = cts;
+        this.errorLog = errorLog;
+        this.clock = clock;
+    }
+
+    @Override
+    public Optional<String> get(String key) {
+        try {
+            Token token = cts.read(key);
+            if (token == null || token.getBlob() == null || (token.getExpiryTimestamp() != null
+                    && token.getExpiryTimestamp().getTimeInMillis() <= clock.getAsLong())) {
+                return Optional.empty();
+            }
+            return Optional.of(new String(token.getBlob(), StandardCharsets.UTF_8));
+        } catch (CoreTokenException e) {
+            errorLog.log(logger, loggerPrefix, e);
+            return Optional.empty();
+        }
+    }
+
+    @Override
+    public void put(String key, String value, long timeToLive) {
+        Token token = new Token(key, TokenType.GENERIC);
+        Calendar expiry = Calendar.getInstance();
+        expiry.setTimeInMillis(clock.getAsLong() + timeToLive);
+        token.setExpiryTimestamp(expiry);
+        token.setBlob(value.getBytes(StandardCharsets.UTF_8));
+        try {
+            cts.create(token);
+        } catch (CoreTokenException e) {
+            replace(token, e);
+        }
+    }
+
+    @Override
+    public void remove(String key) {
+        try {
+            if (cts.read(key) != null) {
+                cts.delete(key);
+            }
+        } catch (CoreTokenException e) {
+            errorLog.log(logger, loggerPrefix, e);
+        }
+    }
+
+    /**
+     * Token IDs are the entry keys, so a create fails when an earlier write left a token. Replace that token, and log
+     * the failure of the create if there is none.
+     */
+    private void replace(Token token, CoreTokenException createFailure) {
+        try {
+            if (cts.read(token.getTokenId()) == null) {
+                errorLog.log(logger, loggerPrefix, createFailure);
+            } else {
+                cts.update(token);
+            }
+        } catch (CoreTokenException e) {
+            errorLog.log(logger, loggerPrefix, e);
+        }
+    }
+}
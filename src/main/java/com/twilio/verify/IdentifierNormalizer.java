@@ -0,0 +1,112 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2018 ForgeRock AS.
+ */
+
+
+package com.twilio.verify;
+
+import com.twilio.verify.VerifyAuthSenderNode.Module;
+
+import java.util.Locale;
+
+/**
+ * Puts user identifiers into the canonical form used to call Twilio and to key the plugin's caches, so that every
+ * node agrees on the identity of a phone number or email address.
+ * <p>
+ * Phone numbers are normalized to E.164 in a single pass without regular expressions. Spaces, dashes, dots, slashes
+ * and parentheses are dropped, and a number that is already canonical is returned as is.
+ */
+public final class IdentifierNormalizer {
+
+    private static final int MIN_DIGITS = 7;
+    private static final int MAX_DIGITS = 15;
+
+    private IdentifierNormalizer() {
+    }
+
+    /**
+     * Normalize an identifier for a channel.
+     *
+     * @param identifier The phone number or email address.
+     * @param channel The channel the identifier is used with.
+     * @return The canonical identifier.
+     * @throws InvalidPhoneNumberException If the channel is a phone channel and the identifier is not a valid number.
+     */
+    public static String normalize(String identifier, Module channel) {
+        return channel.isPhone() ? normalizePhone(identifier) : normalizeEmail(identifier);
+    }
+
+    /**
+     * Normalize a phone number to E.164.
+     *
+     * @param phoneNumber The phone number, with or without a leading {@code +} and separators.
+     * @return The number as {@code +} followed by its digits.
+     * @throws InvalidPhoneNumberException If the number is missing, contains other characters, starts with 0 or has
+     * fewer than 7 or more than 15 digits.
+     */
+    public static String normalizePhone(String phoneNumber) {
+        if (phoneNumber == null) {
+            throw new InvalidPhoneNumberException("Phone number is missing");
+        }
+        int length = phoneNumber.length();
+        char[] buffer = new char[MAX_DIGITS + 1];
+        buffer[0] = '+';
+        int count = 0;
+        boolean canonical = length > 0 && phoneNumber.charAt(0) == '+';
+        for (int i = canonical ? 1 : 0; i < length; i++) {
+            char c = phoneNumber.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (count == MAX_DIGITS) {
+                    throw new InvalidPhoneNumberException("Phone number has more than " + MAX_DIGITS + " digits");
+                }
+                buffer[++count] = c;
+            } else if (isSeparator(c)) {
+                canonical = false;
+            } else {
+                throw new InvalidPhoneNumberException("Phone number contains an invalid character");
+            }
+        }
+        if (count < MIN_DIGITS) {
+            throw new InvalidPhoneNumberException("Phone number has fewer than " + MIN_DIGITS + " digits");
+        }
+        if (buffer[1] == '0') {
+            throw new InvalidPhoneNumberException("Phone number must start with a country code");
+        }
+        return canonical ? phoneNumber : new String(buffer, 0, count + 1);
+    }
+
+    /**
+     * Normalize an email address by trimming it and lower casing it.
+     *
+     * @param email The email address.
+     * @return The canonical address.
+     */
+    public static String normalizeEmail(String email) {
+        if (email == null) {
+            throw new IllegalArgumentException("Email address is missing");
+        }
+        String trimmed = email.trim();
+        for (int i = 0; i < trimmed.length(); i++) {
+            if (Character.isUpperCase(trimmed.charAt(i))) {
+                return trimmed.toLowerCase(Locale.ROOT);
+            }
+        }
+        return trimmed;
+    }
+
+    private static boolean isSeparator(char c) {
+        return c == ' ' || c == '-' || c == '.' || c == '/' || c == '(' || c == ')';
+    }
+}
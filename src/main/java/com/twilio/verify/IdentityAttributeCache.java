@@ -0,0 +1,302 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2018 ForgeRock AS.
+ */
+
+package com.twilio.verify;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.iplanet.sso.SSOException;
+import com.sun.identity.idm.AMIdentityRepository;
+import com.sun.identity.idm.IdEventListener;
+import com.sun.identity.idm.IdRepoException;
+import com.sun.identity.security.AdminTokenAction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Short lived cache of identity attribute values read by {@link VerifyAuthIdentifierNode}, keyed by the universal id
+ * of the identity and the attribute name.
+ * <p>
+ * The username a journey collected may be an alias of the identity, so the universal id it resolved to is cached
+ * alongside, keyed by realm and username. Users without a value are cached too, normally for a shorter time.
+ * Entries for an identity are dropped when the identity repository reports a change to it; the cache tries once to
+ * register itself as an {@link IdEventListener} for every realm it holds entries for, and where that fails entries
+ * only expire.
+ * <p>
+ * Both maps are concurrent and bounded; beyond the maximum size the least recently used entries are evicted.
+ */
+@Singleton
+public class IdentityAttributeCache implements IdEventListener {
+
+    private final Logger logger = LoggerFactory.getLogger(IdentityAttributeCache.class);
+    private final String loggerPrefix = "[Twilio Identity Cache][Partner] ";
+    private final LongSupplier clock;
+    private final Set<String> attemptedRealms = ConcurrentHashMap.newKeySet();
+    private final ConcurrentMap<String, AMIdentityRepository> listenedRealms = new ConcurrentHashMap<>();
+    private volatile Cache<String, Cached<String>> universalIds = newCache(10000);
+    private volatile Cache<Key, Cached<Set<String>>> entries = newCache(10000);
+
+    /**
+     * Create the cache. Guice binds this class as a singleton, so all nodes of the plugin share one instance.
+     */
+    @Inject
+    public IdentityAttributeCache() {
+        this(() -> TimeUnit.NANOSECONDS.toMillis(System.nanoTime()));
+    }
+
+    IdentityAttributeCache(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Get the universal id a username was last resolved to.
+     *
+     * @param realm The realm of the user.
+     * @param username The username, possibly an alias.
+     * @return The universal id, or empty if nothing is cached.
+     */
+    public Optional<String> getUniversalId(String realm, String username) {
+        return Optional.ofNullable(fresh(universalIds, alias(realm, username)));
+    }
+
+    /**
+     * Cache the universal id a username resolved to.
+     *
+     * @param realm The realm of the user.
+     * @param username The username, possibly an alias.
+     * @param universalId The universal id of the identity.
+     * @param ttl Milliseconds to keep the result.
+     */
+    public void putUniversalId(String realm, String username, String universalId, long ttl) {
+        if (universalId == null || ttl <= 0) {
+            return;
+        }
+        universalIds.put(alias(realm, username), new Cached<>(universalId, clock.getAsLong() + ttl));
+    }
+
+    /**
+     * Get the cached values of an attribute.
+     *
+     * @param universalId The universal id of the identity.
+     * @param attribute The attribute name.
+     * @return The values, which are empty if the identity is known to have none, or empty if nothing is cached.
+     */
+    public Optional<Set<String>> get(String universalId, String attribute) {
+        return Optional.ofNullable(fresh(entries, new Key(universalId, attribute)));
+    }
+
+    /**
+     * Cache the values of an attribute.
+     *
+     * @param realm The realm of the identity, listened to for changes.
+     * @param universalId The universal id of the identity.
+     * @param attribute The attribute name.
+     * @param values The values read from the identity, possibly {@code null} or empty.
+     * @param ttl Milliseconds to keep a non empty result.
+     * @param negativeTtl Milliseconds to keep an empty result.
+     */
+    public void put(String realm, String universalId, String attribute, Set<String> values, long ttl,
+                    long negativeTtl) {
+        boolean empty = values == null || values.isEmpty();
+        long timeToLive = empty ? negativeTtl : ttl;
+        if (universalId == null || timeToLive <= 0) {
+            return;
+        }
+        listenForChanges(realm);
+        entries.put(new Key(universalId, attribute),
+                    new Cached<>(empty ? Collections.emptySet() : Collections.unmodifiableSet(new HashSet<>(values)),
+                                 clock.getAsLong() + timeToLive));
+    }
+
+    /**
+     * Drop every cached attribute of an identity.
+     *
+     * @param universalId The universal id of the identity.
+     */
+    public void invalidate(String universalId) {
+        String id = normalize(universalId);
+        entries.asMap().keySet().removeIf(key -> key.universalId.equals(id));
+    }
+
+    /**
+     * Remove all entries.
+     */
+    public void clear() {
+        universalIds.invalidateAll();
+        entries.invalidateAll();
+    }
+
+    /**
+     * Set the maximum number of cached attributes, and of cached usernames. Least recently used entries are evicted
+     * beyond it.
+     *
+     * @param maxEntries The maximum number of entries.
+     */
+    public synchronized void setMaxEntries(int maxEntries) {
+        Cache<String, Cached<String>> ids = newCache(maxEntries);
+        ids.putAll(universalIds.asMap());
+        universalIds = ids;
+        Cache<Key, Cached<Set<String>>> values = newCache(maxEntries);
+        values.putAll(entries.asMap());
+        entries = values;
+    }
+
+    /**
+     * Stop listening for identity changes and remove all entries.
+     */
+    public void shutdown() {
+        listenedRealms.values().forEach(repository -> repository.removeEventListener(this));
+        listenedRealms.clear();
+        attemptedRealms.clear();
+        clear();
+    }
+
+    @Override
+    public void identityDeleted(String universalId) {
+        forget(universalId);
+    }
+
+    @Override
+    public void identityRenamed(String universalId) {
+        forget(universalId);
+    }
+
+    @Override
+    public void identityChanged(String universalId) {
+        if (universalId == null) {
+            clear();
+        } else {
+            invalidate(universalId);
+        }
+    }
+
+    @Override
+    public void allIdentitiesChanged() {
+        clear();
+    }
+
+    /**
+     * Open the identity repository of a realm to listen to. Tests override this to run without AM.
+     *
+     * @param realm The realm.
+     * @return The repository.
+     */
+    AMIdentityRepository repository(String realm) throws IdRepoException, SSOException {
+        return new AMIdentityRepository(AdminTokenAction.getInstance().run(), realm);
+    }
+
+    private void listenForChanges(String realm) {
+        if (realm == null || !attemptedRealms.add(realm)) {
+            return;
+        }
+        try {
+            AMIdentityRepository repository = repository(realm);
+            repository.addEventListener(this);
+            listenedRealms.put(realm, repository);
+        } catch (IdRepoException | SSOException | RuntimeException e) {
+            logger.warn(loggerPrefix + "Unable to listen for identity changes in realm {}, entries will only "
+                                + "expire", realm, e);
+        }
+    }
+
+    /**
+     * Drop an identity whose username may now resolve elsewhere, along with the usernames resolved to it.
+     */
+    private void forget(String universalId) {
+        if (universalId == null) {
+            clear();
+            return;
+        }
+        String id = normalize(universalId);
+        universalIds.asMap().values().removeIf(cached -> normalize(cached.value).equals(id));
+        invalidate(universalId);
+    }
+
+    private <K, V> V fresh(Cache<K, Cached<V>> cache, K key) {
+        Cached<V> cached = cache.getIfPresent(key);
+        if (cached == null) {
+            return null;
+        }
+        if (cached.expiresAt <= clock.getAsLong()) {
+            cache.asMap().remove(key, cached);
+            return null;
+        }
+        return cached.value;
+    }
+
+    private static <K, V> Cache<K, V> newCache(int maxEntries) {
+        return CacheBuilder.newBuilder().maximumSize(Math.max(0, maxEntries)).build();
+    }
+
+    private static String alias(String realm, String username) {
+        return realm + '\u0000' + String.valueOf(username).toLowerCase(Locale.ROOT);
+    }
+
+    private static String normalize(String universalId) {
+        return String.valueOf(universalId).toLowerCase(Locale.ROOT);
+    }
+
+    private static final class Key {
+        private final String universalId;
+        private final String attribute;
+        private final int hash;
+
+        private Key(String universalId, String attribute) {
+            this.universalId = normalize(universalId);
+            this.attribute = attribute;
+            this.hash = this.universalId.hashCode() * 31 + attribute.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash && universalId.equals(other.universalId) && attribute.equals(other.attribute);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Cached<V> {
+        private final V value;
+        private final long expiresAt;
+
+        private Cached(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2018 ForgeRock AS.
+ */
+
+
+package com.twilio.verify;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Bounded {@link VerificationStore} kept in the memory of one AM server. Entries carry their own expiry in a
+ * concurrent cache, and when the store is full the least recently used entries are forgotten.
+ */
+public class InMemoryVerificationStore implements VerificationStore {
+
+    private final LongSupplier clock;
+    private volatile Cache<String, StoredValue> entries;
+
+    /**
+     * Create the store.
+     *
+     * @param maxEntries The maximum number of entries.
+     */
+    public InMemoryVerificationStore(int maxEntries) {
+        this(maxEntries, () -> TimeUnit.NANOSECONDS.toMillis(System.nanoTime()));
+    }
+
+    InMemoryVerificationStore(int maxEntries, LongSupplier clock) {
+        this.entries = newCache(maxEntries);
+        this.clock = clock;
+    }
+
+    @Override
+    public Optional<String> get(String key) {
+        StoredValue entry = entries.getIfPresent(key);
+        if (entry == null) {
+            return Optional.empty();
+        }
+        if (entry.expiresAt <= clock.getAsLong()) {
+            entries.asMap().remove(key, entry);
+            return Optional.empty();
+        }
+        return Optional.of(entry.value);
+    }
+
+    @Override
+    public void put(String key, String value, long timeToLive) {
+        if (timeToLive <= 0) {
+            remove(key);
+            return;
+        }
+        entries.put(key, new StoredValue(value, clock.getAsLong() + timeToLive));
+    }
+
+    @Override
+    public void remove(String key) {
+        entries.invalidate(key);
+    }
+
+    /**
+     * Set the maximum number of entries. Least recently used entries are forgotten beyond it.
+     *
+     * @param maxEntries The maximum number of entries.
+     */
+    public synchronized void setMaxEntries(int maxEntries) {
+        Cache<String, StoredValue> resized = newCache(maxEntries);
+        resized.putAll(entries.asMap());
+        entries = resized;
+    }
+
+    /**
+     * Remove all entries.
+     */
+    public void clear() {
+        entries.invalidateAll();
+    }
+
+    private static Cache<String, StoredValue> newCache(int maxEntries) {
+        return CacheBuilder.newBuilder().maximumSize(Math.max(0, maxEntries)).build();
+    }
+
+    private static final class StoredValue {
+        private final String value;
+        private final long expiresAt;
+
+        private StoredValue(String value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
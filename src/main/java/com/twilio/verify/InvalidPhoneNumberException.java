@@ -0,0 +1,35 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2018 ForgeRock AS.
+ */
+
+package com.twilio.verify;
+
+/**
+ * Thrown by {@link IdentifierNormalizer} when a phone number cannot be put in E.164 form, so that nodes report it as
+ * an {@link TwilioError#INVALID_NUMBER} rather than an unexpected error.
+ */
+public class InvalidPhoneNumberException extends IllegalArgumentException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Create the exception.
+     *
+     * @param message Why the number was rejected.
+     */
+    public InvalidPhoneNumberException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2018 ForgeRock AS.
+ */
+
+package com.twilio.verify;
+
+/**
+ * Thrown when the journey latency budget runs out, either before a Twilio call is made or while it is in flight.
+ * The failure is the journey's, not Twilio's, so it does not count against the circuit breakers.
+ */
+public class JourneyBudgetException extends TwilioUnavailableException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Create the exception.
+     *
+     * @param message The reason the call failed.
+     */
+    public JourneyBudgetException(String message) {
+        super(message);
+    }
+
+    /**
+     * Create the exception.
+     *
+     * @param message The reason the call failed.
+     * @param cause The failure of the call cut short by the deadline.
+     */
+    public JourneyBudgetException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
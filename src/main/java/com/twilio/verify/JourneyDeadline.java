@@ -0,0 +1,160 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2018 ForgeRock AS.
+ */
+
+
+
+package com.twilio.verify;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.auth.node.api.NodeState;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * The latency budget of a journey, shared by the nodes through a deadline in shared state.
+ * <p>
+ * The first node of a journey to look for the deadline writes it under {@link #STATE_KEY}, the configured
+ * {@link TwilioVerifyService#journeyBudget() journey budget} from now. A deadline already in shared state, for example
+ * written by a scripted node, is used as is. Nodes refuse to start a call once the deadline has passed, and the
+ * connect, socket and connection pool timeouts of the calls they make are cut down to the time left.
+ */
+@Singleton
+public class JourneyDeadline {
+
+    /**
+     * Shared state key of the deadline, in milliseconds since the epoch.
+     */
+    public static final String STATE_KEY = "twilioDeadline";
+
+    private static final Budget UNBOUNDED = new Budget(Long.MAX_VALUE);
+
+    private final LongSupplier clock;
+    private volatile long budget = TwilioVerifyService.DEFAULTS.journeyBudget();
+
+    /**
+     * Create the deadline with default settings.
+     */
+    @Inject
+    public JourneyDeadline() {
+        this(System::currentTimeMillis);
+    }
+
+    JourneyDeadline(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Apply new settings.
+     *
+     * @param settings The plugin settings.
+     */
+    public void configure(TwilioVerifyService settings) {
+        this.budget = settings.journeyBudget();
+    }
+
+    /**
+     * The budget left to a journey, starting it if the journey has no deadline yet.
+     *
+     * @param state The state of the calling node, to whose shared state a new deadline is written.
+     * @return The budget, unbounded if the journey has no deadline and no journey budget is configured.
+     */
+    public Budget budget(NodeState state) {
+        JsonValue value = state.get(STATE_KEY);
+        long now = clock.getAsLong();
+        long deadline;
+        if (value != null && value.isNumber()) {
+            deadline = value.asLong();
+        } else if (budget > 0) {
+            deadline = now + budget;
+            state.putShared(STATE_KEY, deadline);
+        } else {
+            return UNBOUNDED;
+        }
+        return new Budget(deadline - now);
+    }
+
+    /**
+     * The time left to a journey when a node started.
+     */
+    public static final class Budget {
+
+        private final long remaining;
+        private final long deadline;
+
+        private Budget(long remaining) {
+            this.remaining = remaining;
+            this.deadline = remaining == Long.MAX_VALUE
+                    ? Long.MAX_VALUE
+                    : System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(remaining);
+        }
+
+        /**
+         * @return Whether the journey has a deadline.
+         */
+        public boolean isBounded() {
+            return remaining != Long.MAX_VALUE;
+        }
+
+        /**
+         * @return The milliseconds left, zero once the deadline has passed.
+         */
+        public long remaining() {
+            if (!isBounded()) {
+                return Long.MAX_VALUE;
+            }
+            return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+        }
+
+        /**
+         * Cap a timeout to the time left.
+         *
+         * @param timeout The timeout in milliseconds.
+         * @return The smaller of the timeout and the milliseconds left.
+         */
+        public long cap(long timeout) {
+            return Math.min(timeout, remaining());
+        }
+
+        /**
+         * Fail fast once the deadline has passed.
+         *
+         * @throws JourneyBudgetException If no time is left.
+         */
+        public void check() {
+            if (remaining() == 0) {
+                throw new JourneyBudgetException("Journey latency budget is spent");
+            }
+        }
+
+        /**
+         * Wrap a Twilio call so that its HTTP timeouts do not run past the deadline, on whichever thread it runs.
+         *
+         * @param call The call.
+         * @param <T> The type of the call result.
+         * @return The wrapped call.
+         */
+        public <T> Supplier<T> bound(Supplier<T> call) {
+            if (!isBounded()) {
+                return call;
+            }
+            return () -> TwilioHttpTransport.withDeadline(deadline, call);
+        }
+    }
+}
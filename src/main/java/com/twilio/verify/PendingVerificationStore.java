@@ -0,0 +1,123 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2018 ForgeRock AS.
+ */
+
+
+package com.twilio.verify;
+
+import com.twilio.verify.VerifyAuthSenderNode.Module;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.Optional;
+import java.util.function.LongSupplier;
+
+/**
+ * Record of the last verification sent to each identifier of a Twilio Verify service.
+ * <p>
+ * {@link VerifyAuthSenderNode} uses it to avoid sending a new verification while one sent over the same channel is
+ * still pending, and {@link VerifyAuthCollectorDecisionNode} forgets the send once the code is approved or the user
+ * asks for a new one. Sends are kept in a {@link VerificationStore}: by default a bounded, in-memory one that forgets
+ * the least recently used identifier when full, or the store shared by the cluster set with {@link #setStore}.
+ */
+@Singleton
+public class PendingVerificationStore {
+
+    private static final String KIND = "p";
+
+    private final LongSupplier clock;
+    private final InMemoryVerificationStore localStore =
+            new InMemoryVerificationStore(TwilioVerifyService.DEFAULTS.pendingStoreMaxEntries());
+    private volatile VerificationStore store = localStore;
+
+    /**
+     * Create the store. Guice binds this class as a singleton, so all nodes of the plugin share one instance.
+     */
+    @Inject
+    public PendingVerificationStore() {
+        this(System::currentTimeMillis);
+    }
+
+    PendingVerificationStore(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Whether a verification was sent to an identifier over a channel within a window.
+     *
+     * @param serviceSID The Twilio Verify service.
+     * @param identifier The phone number or email address.
+     * @param channel The channel.
+     * @param window The window in milliseconds.
+     * @return Whether a verification is still pending.
+     */
+    public boolean isPending(String serviceSID, String identifier, Module channel, long window) {
+        Optional<String> send = store.get(VerificationStore.key(KIND, serviceSID, identifier));
+        if (!send.isPresent() || send.get().length() < 2 || send.get().charAt(0) - '0' != channel.ordinal()) {
+            return false;
+        }
+        long sentAt = Long.parseLong(send.get().substring(1), Character.MAX_RADIX);
+        return clock.getAsLong() - sentAt < window;
+    }
+
+    /**
+     * Record that a verification is being sent.
+     *
+     * @param serviceSID The Twilio Verify service.
+     * @param identifier The phone number or email address.
+     * @param channel The channel.
+     * @param window Milliseconds during which the verification may be reused.
+     */
+    public void record(String serviceSID, String identifier, Module channel, long window) {
+        // The channel and the time of the send, in as few characters as possible.
+        String send = channel.ordinal() + Long.toString(clock.getAsLong(), Character.MAX_RADIX);
+        store.put(VerificationStore.key(KIND, serviceSID, identifier), send, window);
+    }
+
+    /**
+     * Forget the verification sent to an identifier.
+     *
+     * @param serviceSID The Twilio Verify service.
+     * @param identifier The phone number or email address.
+     */
+    public void remove(String serviceSID, String identifier) {
+        store.remove(VerificationStore.key(KIND, serviceSID, identifier));
+    }
+
+    /**
+     * Set the store keeping the sends.
+     *
+     * @param store The store shared by the cluster, or null to keep sends in memory.
+     */
+    public void setStore(VerificationStore store) {
+        this.store = store == null ? localStore : store;
+    }
+
+    /**
+     * Set the maximum number of identifiers recorded in memory.
+     *
+     * @param maxEntries The maximum number of identifiers.
+     */
+    public void setMaxEntries(int maxEntries) {
+        localStore.setMaxEntries(maxEntries);
+    }
+
+    /**
+     * Forget all verifications recorded in memory.
+     */
+    public void clear() {
+        localStore.clear();
+    }
+}
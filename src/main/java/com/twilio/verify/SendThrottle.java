@@ -0,0 +1,201 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2018 ForgeRock AS.
+ */
+
+
+package com.twilio.verify;
+
+import com.twilio.verify.VerifyAuthSenderNode.Module;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Token bucket limiter for verifications sent to the same identifier over the same channel.
+ * <p>
+ * Each identifier and channel has a bucket holding up to {@code burst} tokens, refilled at a fixed interval. A send
+ * takes a token and is refused when the bucket is empty. Buckets are spread over a fixed number of lock stripes by
+ * identifier, so that concurrent sends to different users rarely contend, and a send to a known identifier allocates
+ * nothing. Each stripe keeps its least recently used identifiers up to a share of {@code throttleMaxEntries}; a
+ * forgotten identifier starts again with a full bucket.
+ * <p>
+ * When a {@link VerificationStore} shared by the cluster is set with {@link #setStore}, buckets are kept there instead
+ * so that every AM server sees the same sends. A shared bucket is read and written back without a lock, so servers
+ * taking a token from the same bucket at the same time may let one more send through.
+ */
+@Singleton
+public class SendThrottle {
+
+    private static final int STRIPES = 64;
+    private static final int CHANNELS = Module.values().length;
+
+    private final LongSupplier clock;
+    private final LongSupplier wallClock;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private volatile int maxEntriesPerStripe;
+    private volatile VerificationStore store;
+
+    /**
+     * Create the throttle with default settings.
+     */
+    @Inject
+    public SendThrottle() {
+        this(System::nanoTime, System::currentTimeMillis);
+    }
+
+    SendThrottle(LongSupplier clock) {
+        this(clock, System::currentTimeMillis);
+    }
+
+    SendThrottle(LongSupplier clock, LongSupplier wallClock) {
+        this.clock = clock;
+        this.wallClock = wallClock;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+        setMaxEntries(TwilioVerifyService.DEFAULTS.throttleMaxEntries());
+    }
+
+    /**
+     * Set the maximum number of identifiers tracked. Stripes over their share are trimmed on their next use.
+     *
+     * @param maxEntries The maximum number of identifiers.
+     */
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntriesPerStripe = Math.max(1, maxEntries / STRIPES);
+    }
+
+    /**
+     * Set the store keeping the buckets.
+     *
+     * @param store The store shared by the cluster, or null to keep buckets in memory.
+     */
+    public void setStore(VerificationStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Take a token for a send, if one is available.
+     *
+     * @param identifier The phone number or email address the verification is sent to.
+     * @param channel The channel the verification is sent over.
+     * @param burst The number of sends allowed in quick succession.
+     * @param refillInterval Milliseconds after which one more send is allowed.
+     * @return Whether the send may go ahead.
+     */
+    public boolean tryAcquire(String identifier, Module channel, int burst, long refillInterval) {
+        if (burst <= 0) {
+            return true;
+        }
+        VerificationStore shared = store;
+        if (shared != null) {
+            return tryAcquire(shared, identifier, channel, burst, Math.max(1, refillInterval));
+        }
+        long interval = TimeUnit.MILLISECONDS.toNanos(Math.max(1, refillInterval));
+        long now = clock.getAsLong();
+        Stripe stripe = stripes[spread(identifier.hashCode()) & (STRIPES - 1)];
+        synchronized (stripe) {
+            long[] buckets = stripe.buckets.get(identifier);
+            if (buckets == null) {
+                buckets = new long[CHANNELS];
+                stripe.buckets.put(identifier, buckets);
+                while (stripe.buckets.size() > maxEntriesPerStripe) {
+                    stripe.buckets.remove(stripe.buckets.keySet().iterator().next());
+                }
+            }
+            // A bucket is stored as the time at which it will be full again, 0 meaning it has never been used.
+            int index = channel.ordinal();
+            long debt = buckets[index] == 0 ? 0 : Math.max(0, buckets[index] - now);
+            if (debt + interval > burst * interval) {
+                return false;
+            }
+            buckets[index] = now + debt + interval;
+            return true;
+        }
+    }
+
+    private boolean tryAcquire(VerificationStore shared, String identifier, Module channel, int burst,
+                               long interval) {
+        String key = VerificationStore.key("t", channel.currentChannel(), identifier);
+        long now = wallClock.getAsLong();
+        long debt = shared.get(key).map(fullAt -> Long.parseLong(fullAt, Character.MAX_RADIX) - now)
+                          .filter(remaining -> remaining > 0).orElse(0L);
+        if (debt + interval > burst * interval) {
+            return false;
+        }
+        shared.put(key, Long.toString(now + debt + interval, Character.MAX_RADIX), debt + interval);
+        return true;
+    }
+
+    /**
+     * Give back a token taken by {@link #tryAcquire} for a send that was not made after all.
+     *
+     * @param identifier The phone number or email address the verification was to be sent to.
+     * @param channel The channel the verification was to be sent over.
+     * @param burst The number of sends allowed in quick succession.
+     * @param refillInterval Milliseconds after which one more send is allowed.
+     */
+    public void release(String identifier, Module channel, int burst, long refillInterval) {
+        if (burst <= 0) {
+            return;
+        }
+        VerificationStore shared = store;
+        if (shared != null) {
+            String key = VerificationStore.key("t", channel.currentChannel(), identifier);
+            long now = wallClock.getAsLong();
+            long debt = shared.get(key).map(fullAt -> Long.parseLong(fullAt, Character.MAX_RADIX) - now)
+                              .filter(remaining -> remaining > 0).orElse(0L) - Math.max(1, refillInterval);
+            if (debt > 0) {
+                shared.put(key, Long.toString(now + debt, Character.MAX_RADIX), debt);
+            } else {
+                shared.remove(key);
+            }
+            return;
+        }
+        long interval = TimeUnit.MILLISECONDS.toNanos(Math.max(1, refillInterval));
+        long now = clock.getAsLong();
+        Stripe stripe = stripes[spread(identifier.hashCode()) & (STRIPES - 1)];
+        synchronized (stripe) {
+            long[] buckets = stripe.buckets.get(identifier);
+            int index = channel.ordinal();
+            if (buckets != null && buckets[index] != 0) {
+                buckets[index] = Math.max(now, buckets[index] - interval);
+            }
+        }
+    }
+
+    /**
+     * Forget all buckets kept in memory.
+     */
+    public void clear() {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.buckets.clear();
+            }
+        }
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static final class Stripe {
+        private final Map<String, long[]> buckets = new LinkedHashMap<>(16, 0.75f, true);
+    }
+}
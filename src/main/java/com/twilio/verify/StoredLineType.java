@@ -0,0 +1,87 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2018 ForgeRock AS.
+ */
+
+
+package com.twilio.verify;
+
+import java.util.Optional;
+
+/**
+ * A carrier line type stored on the identity profile by {@link VerifyAuthLookupNode}, together with the phone number
+ * it was looked up for and when, so that later logins can skip the Lookup API until it is too old.
+ * <p>
+ * The value is kept in a single attribute as {@code type|verifiedAt|phoneNumber}, with the time in epoch
+ * milliseconds.
+ */
+final class StoredLineType {
+
+    private static final char SEPARATOR = '|';
+
+    private final String type;
+    private final long verifiedAt;
+    private final String phoneNumber;
+
+    StoredLineType(String type, long verifiedAt, String phoneNumber) {
+        this.type = type;
+        this.verifiedAt = verifiedAt;
+        this.phoneNumber = phoneNumber;
+    }
+
+    /**
+     * Parse a stored attribute value.
+     *
+     * @param value The attribute value, possibly null.
+     * @return The line type, or empty if the value is missing or malformed.
+     */
+    static Optional<StoredLineType> parse(String value) {
+        if (value == null) {
+            return Optional.empty();
+        }
+        int first = value.indexOf(SEPARATOR);
+        int second = value.indexOf(SEPARATOR, first + 1);
+        if (first <= 0 || second < 0) {
+            return Optional.empty();
+        }
+        try {
+            return Optional.of(new StoredLineType(value.substring(0, first),
+                                                  Long.parseLong(value.substring(first + 1, second)),
+                                                  value.substring(second + 1)));
+        } catch (NumberFormatException e) {
+            return Optional.empty();
+        }
+    }
+
+    String type() {
+        return type;
+    }
+
+    /**
+     * Whether the line type was looked up for a phone number less than a maximum age ago.
+     *
+     * @param phoneNumber The phone number in E.164 format.
+     * @param now The current time in epoch milliseconds.
+     * @param maxAge The maximum age in milliseconds.
+     * @return Whether the line type can be used instead of a lookup.
+     */
+    boolean isFreshFor(String phoneNumber, long now, long maxAge) {
+        return this.phoneNumber.equals(phoneNumber) && now - verifiedAt < maxAge && verifiedAt <= now;
+    }
+
+    @Override
+    public String toString() {
+        return type + SEPARATOR + verifiedAt + SEPARATOR + phoneNumber;
+    }
+}
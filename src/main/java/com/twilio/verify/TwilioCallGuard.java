@@ -0,0 +1,173 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2018 ForgeRock AS.
+ */
+
+
+package com.twilio.verify;
+
+import com.twilio.exception.ApiException;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Protects AM from a degraded Twilio. Every Twilio call made by the nodes goes through {@link #call}, which
+ * <ul>
+ *     <li>refuses the call while the circuit breaker for the account and endpoint is open, and</li>
+ *     <li>caps the number of Twilio calls in flight across the plugin (a bulkhead).</li>
+ * </ul>
+ * Refused calls throw {@link TwilioUnavailableException} immediately, so the nodes can take their error outcome
+ * instead of holding a container thread until the socket times out. Calls cut short by the journey latency budget
+ * ({@link JourneyBudgetException}) say nothing about the health of Twilio and are left out of the breaker.
+ */
+@Singleton
+public class TwilioCallGuard {
+
+    private final LongSupplier clock;
+    private final ConcurrentMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+    private volatile TwilioVerifyService settings = TwilioVerifyService.DEFAULTS;
+    private volatile Semaphore bulkhead = new Semaphore(TwilioVerifyService.DEFAULTS.maxConcurrentCalls());
+
+    /**
+     * Create the guard with default settings.
+     */
+    @Inject
+    public TwilioCallGuard() {
+        this(() -> TimeUnit.NANOSECONDS.toMillis(System.nanoTime()));
+    }
+
+    TwilioCallGuard(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Apply new settings. Existing breakers are discarded.
+     *
+     * @param settings The plugin settings.
+     */
+    public void configure(TwilioVerifyService settings) {
+        this.settings = settings;
+        this.bulkhead = new Semaphore(settings.maxConcurrentCalls());
+        breakers.clear();
+    }
+
+    /**
+     * Make a Twilio call if the breaker and bulkhead permit it.
+     *
+     * @param accountSID The account the call is made with.
+     * @param endpoint The endpoint being called.
+     * @param call The call.
+     * @param <T> The type of the call result.
+     * @return The result of the call.
+     * @throws TwilioUnavailableException If the breaker is open or too many calls are in flight.
+     */
+    public <T> T call(String accountSID, TwilioEndpoint endpoint, Supplier<T> call) {
+        CircuitBreaker breaker = breaker(accountSID, endpoint);
+        if (breaker.isRejecting()) {
+            throw new TwilioUnavailableException("Circuit breaker for " + endpoint.endpointName() + " is open");
+        }
+        Semaphore permits = bulkhead;
+        if (!acquire(permits)) {
+            throw new TwilioUnavailableException("Too many Twilio calls in flight");
+        }
+        if (!breaker.tryAcquirePermission()) {
+            permits.release();
+            throw new TwilioUnavailableException("Circuit breaker for " + endpoint.endpointName() + " is open");
+        }
+        long start = System.nanoTime();
+        boolean failed = true;
+        boolean counted = true;
+        try {
+            T result = call.get();
+            failed = false;
+            return result;
+        } catch (JourneyBudgetException e) {
+            counted = false;
+            throw e;
+        } catch (ApiException e) {
+            failed = isUnhealthy(e);
+            throw e;
+        } finally {
+            permits.release();
+            if (counted) {
+                breaker.onResult(System.nanoTime() - start, failed);
+            } else {
+                breaker.releasePermission();
+            }
+        }
+    }
+
+    /**
+     * Whether calls to an endpoint are currently refused, without asking for permission to make one.
+     *
+     * @param accountSID The account.
+     * @param endpoint The endpoint.
+     * @return Whether the breaker is open.
+     */
+    public boolean isOpen(String accountSID, TwilioEndpoint endpoint) {
+        return breaker(accountSID, endpoint).isRejecting();
+    }
+
+    /**
+     * The number of Twilio calls currently in flight.
+     *
+     * @return The number of calls.
+     */
+    public int getCallsInFlight() {
+        return settings.maxConcurrentCalls() - bulkhead.availablePermits();
+    }
+
+    /**
+     * The maximum number of Twilio calls in flight.
+     *
+     * @return The number of calls.
+     */
+    public int getMaxConcurrentCalls() {
+        return settings.maxConcurrentCalls();
+    }
+
+    private CircuitBreaker breaker(String accountSID, TwilioEndpoint endpoint) {
+        return breakers.computeIfAbsent(accountSID + ':' + endpoint.endpointName(),
+                                        key -> new CircuitBreaker(settings, clock));
+    }
+
+    private boolean acquire(Semaphore permits) {
+        int wait = settings.bulkheadWait();
+        if (wait <= 0) {
+            return permits.tryAcquire();
+        }
+        try {
+            return permits.tryAcquire(wait, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Client errors such as an invalid phone number say nothing about the health of Twilio, so only connection
+     * failures, throttling and server errors count against the breaker.
+     */
+    private static boolean isUnhealthy(ApiException e) {
+        Integer status = e.getStatusCode();
+        return status == null || status == 429 || status >= 500;
+    }
+}
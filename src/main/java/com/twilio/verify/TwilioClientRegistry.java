@@ -0,0 +1,135 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2018 ForgeRock AS.
+ */
+
+
+package com.twilio.verify;
+
+import com.twilio.http.TwilioRestClient;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Plugin scoped registry of {@link TwilioRestClient} instances, keyed by account SID and a hash of the
+ * authentication token.
+ * <p>
+ * Nodes are constructed by AM on every tree evaluation, so building a client (or calling {@code Twilio.init}, which
+ * swaps the JVM wide default client) in a node constructor is both wasteful and unsafe when two realms use different
+ * Twilio accounts. Clients are instead created lazily on first use and shared across threads. When the token
+ * configured for an account changes, the stale client for that account is replaced.
+ */
+@Singleton
+public class TwilioClientRegistry {
+
+    private final ConcurrentMap<String, Entry> clients = new ConcurrentHashMap<>();
+    private final TwilioHttpTransport transport;
+
+    /**
+     * Create the registry. Guice binds this class as a singleton, so all nodes of the plugin share one instance.
+     *
+     * @param transport The pooled HTTP transport used by every client.
+     */
+    @Inject
+    public TwilioClientRegistry(TwilioHttpTransport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Get the client for the given credentials, creating it if this is the first request for them.
+     *
+     * @param accountSID The Twilio account SID.
+     * @param authToken The Twilio authentication token.
+     * @return The shared client.
+     */
+    public TwilioRestClient getClient(String accountSID, char[] authToken) {
+        String credentialHash = hash(authToken);
+        Entry entry = clients.get(accountSID);
+        if (entry != null && entry.credentialHash.equals(credentialHash)) {
+            return entry.client;
+        }
+        return clients.compute(accountSID, (sid, current) -> {
+            if (current != null && current.credentialHash.equals(credentialHash)) {
+                return current;
+            }
+            return new Entry(credentialHash, createClient(sid, authToken));
+        }).client;
+    }
+
+    /**
+     * Get the most recently registered client for an account. Only used by Collector Decision nodes saved before
+     * they had credentials of their own, which rely on an earlier node of the journey having run on this server.
+     *
+     * @param accountSID The Twilio account SID.
+     * @return The client, or empty if no node has registered credentials for the account on this server.
+     */
+    public Optional<TwilioRestClient> getClient(String accountSID) {
+        if (accountSID == null) {
+            return Optional.empty();
+        }
+        return Optional.ofNullable(clients.get(accountSID)).map(entry -> entry.client);
+    }
+
+    /**
+     * Remove all clients.
+     */
+    public void clear() {
+        clients.clear();
+    }
+
+    TwilioRestClient createClient(String accountSID, char[] authToken) {
+        return new TwilioRestClient.Builder(accountSID, String.valueOf(authToken)).httpClient(transport).build();
+    }
+
+    private static String hash(char[] authToken) {
+        ByteBuffer bytes = StandardCharsets.UTF_8.encode(CharBuffer.wrap(authToken == null ? new char[0] : authToken));
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(bytes);
+            return toHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        } finally {
+            Arrays.fill(bytes.array(), (byte) 0);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    private static final class Entry {
+        private final String credentialHash;
+        private final TwilioRestClient client;
+
+        private Entry(String credentialHash, TwilioRestClient client) {
+            this.credentialHash = credentialHash;
+            this.client = client;
+        }
+    }
+}
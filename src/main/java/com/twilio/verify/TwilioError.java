@@ -0,0 +1,166 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2018 ForgeRock AS.
+ */
+
+
+package com.twilio.verify;
+
+import com.twilio.exception.ApiConnectionException;
+import com.twilio.exception.ApiException;
+import org.forgerock.openam.auth.node.api.OutcomeProvider.Outcome;
+
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Pattern;
+
+/**
+ * Categories of the errors the nodes run into, derived from the
+ * <a href="https://www.twilio.com/docs/api/errors">Twilio error codes</a> and HTTP statuses.
+ * <p>
+ * When a node fails, the name of the category is stored in shared state under {@link #STATE_KEY}, and nodes
+ * configured with error outcomes take the outcome of the category instead of their error outcome.
+ */
+public enum TwilioError {
+    /** The phone number or email address is invalid or cannot receive the channel. */
+    INVALID_NUMBER("invalidNumber", "Invalid Number", false),
+    /** Twilio refuses to send or check the verification again. */
+    MAX_ATTEMPTS("maxAttempts", "Max Attempts", false),
+    /** Twilio asked to slow down. */
+    RATE_LIMITED("rateLimited", "Rate Limited", true),
+    /** Twilio could not be reached, failed, or was not called because it is unhealthy. */
+    SERVICE_UNAVAILABLE("unavailable", "Unavailable", true),
+    /** The account SID or auth token was rejected. */
+    AUTH_FAILURE("authFailure", "Auth Failure", false),
+    /** The verification or phone number does not exist, for example because the verification expired. */
+    NOT_FOUND("notFound", "Not Found", false),
+    /** Any other error. It always takes the error outcome of the node. */
+    UNEXPECTED(null, null, false);
+
+    /**
+     * The shared state key of the category of the last error.
+     */
+    public static final String STATE_KEY = "twilioError";
+
+    /** The 'To' parameter named in the message of an invalid parameter error, such as "Invalid parameter `To`". */
+    private static final Pattern TO_PARAMETER = Pattern.compile("\\bTo\\b");
+
+    private final String outcome;
+    private final String displayName;
+    private final boolean retryable;
+
+    TwilioError(String outcome, String displayName, boolean retryable) {
+        this.outcome = outcome;
+        this.displayName = displayName;
+        this.retryable = retryable;
+    }
+
+    /**
+     * The outcome a node configured with error outcomes takes for this category.
+     *
+     * @param errorOutcome The error outcome of the node.
+     * @return The outcome.
+     */
+    public String outcome(String errorOutcome) {
+        return outcome == null ? errorOutcome : outcome;
+    }
+
+    /**
+     * Whether a call that failed with this category may succeed if it is made again.
+     *
+     * @return Whether to retry.
+     */
+    public boolean isRetryable() {
+        return retryable;
+    }
+
+    /**
+     * Add the outcomes of all categories that have their own outcome.
+     *
+     * @param outcomes The outcomes of a node.
+     */
+    static void addOutcomes(List<Outcome> outcomes) {
+        for (TwilioError error : values()) {
+            if (error.outcome != null) {
+                outcomes.add(new Outcome(error.outcome, error.displayName));
+            }
+        }
+    }
+
+    /**
+     * Classify an error thrown while processing a node.
+     *
+     * @param error The error, possibly wrapped by an executor.
+     * @return The category.
+     */
+    public static TwilioError classify(Throwable error) {
+        Throwable e = error;
+        while ((e instanceof ExecutionException || e instanceof CompletionException) && e.getCause() != null) {
+            e = e.getCause();
+        }
+        if (e instanceof TwilioUnavailableException || e instanceof ApiConnectionException
+                || e instanceof TimeoutException) {
+            return SERVICE_UNAVAILABLE;
+        }
+        if (e instanceof InvalidPhoneNumberException) {
+            return INVALID_NUMBER;
+        }
+        if (!(e instanceof ApiException)) {
+            return UNEXPECTED;
+        }
+        ApiException api = (ApiException) e;
+        Integer code = api.getCode();
+        if (code != null) {
+            switch (code) {
+            case 21211: // invalid 'To' phone number
+            case 21614: // 'To' number is not a valid mobile number
+            case 60205: // SMS is not supported by landline phone number
+                return INVALID_NUMBER;
+            case 60200: // invalid parameter, only the number when the parameter named is 'To'
+                return api.getMessage() != null && TO_PARAMETER.matcher(api.getMessage()).find() ? INVALID_NUMBER
+                                                                                                 : UNEXPECTED;
+            case 60202: // max check attempts reached
+            case 60203: // max send attempts reached
+                return MAX_ATTEMPTS;
+            case 20429: // too many requests
+            case 60212: // too many concurrent requests for phone number
+                return RATE_LIMITED;
+            case 20003: // authentication error
+            case 20005: // account not active
+                return AUTH_FAILURE;
+            case 20404: // resource not found
+                return NOT_FOUND;
+            default:
+                break;
+            }
+        }
+        Integer status = api.getStatusCode();
+        if (status == null || status >= 500) {
+            return SERVICE_UNAVAILABLE;
+        }
+        switch (status) {
+        case 401:
+        case 403:
+            return AUTH_FAILURE;
+        case 404:
+            return NOT_FOUND;
+        case 429:
+            return RATE_LIMITED;
+        default:
+            return UNEXPECTED;
+        }
+    }
+}
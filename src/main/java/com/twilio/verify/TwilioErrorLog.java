@@ -0,0 +1,123 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2018 ForgeRock AS.
+ */
+
+
+package com.twilio.verify;
+
+import com.twilio.exception.ApiException;
+import org.slf4j.Logger;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Logs the errors the nodes run into without flooding the log or serializing threads during a Twilio outage.
+ * <p>
+ * Errors are grouped by logger, {@link TwilioError} category, exception type and Twilio error code. Only the first
+ * error of a group in each interval is logged, together with the number of errors of the group suppressed since the
+ * last one was logged. Stack traces are only attached to the logged errors that are {@link TwilioError#UNEXPECTED},
+ * or when debug logging is enabled.
+ */
+@Singleton
+public class TwilioErrorLog {
+
+    private static final int MAX_GROUPS = 1024;
+
+    private final LongSupplier clock;
+    private final ConcurrentMap<String, Group> groups = new ConcurrentHashMap<>();
+    private volatile long interval = TwilioVerifyService.DEFAULTS.errorLogInterval();
+
+    /**
+     * Create the log with default settings.
+     */
+    @Inject
+    public TwilioErrorLog() {
+        this(() -> TimeUnit.NANOSECONDS.toMillis(System.nanoTime()));
+    }
+
+    TwilioErrorLog(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Apply new settings.
+     *
+     * @param settings The plugin settings.
+     */
+    public void configure(TwilioVerifyService settings) {
+        this.interval = Math.max(0, settings.errorLogInterval());
+    }
+
+    /**
+     * Classify an error and log it unless a similar error was logged recently.
+     *
+     * @param logger The logger of the node.
+     * @param loggerPrefix The prefix of the node's log messages.
+     * @param error The error.
+     * @return The category of the error.
+     */
+    public TwilioError log(Logger logger, String loggerPrefix, Throwable error) {
+        TwilioError category = TwilioError.classify(error);
+        Integer code = error instanceof ApiException ? ((ApiException) error).getCode() : null;
+        int suppressed = group(logger.getName() + '|' + category + '|' + error.getClass().getName() + '|' + code)
+                .tryLog(clock.getAsLong(), interval);
+        if (suppressed < 0) {
+            return category;
+        }
+        if (category == TwilioError.UNEXPECTED || logger.isDebugEnabled()) {
+            logger.error("{}Exception occurred, {}: {} ({} similar suppressed)", loggerPrefix, category,
+                         error.getMessage(), suppressed, error);
+        } else {
+            logger.error("{}Exception occurred, {}: {} ({} similar suppressed)", loggerPrefix, category,
+                         error.getMessage(), suppressed);
+        }
+        return category;
+    }
+
+    private Group group(String key) {
+        Group group = groups.get(key);
+        if (group == null) {
+            if (groups.size() >= MAX_GROUPS) {
+                groups.clear();
+            }
+            group = groups.computeIfAbsent(key, k -> new Group());
+        }
+        return group;
+    }
+
+    private static final class Group {
+        private final AtomicLong nextLog = new AtomicLong(Long.MIN_VALUE);
+        private final AtomicInteger suppressed = new AtomicInteger();
+
+        /**
+         * @return The number of errors suppressed since the last one was logged, or -1 if this one is suppressed.
+         */
+        int tryLog(long now, long interval) {
+            long due = nextLog.get();
+            if (now >= due && nextLog.compareAndSet(due, now + interval)) {
+                return suppressed.getAndSet(0);
+            }
+            suppressed.incrementAndGet();
+            return -1;
+        }
+    }
+}
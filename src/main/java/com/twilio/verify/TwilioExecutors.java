@@ -0,0 +1,67 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2018 ForgeRock AS.
+ */
+
+
+
+package com.twilio.verify;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the pools that run blocking Twilio calls off the AM request threads.
+ * <p>
+ * This is the Java 11 implementation, which runs the calls on a fixed number of platform threads. The multi-release
+ * jar replaces it on Java 21 and later with one that starts a virtual thread per call.
+ */
+final class TwilioExecutors {
+
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    private TwilioExecutors() {
+    }
+
+    /**
+     * Create a pool running at most {@code threads} calls at a time and holding at most {@code queueSize} more.
+     * Further submissions are rejected with a {@link RejectedExecutionException}.
+     *
+     * @param name The prefix of the names of the threads.
+     * @param threads The maximum number of calls running at a time.
+     * @param queueSize The maximum number of calls waiting to run.
+     * @return The pool.
+     */
+    static ExecutorService newExecutor(String name, int threads, int queueSize) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                                         new ArrayBlockingQueue<>(queueSize), runnable -> {
+            Thread thread = new Thread(runnable, name + THREAD_COUNT.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * @return Whether the calls run on virtual threads.
+     */
+    static boolean isVirtual() {
+        return false;
+    }
+}
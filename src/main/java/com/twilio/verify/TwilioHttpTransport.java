@@ -0,0 +1,302 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2018 ForgeRock AS.
+ */
+
+
+package com.twilio.verify;
+
+import com.twilio.exception.ApiException;
+import com.twilio.http.HttpClient;
+import com.twilio.http.HttpMethod;
+import com.twilio.http.NetworkHttpClient;
+import com.twilio.http.Request;
+import com.twilio.http.Response;
+import org.apache.http.Header;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HTTP;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * The HTTP transport used by every Twilio client of the plugin.
+ * <p>
+ * Requests are sent over a bounded pool of keep-alive connections, so that TLS handshakes happen once per pooled
+ * connection instead of on the authentication hot path. Pool size, timeouts and idle eviction come from
+ * {@link TwilioVerifyService}. The transport can be reconfigured at runtime; clients built on it pick up the new
+ * settings without being rebuilt.
+ * <p>
+ * Requests made within {@link #withDeadline(long, Supplier)} have their timeouts cut down to the time left until the
+ * deadline, and fail without being sent once it has passed. Connection failures and timeouts of such requests once the
+ * deadline has passed throw {@link JourneyBudgetException}, so that they are not mistaken for Twilio failures.
+ */
+@Singleton
+public class TwilioHttpTransport extends HttpClient {
+
+    private static final ThreadLocal<Long> DEADLINE = new ThreadLocal<>();
+
+    private final Logger logger = LoggerFactory.getLogger(TwilioHttpTransport.class);
+    private final String loggerPrefix = "[Twilio HTTP Transport][Partner] ";
+    private volatile Pool pool;
+
+    /**
+     * Create the transport with default settings.
+     */
+    @Inject
+    public TwilioHttpTransport() {
+        this.pool = new Pool(TwilioVerifyService.DEFAULTS, null);
+    }
+
+    /**
+     * Apply new settings. In flight requests complete on the previous pool, which is then closed.
+     *
+     * @param settings The plugin settings.
+     */
+    public void configure(TwilioVerifyService settings) {
+        configure(settings, null);
+    }
+
+    /**
+     * Apply new settings, trusting connections established with the given SSL context. Used to point the plugin at
+     * a local HTTPS stand-in for Twilio.
+     *
+     * @param settings The plugin settings.
+     * @param sslContext The SSL context, or {@code null} for the JVM default.
+     */
+    void configure(TwilioVerifyService settings, SSLContext sslContext) {
+        Pool previous = pool;
+        pool = new Pool(settings, sslContext);
+        previous.closeAfter(previous.socketTimeout);
+        logger.debug(loggerPrefix + "Configured pool of {} connections, {} per route", settings.maxConnections(),
+                     settings.maxConnectionsPerRoute());
+    }
+
+    /**
+     * Close all pooled connections and stop the idle connection evictor.
+     */
+    public void shutdown() {
+        pool.close();
+    }
+
+    /**
+     * The current connection pool statistics.
+     *
+     * @return The pool statistics.
+     */
+    public PoolStats getPoolStats() {
+        return pool.connectionManager.getTotalStats();
+    }
+
+    /**
+     * Make Twilio calls on the current thread with timeouts no longer than the time left until a deadline.
+     *
+     * @param deadline The deadline, in {@link System#nanoTime()} nanoseconds.
+     * @param call The calls.
+     * @param <T> The type of the call result.
+     * @return The result of the calls.
+     */
+    public static <T> T withDeadline(long deadline, Supplier<T> call) {
+        Long previous = DEADLINE.get();
+        DEADLINE.set(previous == null ? deadline : Math.min(previous, deadline));
+        try {
+            return call.get();
+        } finally {
+            if (previous == null) {
+                DEADLINE.remove();
+            } else {
+                DEADLINE.set(previous);
+            }
+        }
+    }
+
+    /**
+     * The Twilio client retries server errors of every request. A code check that got one may still have used up an
+     * attempt of the verification or approved the code, so it is sent only once and {@link TwilioRetrier} decides
+     * whether it can be retried.
+     */
+    @Override
+    public Response reliableRequest(Request request) {
+        if (isVerificationCheck(request)) {
+            return makeRequest(request);
+        }
+        return super.reliableRequest(request);
+    }
+
+    @Override
+    public Response makeRequest(Request request) {
+        Pool current = pool;
+        try {
+            return current.client.makeRequest(current.rewrite(request));
+        } catch (ApiException e) {
+            Long deadline = DEADLINE.get();
+            if (e.getStatusCode() == null && deadline != null && deadline - System.nanoTime() <= 0) {
+                throw new JourneyBudgetException("Journey latency budget ran out during the call", e);
+            }
+            throw e;
+        }
+    }
+
+    private static boolean isVerificationCheck(Request request) {
+        return request.getMethod() == HttpMethod.POST && request.getUrl().endsWith("/VerificationCheck");
+    }
+
+    private static final class Pool {
+        private final PoolingHttpClientConnectionManager connectionManager;
+        private final ScheduledExecutorService evictor;
+        private final NetworkHttpClient client;
+        private final long socketTimeout;
+        private final String baseUrl;
+
+        private Pool(TwilioVerifyService settings, SSLContext sslContext) {
+            socketTimeout = settings.socketTimeout();
+            String base = settings.apiBaseUrl() == null ? "" : settings.apiBaseUrl().trim();
+            baseUrl = base.isEmpty() ? null : base.endsWith("/") ? base.substring(0, base.length() - 1) : base;
+            SSLConnectionSocketFactory sslSocketFactory = sslContext == null
+                    ? SSLConnectionSocketFactory.getSocketFactory()
+                    : new SSLConnectionSocketFactory(sslContext);
+            connectionManager = new PoolingHttpClientConnectionManager(
+                    RegistryBuilder.<ConnectionSocketFactory>create()
+                                   .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                                   .register("https", sslSocketFactory)
+                                   .build());
+            connectionManager.setMaxTotal(settings.maxConnections());
+            connectionManager.setDefaultMaxPerRoute(settings.maxConnectionsPerRoute());
+            connectionManager.setValidateAfterInactivity(2000);
+
+            RequestConfig requestConfig = RequestConfig.custom()
+                                                       .setConnectTimeout(settings.connectTimeout())
+                                                       .setSocketTimeout(settings.socketTimeout())
+                                                       .setConnectionRequestTimeout(settings.connectionRequestTimeout())
+                                                       .build();
+            long keepAlive = settings.keepAlive();
+            HttpClientBuilder builder = HttpClientBuilder.create()
+                                                         .useSystemProperties()
+                                                         .setConnectionManager(connectionManager)
+                                                         .setDefaultRequestConfig(requestConfig)
+                                                         .addInterceptorLast(DEADLINE_TIMEOUTS)
+                                                         .setKeepAliveStrategy((response, context) -> {
+                                                             long serverKeepAlive = keepAliveFromHeader(response);
+                                                             return serverKeepAlive > 0 ? serverKeepAlive : keepAlive;
+                                                         });
+            client = new NetworkHttpClient(builder);
+
+            long idleTimeout = settings.idleConnectionTimeout();
+            evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "twilio-connection-evictor");
+                thread.setDaemon(true);
+                return thread;
+            });
+            evictor.scheduleWithFixedDelay(() -> {
+                connectionManager.closeExpiredConnections();
+                connectionManager.closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+            }, settings.evictionInterval(), settings.evictionInterval(), TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Cuts the timeouts of a request down to the time left until the deadline of the calling thread, if any.
+         * Request interceptors run before the connection is leased, so the connection pool, connect and socket
+         * timeouts are all taken from the adjusted configuration.
+         */
+        private static final HttpRequestInterceptor DEADLINE_TIMEOUTS = (request, context) -> {
+            Long deadline = DEADLINE.get();
+            if (deadline == null) {
+                return;
+            }
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                throw new IOException("Journey latency budget is spent");
+            }
+            int left = (int) Math.min(remaining, Integer.MAX_VALUE);
+            HttpClientContext clientContext = HttpClientContext.adapt(context);
+            RequestConfig config = clientContext.getRequestConfig();
+            clientContext.setRequestConfig(RequestConfig.copy(config)
+                                                        .setConnectTimeout(cap(config.getConnectTimeout(), left))
+                                                        .setSocketTimeout(cap(config.getSocketTimeout(), left))
+                                                        .setConnectionRequestTimeout(
+                                                                cap(config.getConnectionRequestTimeout(), left))
+                                                        .build());
+        };
+
+        private static int cap(int timeout, int remaining) {
+            return timeout <= 0 ? remaining : Math.min(timeout, remaining);
+        }
+
+        private static long keepAliveFromHeader(HttpResponse response) {
+            Header header = response.getFirstHeader(HTTP.CONN_KEEP_ALIVE);
+            if (header == null || header.getValue() == null) {
+                return -1;
+            }
+            for (String element : header.getValue().split(",")) {
+                String[] parameter = element.trim().split("=", 2);
+                if (parameter.length == 2 && "timeout".equalsIgnoreCase(parameter[0].trim())) {
+                    try {
+                        return Long.parseLong(parameter[1].trim()) * 1000;
+                    } catch (NumberFormatException e) {
+                        return -1;
+                    }
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Send a request for a Twilio host to the configured base URL instead, keeping its path, parameters and
+         * credentials.
+         */
+        private Request rewrite(Request request) {
+            if (baseUrl == null) {
+                return request;
+            }
+            String url = request.getUrl();
+            int path = url.indexOf('/', url.indexOf("://") + 3);
+            Request rewritten = new Request(request.getMethod(), path < 0 ? baseUrl : baseUrl + url.substring(path));
+            if (request.requiresAuthentication()) {
+                rewritten.setAuth(request.getUsername(), request.getPassword());
+            }
+            request.getQueryParams().forEach((name, values) -> values.forEach(
+                    value -> rewritten.addQueryParam(name, value)));
+            request.getPostParams().forEach((name, values) -> values.forEach(
+                    value -> rewritten.addPostParam(name, value)));
+            return rewritten;
+        }
+
+        private void closeAfter(long delay) {
+            evictor.schedule(this::close, delay, TimeUnit.MILLISECONDS);
+        }
+
+        private void close() {
+            evictor.shutdownNow();
+            connectionManager.shutdown();
+        }
+    }
+}
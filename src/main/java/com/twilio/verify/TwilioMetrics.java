@@ -0,0 +1,189 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2018 ForgeRock AS.
+ */
+
+package com.twilio.verify;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricRegistryListener;
+import com.codahale.metrics.Timer;
+import com.twilio.exception.ApiException;
+import org.forgerock.openam.auth.node.api.Action;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Latency and outcome metrics of the nodes. Records
+ * <ul>
+ *     <li>a latency {@link Timer} for every Twilio call, named after the node, endpoint, channel and status,</li>
+ *     <li>a {@link Counter} for every outcome a node takes, and</li>
+ *     <li>a {@link Gauge} of the number of calls in flight to each endpoint.</li>
+ * </ul>
+ * The metrics are held in a registry of their own. {@link TwilioMetricsPublisher} exposes them to AM monitoring.
+ */
+@Singleton
+public class TwilioMetrics {
+
+    /**
+     * Prefix of the names of all metrics.
+     */
+    static final String PREFIX = "twilio";
+
+    private final LongSupplier clock;
+    private final MetricRegistry registry = new MetricRegistry();
+    private final Map<TwilioEndpoint, AtomicInteger> inFlight = new EnumMap<>(TwilioEndpoint.class);
+
+    /**
+     * Create the metrics.
+     */
+    @Inject
+    public TwilioMetrics() {
+        this(System::nanoTime);
+    }
+
+    TwilioMetrics(LongSupplier clock) {
+        this.clock = clock;
+        for (TwilioEndpoint endpoint : TwilioEndpoint.values()) {
+            AtomicInteger calls = new AtomicInteger();
+            inFlight.put(endpoint, calls);
+            registry.register(name("inflight", endpoint.endpointName()), (Gauge<Integer>) calls::get);
+        }
+    }
+
+    /**
+     * Make a Twilio call, recording how long it took and counting it as in flight meanwhile.
+     *
+     * @param node The name of the calling node.
+     * @param endpoint The endpoint being called.
+     * @param channel The channel of the verification, the kind of lookup, or null when the call has none.
+     * @param call The call.
+     * @param <T> The type of the call result.
+     * @return The result of the call.
+     */
+    public <T> T time(String node, TwilioEndpoint endpoint, String channel, Supplier<T> call) {
+        AtomicInteger calls = inFlight.get(endpoint);
+        calls.incrementAndGet();
+        long start = clock.getAsLong();
+        String status = "error";
+        try {
+            T result = call.get();
+            status = "success";
+            return result;
+        } catch (RuntimeException e) {
+            status = status(e);
+            throw e;
+        } finally {
+            calls.decrementAndGet();
+            registry.timer(name("call", node, endpoint.endpointName(), channel, status))
+                    .update(clock.getAsLong() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Count the outcome of an action taken by a node. Actions that only send callbacks are not counted.
+     *
+     * @param node The name of the node.
+     * @param action The action.
+     * @return The action.
+     */
+    public Action outcome(String node, Action action) {
+        if (action.outcome != null) {
+            registry.counter(name("outcome", node, action.outcome)).inc();
+        }
+        return action;
+    }
+
+    /**
+     * The number of calls currently in flight to an endpoint.
+     *
+     * @param endpoint The endpoint.
+     * @return The number of calls.
+     */
+    public int getInFlight(TwilioEndpoint endpoint) {
+        return inFlight.get(endpoint).get();
+    }
+
+    /**
+     * The number of times a node took an outcome.
+     *
+     * @param node The name of the node.
+     * @param outcome The outcome.
+     * @return The count.
+     */
+    public long getOutcomeCount(String node, String outcome) {
+        Counter count = registry.getCounters().get(name("outcome", node, outcome));
+        return count == null ? 0 : count.getCount();
+    }
+
+    /**
+     * The timer of calls made by a node that ended with a status, if any such call was made.
+     *
+     * @param node The name of the node.
+     * @param endpoint The endpoint.
+     * @param channel The channel, or null for calls that have none.
+     * @param status The status, {@code success}, {@code unavailable}, the HTTP status or {@code error}.
+     * @return The timer or null.
+     */
+    public Timer getTimer(String node, TwilioEndpoint endpoint, String channel, String status) {
+        return registry.getTimers().get(name("call", node, endpoint.endpointName(), channel, status));
+    }
+
+    /**
+     * Tell a listener about every metric, those that already exist and those created from now on.
+     *
+     * @param listener The listener.
+     */
+    public void addListener(MetricRegistryListener listener) {
+        registry.addListener(listener);
+    }
+
+    /**
+     * Stop telling a listener about new metrics.
+     *
+     * @param listener The listener.
+     */
+    public void removeListener(MetricRegistryListener listener) {
+        registry.removeListener(listener);
+    }
+
+    private static String status(RuntimeException e) {
+        if (e instanceof TwilioUnavailableException) {
+            return "unavailable";
+        }
+        if (e instanceof ApiException && ((ApiException) e).getStatusCode() != null) {
+            return String.valueOf(((ApiException) e).getStatusCode());
+        }
+        return "error";
+    }
+
+    private static String name(String... parts) {
+        StringBuilder name = new StringBuilder(PREFIX);
+        for (String part : parts) {
+            if (part != null) {
+                name.append('.').append(part.toLowerCase());
+            }
+        }
+        return name.toString();
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2018 ForgeRock AS.
+ */
+
+package com.twilio.verify;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricRegistryListener;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Publishes {@link TwilioMetrics} to the metric registry of AM monitoring, from which the REST and Prometheus
+ * monitoring endpoints are served. This is the only class depending on where that registry comes from.
+ * <p>
+ * The registry is looked up by name among the shared Dropwizard registries, and never created, so the metrics are
+ * either published where AM monitoring reads them or not at all. AM does not always set a default shared registry,
+ * so when no registry resolves a warning naming the registries that do exist is logged at startup.
+ */
+@Singleton
+public class TwilioMetricsPublisher extends MetricRegistryListener.Base {
+
+    private final Logger logger = LoggerFactory.getLogger(TwilioMetricsPublisher.class);
+    private final String loggerPrefix = "[Twilio Verify Plugin][Partner] ";
+    private final TwilioMetrics metrics;
+    private volatile MetricRegistry registry;
+
+    /**
+     * Create the publisher.
+     *
+     * @param metrics The metrics to publish.
+     */
+    @Inject
+    public TwilioMetricsPublisher(TwilioMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Start publishing the existing metrics and those created from now on to the shared registry with a name.
+     *
+     * @param registryName The name of the shared registry of AM monitoring, or blank for the default shared registry.
+     * @return Whether the metrics are published.
+     */
+    public boolean start(String registryName) {
+        MetricRegistry resolved = resolve(registryName);
+        if (resolved == null) {
+            stop();
+            logger.warn(loggerPrefix + "{} shared metric registry not found, Twilio metrics will not be published. "
+                                + "Set the Metric Registry of the Twilio Verify service to one of {}",
+                        isBlank(registryName) ? "Default" : "'" + registryName.trim() + "'",
+                        SharedMetricRegistries.names());
+            return false;
+        }
+        start(resolved);
+        return true;
+    }
+
+    /**
+     * Start publishing the existing metrics and those created from now on.
+     *
+     * @param registry The registry to publish to, or null when AM monitoring is not available.
+     */
+    synchronized void start(MetricRegistry registry) {
+        stop();
+        if (registry == null) {
+            logger.info(loggerPrefix + "AM monitoring registry not found, Twilio metrics will not be published");
+            return;
+        }
+        this.registry = registry;
+        metrics.addListener(this);
+    }
+
+    /**
+     * Stop publishing and remove the published metrics from the registry.
+     */
+    public synchronized void stop() {
+        metrics.removeListener(this);
+        if (registry != null) {
+            registry.removeMatching((name, metric) -> name.startsWith(TwilioMetrics.PREFIX + "."));
+            registry = null;
+        }
+    }
+
+    @Override
+    public void onGaugeAdded(String name, Gauge<?> gauge) {
+        register(name, gauge);
+    }
+
+    @Override
+    public void onCounterAdded(String name, Counter counter) {
+        register(name, counter);
+    }
+
+    @Override
+    public void onTimerAdded(String name, Timer timer) {
+        register(name, timer);
+    }
+
+    private void register(String name, Metric metric) {
+        MetricRegistry target = registry;
+        if (target == null) {
+            return;
+        }
+        target.remove(name);
+        try {
+            target.register(name, metric);
+        } catch (IllegalArgumentException e) {
+            logger.debug(loggerPrefix + "Metric {} is already registered", name);
+        }
+    }
+
+    private static MetricRegistry resolve(String registryName) {
+        if (isBlank(registryName)) {
+            return SharedMetricRegistries.tryGetDefault();
+        }
+        return SharedMetricRegistries.names().contains(registryName.trim())
+                ? SharedMetricRegistries.getOrCreate(registryName.trim()) : null;
+    }
+
+    private static boolean isBlank(String registryName) {
+        return registryName == null || registryName.trim().isEmpty();
+    }
+}
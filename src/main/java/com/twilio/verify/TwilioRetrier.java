@@ -0,0 +1,139 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2018 ForgeRock AS.
+ */
+
+
+package com.twilio.verify;
+
+import org.apache.http.conn.ConnectTimeoutException;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.net.ConnectException;
+import java.net.UnknownHostException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Retries Twilio calls that failed for a transient reason.
+ * <p>
+ * Attempts are spaced by an exponential backoff with full jitter, and no attempt is started once the deadline of the
+ * call has passed. Calls are assumed not to be idempotent, as verification checks use up an attempt and fail with Not
+ * Found once approved, so they are only retried when Twilio cannot have processed the request: it was throttled or no
+ * connection was made. Client errors and calls refused by the {@link TwilioCallGuard} fail immediately.
+ */
+@Singleton
+public class TwilioRetrier {
+
+    /**
+     * Create the retrier.
+     */
+    @Inject
+    public TwilioRetrier() {
+    }
+
+    /**
+     * Make a call, retrying it according to a policy.
+     *
+     * @param policy The retry policy.
+     * @param call The call.
+     * @param <T> The type of the call result.
+     * @return The result of the first successful attempt.
+     * @throws RuntimeException The failure of the last attempt.
+     */
+    public <T> T call(Policy policy, Supplier<T> call) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(policy.deadline);
+        long backoff = policy.initialBackoff;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return call.get();
+            } catch (RuntimeException e) {
+                if (attempt >= policy.maxAttempts || !isUnprocessed(e)) {
+                    throw e;
+                }
+                long sleep = ThreadLocalRandom.current().nextLong(backoff + 1);
+                if (System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(sleep) >= deadline) {
+                    throw e;
+                }
+                pause(sleep, e);
+                backoff = Math.min(backoff * 2, policy.maxBackoff);
+            }
+        }
+    }
+
+    /**
+     * Whether a failed call was certainly not processed by Twilio, so that making it again cannot repeat its effect.
+     *
+     * @param e The failure.
+     * @return Whether the call may be made again even if it is not idempotent.
+     */
+    public static boolean isUnprocessed(Throwable e) {
+        if (e instanceof TwilioUnavailableException) {
+            return false;
+        }
+        if (TwilioError.classify(e) == TwilioError.RATE_LIMITED) {
+            return true;
+        }
+        for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+            if (cause instanceof ConnectException || cause instanceof ConnectTimeoutException
+                    || cause instanceof UnknownHostException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void pause(long millis, RuntimeException failure) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw failure;
+        }
+    }
+
+    /**
+     * How a call is retried.
+     */
+    public static final class Policy {
+
+        private final int maxAttempts;
+        private final long initialBackoff;
+        private final long maxBackoff;
+        private final long deadline;
+
+        private Policy(int maxAttempts, long initialBackoff, long maxBackoff, long deadline) {
+            this.maxAttempts = Math.max(1, maxAttempts);
+            this.initialBackoff = Math.max(0, initialBackoff);
+            this.maxBackoff = Math.max(this.initialBackoff, maxBackoff);
+            this.deadline = Math.max(0, deadline);
+        }
+
+        /**
+         * Create a policy for a call that is not idempotent. It is only retried when Twilio cannot have processed it.
+         *
+         * @param maxAttempts The maximum number of attempts, including the first.
+         * @param initialBackoff The upper bound in milliseconds of the pause before the first retry. The bound
+         *                       doubles on each retry.
+         * @param maxBackoff The largest upper bound in milliseconds of the pause between attempts.
+         * @param deadline Milliseconds after which no further attempt is made.
+         * @return The policy.
+         */
+        public static Policy nonIdempotent(int maxAttempts, long initialBackoff, long maxBackoff, long deadline) {
+            return new Policy(maxAttempts, initialBackoff, maxBackoff, deadline);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2018 ForgeRock AS.
+ */
+
+
+package com.twilio.verify;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * Bounded pool of threads on which Twilio calls can run off the AM request thread.
+ * <p>
+ * The pool runs a fixed number of calls at a time and has a bounded queue. When both are full, submissions are
+ * rejected with a {@link RejectedExecutionException} and callers are expected to fall back to calling Twilio directly.
+ * The calls run on platform threads, or on virtual threads on Java 21 and later, see {@link TwilioExecutors}.
+ */
+@Singleton
+public class TwilioTaskExecutor {
+
+    private static final String THREAD_NAME = "twilio-task-";
+    private volatile ExecutorService executor;
+
+    /**
+     * Create the executor with default settings.
+     */
+    @Inject
+    public TwilioTaskExecutor() {
+        this.executor = TwilioExecutors.newExecutor(THREAD_NAME, TwilioVerifyService.DEFAULTS.executorThreads(),
+                                                    TwilioVerifyService.DEFAULTS.executorQueueSize());
+    }
+
+    /**
+     * Apply new pool settings. Tasks already submitted complete on the previous pool.
+     *
+     * @param settings The plugin settings.
+     */
+    public void configure(TwilioVerifyService settings) {
+        ExecutorService previous = executor;
+        executor = TwilioExecutors.newExecutor(THREAD_NAME, settings.executorThreads(), settings.executorQueueSize());
+        previous.shutdown();
+    }
+
+    /**
+     * Run a task on the pool.
+     *
+     * @param task The task.
+     * @param <T> The type of the task result.
+     * @return A future completed with the result of the task.
+     * @throws RejectedExecutionException If the pool and its queue are full.
+     */
+    public <T> CompletableFuture<T> submit(Supplier<T> task) {
+        return CompletableFuture.supplyAsync(task, executor);
+    }
+
+    /**
+     * Stop the pool, interrupting running tasks.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2018 ForgeRock AS.
+ */
+
+
+package com.twilio.verify;
+
+import org.forgerock.openam.annotations.sm.Attribute;
+import org.forgerock.openam.annotations.sm.Config;
+import org.forgerock.openam.sm.annotations.adapters.Password;
+
+/**
+ * Plugin wide settings shared by all Twilio nodes. The service is installed by {@link VerifyAuthNodePlugin} and read
+ * from the root realm on startup; if it has not been added there, the defaults below apply. The prewarm credentials
+ * are read from the realm a {@link CarrierLookupPrewarm} job is started for.
+ */
+@Config(scope = Config.Scope.REALM)
+public interface TwilioVerifyService {
+
+    /**
+     * Default settings, used when the service has not been configured.
+     */
+    TwilioVerifyService DEFAULTS = new TwilioVerifyService() { };
+
+    /**
+     * The maximum number of pooled connections to Twilio across all hosts.
+     */
+    @Attribute(order = 100)
+    default int maxConnections() {
+        return 50;
+    }
+
+    /**
+     * The maximum number of pooled connections to a single Twilio host, such as verify.twilio.com.
+     */
+    @Attribute(order = 200)
+    default int maxConnectionsPerRoute() {
+        return 25;
+    }
+
+    /**
+     * Milliseconds to wait for a TCP and TLS connection to be established.
+     */
+    @Attribute(order = 300)
+    default int connectTimeout() {
+        return 5000;
+    }
+
+    /**
+     * Milliseconds to wait for data from Twilio on an established connection.
+     */
+    @Attribute(order = 400)
+    default int socketTimeout() {
+        return 10000;
+    }
+
+    /**
+     * Milliseconds to wait for a free connection when the pool is exhausted.
+     */
+    @Attribute(order = 500)
+    default int connectionRequestTimeout() {
+        return 2000;
+    }
+
+    /**
+     * Milliseconds to keep an idle connection alive when Twilio does not send a Keep-Alive header.
+     */
+    @Attribute(order = 600)
+    default int keepAlive() {
+        return 60000;
+    }
+
+    /**
+     * Milliseconds after which idle pooled connections are closed by the evictor.
+     */
+    @Attribute(order = 700)
+    default int idleConnectionTimeout() {
+        return 30000;
+    }
+
+    /**
+     * Milliseconds between runs of the idle connection evictor.
+     */
+    @Attribute(order = 800)
+    default int evictionInterval() {
+        return 10000;
+    }
+
+    /**
+     * The maximum number of phone numbers kept in the carrier lookup cache.
+     */
+    @Attribute(order = 900)
+    default int lookupCacheMaxEntries() {
+        return 10000;
+    }
+
+    /**
+     * The maximum number of identity attribute values kept in the identifier cache.
+     */
+    @Attribute(order = 1000)
+    default int identityCacheMaxEntries() {
+        return 10000;
+    }
+
+    /**
+     * The number of threads used to call Twilio in the background, or of background calls running at a time on
+     * virtual threads.
+     */
+    @Attribute(order = 1100)
+    default int executorThreads() {
+        return 16;
+    }
+
+    /**
+     * The number of background Twilio calls that can wait for a free thread.
+     */
+    @Attribute(order = 1200)
+    default int executorQueueSize() {
+        return 256;
+    }
+
+    /**
+     * The number of recent calls to each Twilio endpoint considered by its circuit breaker.
+     */
+    @Attribute(order = 1300)
+    default int circuitBreakerWindowSize() {
+        return 20;
+    }
+
+    /**
+     * The number of calls that must be recorded before a circuit breaker can open.
+     */
+    @Attribute(order = 1400)
+    default int circuitBreakerMinimumCalls() {
+        return 10;
+    }
+
+    /**
+     * The percentage of failed calls at which a circuit breaker opens.
+     */
+    @Attribute(order = 1500)
+    default int circuitBreakerFailureRate() {
+        return 50;
+    }
+
+    /**
+     * Milliseconds after which a call counts as slow.
+     */
+    @Attribute(order = 1600)
+    default int circuitBreakerSlowCallDuration() {
+        return 3000;
+    }
+
+    /**
+     * The percentage of slow calls at which a circuit breaker opens.
+     */
+    @Attribute(order = 1700)
+    default int circuitBreakerSlowCallRate() {
+        return 80;
+    }
+
+    /**
+     * Milliseconds a circuit breaker stays open before probing Twilio again.
+     */
+    @Attribute(order = 1800)
+    default int circuitBreakerOpenDuration() {
+        return 30000;
+    }
+
+    /**
+     * The number of probe calls that must succeed to close a circuit breaker again.
+     */
+    @Attribute(order = 1900)
+    default int circuitBreakerHalfOpenCalls() {
+        return 3;
+    }
+
+    /**
+     * The maximum number of Twilio calls in flight across the plugin.
+     */
+    @Attribute(order = 2000)
+    default int maxConcurrentCalls() {
+        return 64;
+    }
+
+    /**
+     * Milliseconds to wait for a free slot when the maximum number of Twilio calls are in flight.
+     */
+    @Attribute(order = 2100)
+    default int bulkheadWait() {
+        return 0;
+    }
+
+    /**
+     * The maximum number of identifiers tracked by the send throttle.
+     */
+    @Attribute(order = 2200)
+    default int throttleMaxEntries() {
+        return 100000;
+    }
+
+    /**
+     * The maximum number of identifiers recorded by the pending verification store.
+     */
+    @Attribute(order = 2300)
+    default int pendingStoreMaxEntries() {
+        return 100000;
+    }
+
+    /**
+     * Base URL to send Twilio API requests to instead of the Twilio hosts, for testing against a local stand-in.
+     * Empty to call Twilio.
+     */
+    @Attribute(order = 2400)
+    default String apiBaseUrl() {
+        return "";
+    }
+
+    /**
+     * Milliseconds during which errors similar to one just logged are counted instead of logged.
+     */
+    @Attribute(order = 2500)
+    default int errorLogInterval() {
+        return 10000;
+    }
+
+    /**
+     * Milliseconds a journey may spend from its first Twilio node before the nodes stop calling Twilio, or 0 for no
+     * limit.
+     */
+    @Attribute(order = 2600)
+    default int journeyBudget() {
+        return 0;
+    }
+
+    /**
+     * Whether pending verifications and send throttle buckets are kept in the Core Token Service, shared by all AM
+     * servers, instead of in memory.
+     */
+    @Attribute(order = 2700)
+    default boolean clusterStore() {
+        return false;
+    }
+
+    /**
+     * Name of the shared metric registry of AM monitoring the node metrics are published to, or blank for the default
+     * shared registry.
+     */
+    @Attribute(order = 2800)
+    default String metricRegistry() {
+        return "";
+    }
+
+    /**
+     * The Twilio account the carrier lookup prewarm job started for this realm makes its lookups with.
+     */
+    @Attribute(order = 2900)
+    default String prewarmAccountSID() {
+        return "";
+    }
+
+    /**
+     * The auth token of the prewarm account, or empty to use the client of a Lookup node already run with it.
+     */
+    @Attribute(order = 3000)
+    @Password
+    default char[] prewarmAuthToken() {
+        return new char[0];
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2018 ForgeRock AS.
+ */
+
+
+package com.twilio.verify;
+
+import com.twilio.rest.verify.v2.service.Verification;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Sends verifications in the background for {@link VerifyAuthSenderNode} and keeps track of the pending results.
+ * <p>
+ * Each dispatch is identified by a handle that the sender stores in shared state, so that
+ * {@link VerifyAuthCollectorDecisionNode} can wait for the send, or find out that it failed, before checking the code.
+ * Results are kept for a few minutes after they complete.
+ */
+@Singleton
+public class VerificationDispatcher {
+
+    private static final long RETENTION = TimeUnit.MINUTES.toNanos(10);
+    private static final int PURGE_INTERVAL = 256;
+
+    private final TwilioTaskExecutor executor;
+    private final ConcurrentMap<String, Dispatch> dispatches = new ConcurrentHashMap<>();
+    private final AtomicInteger dispatchCount = new AtomicInteger();
+
+    /**
+     * Create the dispatcher.
+     *
+     * @param executor The executor on which verifications are sent.
+     */
+    @Inject
+    public VerificationDispatcher(TwilioTaskExecutor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Send a verification in the background.
+     *
+     * @param send The call creating the verification.
+     * @return The handle of the dispatch.
+     * @throws RejectedExecutionException If the executor is saturated.
+     */
+    public String dispatch(Supplier<Verification> send) {
+        if (dispatchCount.incrementAndGet() % PURGE_INTERVAL == 0) {
+            purge();
+        }
+        String handle = UUID.randomUUID().toString();
+        dispatches.put(handle, new Dispatch(executor.submit(send)));
+        return handle;
+    }
+
+    /**
+     * Get the pending or completed result of a dispatch.
+     *
+     * @param handle The handle returned by {@link #dispatch(Supplier)}.
+     * @return The result, or empty if the handle is unknown on this server or has expired.
+     */
+    public Optional<CompletableFuture<Verification>> get(String handle) {
+        if (handle == null) {
+            return Optional.empty();
+        }
+        return Optional.ofNullable(dispatches.get(handle)).map(dispatch -> dispatch.result);
+    }
+
+    private void purge() {
+        long now = System.nanoTime();
+        dispatches.values().removeIf(dispatch -> dispatch.result.isDone() && now - dispatch.createdAt > RETENTION);
+    }
+
+    private static final class Dispatch {
+        private final CompletableFuture<Verification> result;
+        private final long createdAt = System.nanoTime();
+
+        private Dispatch(CompletableFuture<Verification> result) {
+            this.result = result;
+        }
+    }
+}
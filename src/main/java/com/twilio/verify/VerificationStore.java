@@ -0,0 +1,81 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2018 ForgeRock AS.
+ */
+
+
+package com.twilio.verify;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Optional;
+
+/**
+ * Store of the short-lived state the nodes keep about the identifiers they send verifications to, such as the
+ * verifications still pending and the send throttle buckets.
+ * <p>
+ * {@link InMemoryVerificationStore} keeps the state on the AM server that wrote it, and {@link CtsVerificationStore}
+ * shares it across the servers of a cluster through the Core Token Service. Entries are small strings under keys built
+ * by {@link #key(String, String, String)}, which never contain the identifier itself.
+ */
+public interface VerificationStore {
+
+    /**
+     * Get the value of an entry that has not expired.
+     *
+     * @param key The key of the entry.
+     * @return The value, or empty if there is none.
+     */
+    Optional<String> get(String key);
+
+    /**
+     * Create or replace an entry.
+     *
+     * @param key The key of the entry.
+     * @param value The value.
+     * @param timeToLive Milliseconds after which the entry expires.
+     */
+    void put(String key, String value, long timeToLive);
+
+    /**
+     * Remove an entry, if there is one.
+     *
+     * @param key The key of the entry.
+     */
+    void remove(String key);
+
+    /**
+     * Build the key of an entry. The identifier is hashed, so that phone numbers and email addresses are not written
+     * to the store in clear.
+     *
+     * @param kind A short name for the kind of entry.
+     * @param scope What the entry belongs to besides the identifier, such as the Verify service SID.
+     * @param identifier The phone number or email address.
+     * @return The key.
+     */
+    static String key(String kind, String scope, String identifier) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(scope.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            byte[] hash = Arrays.copyOf(digest.digest(identifier.getBytes(StandardCharsets.UTF_8)), 18);
+            return "twilio-" + kind + '-' + scope + '-' + Base64.getUrlEncoder().encodeToString(hash);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -20,6 +20,7 @@ package com.twilio.verify;
 import static org.forgerock.openam.auth.node.api.Action.send;
 
 import org.forgerock.openam.annotations.sm.Attribute;
+import org.forgerock.openam.sm.annotations.adapters.Password;
 import org.forgerock.openam.auth.node.api.AbstractDecisionNode;
 import org.forgerock.openam.auth.node.api.Action;
 import org.forgerock.openam.auth.node.api.Node;
@@ -27,20 +28,28 @@ import org.forgerock.openam.auth.node.api.TreeContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.CharMatcher;
 import com.google.common.base.Strings;
 import com.google.inject.assistedinject.Assisted;
+import com.twilio.http.TwilioRestClient;
+import com.twilio.rest.verify.v2.service.Verification;
 import com.twilio.rest.verify.v2.service.VerificationCheck;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Optional;
 import java.util.ResourceBundle;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import javax.inject.Inject;
 import javax.security.auth.callback.Callback;
 import javax.security.auth.callback.NameCallback;
 import javax.security.auth.callback.PasswordCallback;
 import javax.security.auth.callback.TextOutputCallback;
-import java.util.Arrays;
 import org.forgerock.util.i18n.PreferredLocales;
 import java.util.Collections;
 import org.forgerock.json.JsonValue;
@@ -55,9 +64,22 @@ import javax.security.auth.callback.ConfirmationCallback;
 public class VerifyAuthCollectorDecisionNode extends AbstractDecisionNode {
 
     private static final String BUNDLE = "com/twilio/verify/VerifyAuthCollectorDecisionNode";
+    static final String FAILED_ATTEMPTS = "twilioFailedAttempts";
+    static final String NODE_NAME = "collector";
+    private static final int MAX_PROMPTS = 32;
     private final Logger logger = LoggerFactory.getLogger(VerifyAuthCollectorDecisionNode.class);
-    private String loggerPrefix = "[Twilio Auth Collector Decision Node][Partner] ";
+    private final String loggerPrefix = "[Twilio Auth Collector Decision Node][Partner] ";
     private final Config config;
+    private final TwilioClientRegistry clientRegistry;
+    private final VerificationDispatcher dispatcher;
+    private final TwilioCallGuard callGuard;
+    private final TwilioRetrier retrier;
+    private final PendingVerificationStore pendingStore;
+    private final TwilioMetrics metrics;
+    private final TwilioErrorLog errorLog;
+    private final JourneyDeadline deadline;
+    private final String[] buttons;
+    private final ConcurrentMap<List<Locale>, CodePrompt> prompts = new ConcurrentHashMap<>();
 
 
     /**
@@ -103,6 +125,96 @@ public class VerifyAuthCollectorDecisionNode extends AbstractDecisionNode {
             return "next";
         }
 
+        /**
+         * Milliseconds to wait for a verification sent in the background to complete before checking the code.
+         */
+        @Attribute(order = 800)
+        default int sendTimeout() {
+            return 5000;
+        }
+
+        /**
+         * The maximum number of attempts to check the code when Twilio throttled the check or could not be reached.
+         */
+        @Attribute(order = 900)
+        default int checkAttempts() {
+            return 3;
+        }
+
+        /**
+         * Upper bound in milliseconds of the randomised pause before the first retry. It doubles on each retry.
+         */
+        @Attribute(order = 1000)
+        default int retryBackoff() {
+            return 200;
+        }
+
+        /**
+         * The largest upper bound in milliseconds of the randomised pause between two attempts.
+         */
+        @Attribute(order = 1100)
+        default int maxRetryBackoff() {
+            return 2000;
+        }
+
+        /**
+         * Milliseconds after which no further attempt to check the code is made.
+         */
+        @Attribute(order = 1200)
+        default int checkDeadline() {
+            return 5000;
+        }
+
+        /**
+         * The length of the codes issued by the Verify service, or 0 to accept any length.
+         */
+        @Attribute(order = 1300)
+        default int codeLength() {
+            return 0;
+        }
+
+        /**
+         * Reject codes containing anything other than digits without contacting Twilio.
+         */
+        @Attribute(order = 1400)
+        default boolean numericCode() {
+            return true;
+        }
+
+        /**
+         * The number of wrong codes allowed in a journey before the node locks, or 0 for no limit.
+         */
+        @Attribute(order = 1500)
+        default int maxFailedAttempts() {
+            return 0;
+        }
+
+        /**
+         * Whether errors reported by Twilio take the outcome of their {@link TwilioError} instead of the error outcome.
+         */
+        @Attribute(order = 1600)
+        default boolean errorOutcomes() {
+            return false;
+        }
+
+        /**
+         * The account SID the codes are checked with. Empty on nodes saved before it was added, which then use the
+         * client registered by the Sender node on this server.
+         */
+        @Attribute(order = 1700)
+        default String accountSID() {
+            return "";
+        }
+
+        /**
+         * The authentication token found in the Twilio account dashboard.
+         */
+        @Attribute(order = 1800)
+        @Password
+        default char[] authToken() {
+            return new char[0];
+        }
+
     }
 
 
@@ -111,19 +223,44 @@ public class VerifyAuthCollectorDecisionNode extends AbstractDecisionNode {
      * from the plugin.
      *
      * @param config The service config.
+     * @param clientRegistry The registry of shared Twilio clients.
+     * @param dispatcher The dispatcher tracking verifications sent in the background.
+     * @param callGuard The circuit breaker and bulkhead guarding Twilio calls.
+     * @param retrier The retrier for code checks that fail for a transient reason.
+     * @param pendingStore The store of verifications recently sent.
+     * @param metrics The latency and outcome metrics of the nodes.
+     * @param errorLog The log of the errors the nodes run into.
+     * @param deadline The latency budget of the journey.
      */
     @Inject
-    public VerifyAuthCollectorDecisionNode(@Assisted Config config) {
+    public VerifyAuthCollectorDecisionNode(@Assisted Config config, TwilioClientRegistry clientRegistry,
+                                           VerificationDispatcher dispatcher, TwilioCallGuard callGuard,
+                                           TwilioRetrier retrier, PendingVerificationStore pendingStore,
+                                           TwilioMetrics metrics, TwilioErrorLog errorLog,
+                                           JourneyDeadline deadline) {
         this.config = config;
+        this.clientRegistry = clientRegistry;
+        this.dispatcher = dispatcher;
+        this.callGuard = callGuard;
+        this.retrier = retrier;
+        this.pendingStore = pendingStore;
+        this.metrics = metrics;
+        this.errorLog = errorLog;
+        this.deadline = deadline;
+        this.buttons = buttons(config);
     }
 
     @Override
     public Action process(TreeContext context) {
+        return metrics.outcome(NODE_NAME, decide(context));
+    }
+
+    private Action decide(TreeContext context) {
         logger.debug(loggerPrefix + "Started");
         try {
             Optional<String> callbackCode;
             if (config.hideCode()) {
-                logger.debug(loggerPrefix+ "VerifyAuthCollectorDecision code is hidden");
+                logger.debug(loggerPrefix + "VerifyAuthCollectorDecision code is hidden");
                 callbackCode = context.getCallback(PasswordCallback.class).map(PasswordCallback::getPassword)
                                       .map(String::new);
             } else {
@@ -138,7 +275,7 @@ public class VerifyAuthCollectorDecisionNode extends AbstractDecisionNode {
               if (confirmationCallback.isPresent()) {
                   int index = confirmationCallback.get().getSelectedIndex();
                   if(index == 1) {
-                    return Action.goTo("resend").build();
+                    return resend(context);
                   }
                   else if(index==2) {
                     return Action.goTo("cancel").build();
@@ -147,7 +284,7 @@ public class VerifyAuthCollectorDecisionNode extends AbstractDecisionNode {
             }
             else if(config.showResendButton()) {
               if (confirmationCallback.isPresent() && confirmationCallback.get().getSelectedIndex() == 1) {
-                  return Action.goTo("resend").build();
+                  return resend(context);
               }
             }
             
@@ -157,61 +294,185 @@ public class VerifyAuthCollectorDecisionNode extends AbstractDecisionNode {
               }
             }
             
-            return callbackCode.filter(code -> !Strings.isNullOrEmpty(code))
-                               .map(code -> checkCode(context.sharedState.get(VerifyAuthSenderNode.SERVICE_SID).asString(), code,
-                                      context.sharedState.get(config.identifierSharedState()).asString()))
-                               .orElseGet(() -> collectCode(context));
+            Optional<CompletableFuture<Verification>> pendingSend = dispatcher.get(
+                    context.sharedState.get(VerifyAuthSenderNode.SEND_HANDLE).asString());
+            Optional<String> code = callbackCode.filter(value -> !Strings.isNullOrEmpty(value));
+            if (!code.isPresent()) {
+                if (pendingSend.isPresent() && pendingSend.get().isCompletedExceptionally()) {
+                    awaitSend(pendingSend.get(), deadline.budget(context.getStateFor(this)));
+                }
+                return collectCode(context);
+            }
+            if (config.maxFailedAttempts() > 0 && failedAttempts(context) >= config.maxFailedAttempts()) {
+                logger.debug(loggerPrefix + "Failed attempt budget spent");
+                return Action.goTo(OutcomeProvider.LOCKED_OUTCOME).build();
+            }
+            String submittedCode = CharMatcher.whitespace().removeFrom(code.get());
+            if (!isWellFormed(submittedCode)) {
+                logger.debug(loggerPrefix + "Code rejected without contacting Twilio");
+                return failedAttempt(context);
+            }
+            JourneyDeadline.Budget budget = deadline.budget(context.getStateFor(this));
+            budget.check();
+            if (pendingSend.isPresent()) {
+                awaitSend(pendingSend.get(), budget);
+            }
+            return checkCode(context, budget, context.sharedState.get(VerifyAuthSenderNode.SERVICE_SID).asString(),
+                             submittedCode, context.sharedState.get(config.identifierSharedState()).asString());
        } catch(Exception ex) {
-             logger.error(loggerPrefix + "Exception occurred" + ex.getMessage());
-             ex.printStackTrace();
-             context.sharedState.put("Exception", ex.toString());
-             return Action.goTo("error").build();
+             TwilioError error = errorLog.log(logger, loggerPrefix, ex);
+             context.getStateFor(this).putShared(TwilioError.STATE_KEY, error.name());
+             return Action.goTo(config.errorOutcomes() ? error.outcome(OutcomeProvider.ERROR_OUTCOME)
+                                                       : OutcomeProvider.ERROR_OUTCOME).build();
          }
     }
 
 
-    private Action checkCode(String verifySID, String code, String userIdentifier) {
-        VerificationCheck verification = VerificationCheck.creator(verifySID, code).setTo(userIdentifier).create();
+    /**
+     * Wait for a verification sent in the background, rethrowing the failure of the send if there was one.
+     */
+    private void awaitSend(CompletableFuture<Verification> pendingSend, JourneyDeadline.Budget budget)
+            throws Exception {
+        try {
+            pendingSend.get(budget.cap(config.sendTimeout()), TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            logger.debug(loggerPrefix + "Background verification send failed");
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    /**
+     * Whether the node has credentials of its own. Nodes saved before they were added fall back on the client the
+     * Sender node registered for its account on this server.
+     */
+    private boolean hasCredentials() {
+        char[] authToken = config.authToken();
+        return !Strings.isNullOrEmpty(config.accountSID()) && authToken != null && authToken.length > 0;
+    }
+
+    private Action checkCode(TreeContext context, JourneyDeadline.Budget budget, String verifySID, String code,
+                             String userIdentifier) {
+        boolean ownCredentials = hasCredentials();
+        String accountSID = ownCredentials
+                ? config.accountSID()
+                : context.sharedState.get(VerifyAuthSenderNode.ACCOUNT_SID).asString();
+        TwilioRestClient client = ownCredentials
+                ? clientRegistry.getClient(accountSID, config.authToken())
+                : clientRegistry.getClient(accountSID).orElseThrow(() -> new IllegalStateException(
+                        "No credentials configured and no Twilio client registered for account " + accountSID));
+        TwilioRetrier.Policy policy = TwilioRetrier.Policy.nonIdempotent(config.checkAttempts(), config.retryBackoff(),
+                                                                          config.maxRetryBackoff(),
+                                                                          budget.cap(config.checkDeadline()));
+        VerificationCheck verification = retrier.call(policy, () -> metrics.time(
+                NODE_NAME, TwilioEndpoint.VERIFICATION_CHECK, null, () -> callGuard.call(
+                        accountSID, TwilioEndpoint.VERIFICATION_CHECK,
+                        budget.bound(() -> VerificationCheck.creator(verifySID, code).setTo(userIdentifier)
+                                                         .create(client)))));
         logger.debug(loggerPrefix + "Verification Status: {}", verification.getStatus());
         if ("approved".equals(verification.getStatus())) {
+            if (context.sharedState.get(VerifyAuthSenderNode.REUSABLE).defaultTo(false).asBoolean()) {
+                pendingStore.remove(verifySID, userIdentifier);
+            }
             return Action.goTo("true").build();
         }
-        return Action.goTo("false").build();
+        return failedAttempt(context);
 
     }
 
+    /**
+     * Whether a code matches the length and characters of the codes issued by the Verify service.
+     */
+    private boolean isWellFormed(String code) {
+        if (code.isEmpty() || (config.codeLength() > 0 && code.length() != config.codeLength())) {
+            return false;
+        }
+        return !config.numericCode() || CharMatcher.inRange('0', '9').matchesAllOf(code);
+    }
+
+    private int failedAttempts(TreeContext context) {
+        return context.sharedState.get(FAILED_ATTEMPTS).defaultTo(0).asInteger();
+    }
+
+    /**
+     * Count a wrong code against the journey, locking it once the budget is spent.
+     */
+    private Action failedAttempt(TreeContext context) {
+        if (config.maxFailedAttempts() <= 0) {
+            return Action.goTo("false").build();
+        }
+        int failed = failedAttempts(context) + 1;
+        String outcome = failed >= config.maxFailedAttempts() ? OutcomeProvider.LOCKED_OUTCOME : "false";
+        context.getStateFor(this).putShared(FAILED_ATTEMPTS, failed);
+        return Action.goTo(outcome).build();
+    }
+
  
 
 
-    private Action collectCode(TreeContext context) {
-        ResourceBundle bundle = context.request.locales.getBundleInPreferredLocale(BUNDLE, getClass().getClassLoader());
-        List<Callback> callbacks = new ArrayList<Callback>() {{
-            add(new TextOutputCallback(TextOutputCallback.INFORMATION, bundle.getString("callback.text")));
-        }};
-        
-        if (config.hideCode()) {
-            callbacks.add(new PasswordCallback(bundle.getString("callback.code"), false));
-        } else {
-            callbacks.add(new NameCallback(bundle.getString("callback.code")));
+    /**
+     * Forget the verification already sent so that the sender node sends a new one.
+     */
+    private Action resend(TreeContext context) {
+        String serviceSID = context.sharedState.get(VerifyAuthSenderNode.SERVICE_SID).asString();
+        String identifier = context.sharedState.get(config.identifierSharedState()).asString();
+        if (serviceSID != null && identifier != null
+                && context.sharedState.get(VerifyAuthSenderNode.REUSABLE).defaultTo(false).asBoolean()) {
+            pendingStore.remove(serviceSID, identifier);
         }
-        if (config.showResendButton() && config.showCancelButton()) {
-          ConfirmationCallback confirmationCallbackResendCancel = new ConfirmationCallback(ConfirmationCallback.INFORMATION, new String[] {config.nextButtonText(), config.resendButtonText(), config.cancelButtonText()}, 1);
+        return Action.goTo("resend").build();
+    }
 
-          callbacks.add(confirmationCallbackResendCancel);
+    private Action collectCode(TreeContext context) {
+        CodePrompt prompt = prompt(context.request.locales);
+        Callback code = config.hideCode() ? new PasswordCallback(prompt.code, false) : new NameCallback(prompt.code);
+        if (buttons == null) {
+            return send(prompt.text, code).build();
         }
+        return send(prompt.text, code, new ConfirmationCallback(ConfirmationCallback.INFORMATION, buttons, 1)).build();
+    }
 
-        else if (config.showResendButton()) {
-          ConfirmationCallback confirmationCallbackResend = new ConfirmationCallback(ConfirmationCallback.INFORMATION, new String[] {config.nextButtonText(), config.resendButtonText()}, 1);
-          callbacks.add(confirmationCallbackResend);
+    /**
+     * Get the localized prompt for the preferred locales of a request, resolving the bundle only the first time the
+     * locales are seen.
+     */
+    private CodePrompt prompt(PreferredLocales locales) {
+        CodePrompt prompt = prompts.get(locales.getLocales());
+        if (prompt == null) {
+            ResourceBundle bundle = locales.getBundleInPreferredLocale(BUNDLE, getClass().getClassLoader());
+            prompt = new CodePrompt(bundle.getString("callback.text"), bundle.getString("callback.code"));
+            if (prompts.size() < MAX_PROMPTS) {
+                prompts.putIfAbsent(new ArrayList<>(locales.getLocales()), prompt);
+            }
+        }
+        return prompt;
+    }
 
+    /**
+     * The button labels of the confirmation callback, or null if neither button is shown.
+     */
+    private static String[] buttons(Config config) {
+        if (config.showResendButton() && config.showCancelButton()) {
+            return new String[] {config.nextButtonText(), config.resendButtonText(), config.cancelButtonText()};
+        } else if (config.showResendButton()) {
+            return new String[] {config.nextButtonText(), config.resendButtonText()};
+        } else if (config.showCancelButton()) {
+            return new String[] {config.nextButtonText(), config.cancelButtonText()};
         }
+        return null;
+    }
+
+    /**
+     * The immutable parts of the code collection callbacks for one set of locales. The text output callback has no
+     * setters, so it is shared between requests.
+     */
+    private static final class CodePrompt {
+        private final TextOutputCallback text;
+        private final String code;
 
-        else if (config.showCancelButton()) {
-          ConfirmationCallback confirmationCallbackCancel = new ConfirmationCallback(ConfirmationCallback.INFORMATION, new String[] {config.nextButtonText(), config.cancelButtonText()}, 1);
-          callbacks.add(confirmationCallbackCancel);
+        private CodePrompt(String text, String code) {
+            this.text = new TextOutputCallback(TextOutputCallback.INFORMATION, text);
+            this.code = code;
         }
-        
-        return send(callbacks).build();
     }
 
     public static final class OutcomeProvider implements org.forgerock.openam.auth.node.api.OutcomeProvider {
@@ -223,36 +484,56 @@ public class VerifyAuthCollectorDecisionNode extends AbstractDecisionNode {
         static final String FALSE_OUTCOME = "false";
         static final String RESEND_OUTCOME = "resend";
         static final String CANCEL_OUTCOME = "cancel";
-        private static final String BUNDLE = VerifyAuthCollectorDecisionNode.class.getName();
+        static final String LOCKED_OUTCOME = "locked";
+        private static final int RESEND = 1;
+        private static final int CANCEL = 2;
+        private static final int LOCKED = 4;
+        private static final int ERRORS = 8;
+        private static final List<List<Outcome>> OUTCOMES = new ArrayList<>();
+
+        static {
+            for (int flags = 0; flags <= (RESEND | CANCEL | LOCKED | ERRORS); flags++) {
+                OUTCOMES.add(outcomes(flags));
+            }
+        }
 
         @Override
         public List<Outcome> getOutcomes(PreferredLocales locales, JsonValue nodeAttributes) {
-
-            ResourceBundle bundle = locales.getBundleInPreferredLocale(BUNDLE, OutcomeProvider.class.getClassLoader());
-
-            List<Outcome> results = new ArrayList<>(
-                    Arrays.asList(
-                            new Outcome(SUCCESS_OUTCOME, "True")
-                    )
-            );
-
-            results.add(new Outcome(FALSE_OUTCOME, "False"));
-
-            
+            int flags = 0;
             if (nodeAttributes.isNotNull()) {
                 if (nodeAttributes.get("showResendButton").required().asBoolean()) {
-                    results.add(new Outcome(RESEND_OUTCOME, "Resend"));
-                  }
-            }
-            if (nodeAttributes.isNotNull()) {
+                    flags |= RESEND;
+                }
                 if (nodeAttributes.get("showCancelButton").required().asBoolean()) {
-                  results.add(new Outcome(CANCEL_OUTCOME, "Cancel"));
-                  }
+                    flags |= CANCEL;
+                }
+                if (nodeAttributes.get("maxFailedAttempts").defaultTo(0).asInteger() > 0) {
+                    flags |= LOCKED;
+                }
+                if (nodeAttributes.get("errorOutcomes").defaultTo(false).asBoolean()) {
+                    flags |= ERRORS;
+                }
             }
-            
-              
-            results.add(new Outcome(ERROR_OUTCOME, "Error"));
+            return OUTCOMES.get(flags);
+        }
 
+        private static List<Outcome> outcomes(int flags) {
+            List<Outcome> results = new ArrayList<>();
+            results.add(new Outcome(SUCCESS_OUTCOME, "True"));
+            results.add(new Outcome(FALSE_OUTCOME, "False"));
+            if ((flags & RESEND) != 0) {
+                results.add(new Outcome(RESEND_OUTCOME, "Resend"));
+            }
+            if ((flags & CANCEL) != 0) {
+                results.add(new Outcome(CANCEL_OUTCOME, "Cancel"));
+            }
+            if ((flags & LOCKED) != 0) {
+                results.add(new Outcome(LOCKED_OUTCOME, "Locked"));
+            }
+            if ((flags & ERRORS) != 0) {
+                TwilioError.addOutcomes(results);
+            }
+            results.add(new Outcome(ERROR_OUTCOME, "Error"));
             return Collections.unmodifiableList(results);
         }
     }
@@ -18,6 +18,9 @@
 package com.twilio.verify;
 
 import com.google.inject.assistedinject.Assisted;
+import com.iplanet.sso.SSOException;
+import com.sun.identity.idm.AMIdentity;
+import com.sun.identity.idm.IdRepoException;
 import org.forgerock.json.JsonValue;
 import org.forgerock.openam.annotations.sm.Attribute;
 import org.forgerock.openam.auth.node.api.AbstractDecisionNode;
@@ -32,6 +35,7 @@ import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 import static org.forgerock.openam.auth.node.api.SharedStateConstants.REALM;
 import static org.forgerock.openam.auth.node.api.SharedStateConstants.USERNAME;
@@ -42,10 +46,15 @@ import static org.forgerock.openam.auth.nodes.helpers.IdmIntegrationHelper.*;
 @Node.Metadata(outcomeProvider = VerifyAuthIdentifierNode.OutcomeProvider.class,
         configClass = VerifyAuthIdentifierNode.Config.class, tags = {"multi-factor authentication", "marketplace", "trustnetwork"})
 public class VerifyAuthIdentifierNode extends AbstractDecisionNode {
+    static final String NODE_NAME = "identifier";
     private final Logger logger = LoggerFactory.getLogger(VerifyAuthIdentifierNode.class);
     private final Config config;
-    private String loggerPrefix = "[Twilio Identifier Node][Partner] ";
+    private final String loggerPrefix = "[Twilio Identifier Node][Partner] ";
     private final CoreWrapper coreWrapper;
+    private final IdentityAttributeCache identityCache;
+    private final TwilioMetrics metrics;
+    private final TwilioErrorLog errorLog;
+    private final JourneyDeadline deadline;
 
 
 
@@ -62,6 +71,31 @@ public class VerifyAuthIdentifierNode extends AbstractDecisionNode {
             return "userIdentifier";
         }
 
+        /**
+         * Seconds to cache the identifier of a user. Zero disables the cache.
+         */
+        @Attribute(order = 300)
+        default int cacheTimeToLive() {
+            return 0;
+        }
+
+        /**
+         * Seconds to remember that a user has no identifier.
+         */
+        @Attribute(order = 400)
+        default int negativeCacheTimeToLive() {
+            return 30;
+        }
+
+        /**
+         * The identity attribute in which a Lookup node stores line types, read along with the identifier and passed
+         * on in transient state. Empty to not read it.
+         */
+        @Attribute(order = 500)
+        default String lineTypeAttribute() {
+            return "";
+        }
+
     }
 
     /**
@@ -69,45 +103,119 @@ public class VerifyAuthIdentifierNode extends AbstractDecisionNode {
      * from the plugin.
      *
      * @param config The service config.
+     * @param coreWrapper The core wrapper used to read the identity.
+     * @param identityCache The cache of identity attribute values.
+     * @param metrics The latency and outcome metrics of the nodes.
+     * @param errorLog The log of the errors the nodes run into.
+     * @param deadline The latency budget of the journey.
      */
     @Inject
-    public VerifyAuthIdentifierNode(@Assisted Config config, CoreWrapper coreWrapper) {
+    public VerifyAuthIdentifierNode(@Assisted Config config, CoreWrapper coreWrapper,
+                                    IdentityAttributeCache identityCache, TwilioMetrics metrics,
+                                    TwilioErrorLog errorLog, JourneyDeadline deadline) {
         this.coreWrapper = coreWrapper;
         this.config = config;
+        this.identityCache = identityCache;
+        this.metrics = metrics;
+        this.errorLog = errorLog;
+        this.deadline = deadline;
 
     }
 
     @Override
     public Action process(TreeContext context) {
+        return metrics.outcome(NODE_NAME, identify(context));
+    }
+
+    private Action identify(TreeContext context) {
         logger.debug(loggerPrefix + "Started");
         try {
+            JourneyDeadline.Budget budget = deadline.budget(context.getStateFor(this));
             ActionBuilder action;
             action = Action.goTo("True");
             String username = context.sharedState.get(USERNAME).asString();
-            logger.debug(loggerPrefix + "Grabbing user identifiers for " + config.identifierAttribute());
+            logger.debug("{}Grabbing user identifiers for {}", loggerPrefix, config.identifierAttribute());
             Set<String> identifiers = null;
+            Set<String> lineTypes = null;
             String userIdentifier = null;
-            identifiers = coreWrapper.getIdentityOrElseSearchUsingAuthNUserAlias(username, coreWrapper.convertRealmPathToRealmDn(context.sharedState.get(REALM).asString())).getAttribute(config.identifierAttribute());
+            String realm = context.sharedState.get(REALM).asString();
+            boolean cacheEnabled = config.cacheTimeToLive() > 0;
+            boolean readLineType = !config.lineTypeAttribute().isEmpty();
+            Optional<String> universalId = context.universalId.isPresent() || !cacheEnabled
+                    ? context.universalId
+                    : identityCache.getUniversalId(realm, username);
+            Optional<Set<String>> cached = cacheEnabled && universalId.isPresent()
+                    ? identityCache.get(universalId.get(), config.identifierAttribute())
+                    : Optional.empty();
+            Optional<Set<String>> cachedLineTypes = cacheEnabled && readLineType && universalId.isPresent()
+                    ? identityCache.get(universalId.get(), config.lineTypeAttribute())
+                    : Optional.empty();
+            if (cached.isPresent() && (!readLineType || cachedLineTypes.isPresent())) {
+                logger.debug(loggerPrefix + "User identifiers found in cache");
+                identifiers = cached.get();
+                lineTypes = cachedLineTypes.orElse(null);
+            } else {
+                budget.check();
+                AMIdentity identity = coreWrapper.getIdentityOrElseSearchUsingAuthNUserAlias(username, coreWrapper.convertRealmPathToRealmDn(realm));
+                if (readLineType) {
+                    Map<String, Set<String>> attributes = readAttributes(identity);
+                    identifiers = attributes.get(config.identifierAttribute());
+                    lineTypes = attributes.get(config.lineTypeAttribute());
+                } else {
+                    identifiers = identity.getAttribute(config.identifierAttribute());
+                }
+                String resolved = identity.getUniversalId();
+                universalId = Optional.ofNullable(resolved);
+                if (cacheEnabled) {
+                    identityCache.putUniversalId(realm, username, resolved,
+                                                 TimeUnit.SECONDS.toMillis(config.cacheTimeToLive()));
+                    identityCache.put(realm, resolved, config.identifierAttribute(), identifiers,
+                                      TimeUnit.SECONDS.toMillis(config.cacheTimeToLive()),
+                                      TimeUnit.SECONDS.toMillis(config.negativeCacheTimeToLive()));
+                    if (readLineType) {
+                        identityCache.put(realm, resolved, config.lineTypeAttribute(), lineTypes,
+                                          TimeUnit.SECONDS.toMillis(config.cacheTimeToLive()),
+                                          TimeUnit.SECONDS.toMillis(config.cacheTimeToLive()));
+                    }
+                }
+            }
             if (identifiers != null && !identifiers.isEmpty()) {
                 userIdentifier = identifiers.iterator().next();
-                logger.debug(loggerPrefix + "User identifier found: " + userIdentifier);
+                logger.debug("{}User identifier found: {}", loggerPrefix, userIdentifier);
             } else {
                 logger.debug(loggerPrefix + "User identifier not found");
                 action = Action.goTo("False");
                 return action.build();
             }
-            JsonValue copyState = context.sharedState.copy().put(config.identifierSharedState(), userIdentifier);
-            return action.replaceSharedState(copyState).build();
+            context.getStateFor(this).putShared(config.identifierSharedState(), userIdentifier);
+            if (lineTypes != null && !lineTypes.isEmpty()) {
+                context.getStateFor(this).putTransient(VerifyAuthLookupNode.STORED_LINE_TYPE,
+                                                       lineTypes.iterator().next());
+            }
+            if (readLineType && universalId.isPresent()) {
+                // Lets the Lookup node write the line type back to this identity without searching for it again.
+                context.getStateFor(this).putTransient(VerifyAuthLookupNode.LINE_TYPE_IDENTITY, universalId.get());
+            }
+            return action.build();
         } catch (Exception e) {
-            logger.error(loggerPrefix + "Exception occurred" + e.getMessage());
-            e.printStackTrace();
-            context.getStateFor(this).putShared("Exception", e.toString());
+            TwilioError error = errorLog.log(logger, loggerPrefix, e);
+            context.getStateFor(this).putShared(TwilioError.STATE_KEY, error.name());
             ActionBuilder action;
             action = Action.goTo("Error");
             return action.build();
         }
     }
 
+    /**
+     * Read the identifier and the stored line type of a user in a single directory read.
+     */
+    @SuppressWarnings("unchecked")
+    private Map<String, Set<String>> readAttributes(AMIdentity identity) throws IdRepoException, SSOException {
+        Map<String, Set<String>> attributes = identity.getAttributes(
+                new HashSet<>(Arrays.asList(config.identifierAttribute(), config.lineTypeAttribute())));
+        return attributes == null ? Collections.emptyMap() : attributes;
+    }
+
     public static final class OutcomeProvider implements org.forgerock.openam.auth.node.api.OutcomeProvider {
         /**
          * Outcomes Ids for this node.
@@ -115,22 +223,14 @@ public class VerifyAuthIdentifierNode extends AbstractDecisionNode {
         static final String SUCCESS_OUTCOME = "True";
         static final String ERROR_OUTCOME = "Error";
         static final String NOT_FOUND_OUTCOME = "False";
-        private static final String BUNDLE = VerifyAuthIdentifierNode.class.getName();
+        private static final List<Outcome> OUTCOMES = Collections.unmodifiableList(Arrays.asList(
+                new Outcome(SUCCESS_OUTCOME, SUCCESS_OUTCOME),
+                new Outcome(NOT_FOUND_OUTCOME, NOT_FOUND_OUTCOME),
+                new Outcome(ERROR_OUTCOME, ERROR_OUTCOME)));
 
         @Override
         public List<Outcome> getOutcomes(PreferredLocales locales, JsonValue nodeAttributes) {
-
-            ResourceBundle bundle = locales.getBundleInPreferredLocale(BUNDLE, OutcomeProvider.class.getClassLoader());
-
-            List<Outcome> results = new ArrayList<>(
-                    Arrays.asList(
-                            new Outcome(SUCCESS_OUTCOME, SUCCESS_OUTCOME)
-                    )
-            );
-            results.add(new Outcome(NOT_FOUND_OUTCOME, NOT_FOUND_OUTCOME));
-            results.add(new Outcome(ERROR_OUTCOME, ERROR_OUTCOME));
-
-            return Collections.unmodifiableList(results);
+            return OUTCOMES;
         }
     }
 }
@@ -18,8 +18,11 @@
 package com.twilio.verify;
 
 import com.google.inject.assistedinject.Assisted;
+import com.iplanet.sso.SSOException;
+import com.sun.identity.idm.AMIdentity;
+import com.sun.identity.idm.IdRepoException;
 import com.sun.identity.sm.RequiredValueValidator;
-import com.twilio.Twilio;
+import com.twilio.http.TwilioRestClient;
 import com.twilio.rest.lookups.v1.PhoneNumber;
 import org.forgerock.json.JsonValue;
 import org.forgerock.openam.annotations.sm.Attribute;
@@ -27,6 +30,7 @@ import org.forgerock.openam.auth.node.api.AbstractDecisionNode;
 import org.forgerock.openam.auth.node.api.Action;
 import org.forgerock.openam.auth.node.api.Node;
 import org.forgerock.openam.auth.node.api.TreeContext;
+import org.forgerock.openam.core.CoreWrapper;
 import org.forgerock.openam.sm.annotations.adapters.Password;
 import org.forgerock.util.i18n.PreferredLocales;
 import org.slf4j.Logger;
@@ -34,6 +38,8 @@ import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
 import java.util.*;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Twilio Verify Collector Decision Node
@@ -41,9 +47,21 @@ import java.util.*;
 @Node.Metadata(outcomeProvider = VerifyAuthLookupNode.OutcomeProvider.class,
         configClass = VerifyAuthLookupNode.Config.class, tags = {"multi-factor authentication", "marketplace", "trustnetwork"})
 public class VerifyAuthLookupNode extends AbstractDecisionNode {
+    static final String NODE_NAME = "lookup";
+    static final String STORED_LINE_TYPE = "twilioStoredLineType";
+    static final String LINE_TYPE_IDENTITY = "twilioLineTypeIdentity";
     private final Logger logger = LoggerFactory.getLogger(VerifyAuthLookupNode.class);
     private final Config config;
-    private String loggerPrefix = "[Twilio Lookup Node][Partner] ";
+    private final TwilioClientRegistry clientRegistry;
+    private final CarrierLookupCache lookupCache;
+    private final CoreWrapper coreWrapper;
+    private final IdentityAttributeCache identityCache;
+    private final TwilioTaskExecutor executor;
+    private final TwilioCallGuard callGuard;
+    private final TwilioMetrics metrics;
+    private final TwilioErrorLog errorLog;
+    private final JourneyDeadline deadline;
+    private final String loggerPrefix = "[Twilio Lookup Node][Partner] ";
 
 
     /**
@@ -67,6 +85,48 @@ public class VerifyAuthLookupNode extends AbstractDecisionNode {
         default String identifierSharedState() {
             return "userIdentifier";
         }
+
+        /**
+         * Seconds to cache a mobile line type for a number. Zero disables the cache.
+         */
+        @Attribute(order = 400)
+        default int cacheTimeToLive() {
+            return 86400;
+        }
+
+        /**
+         * Seconds to cache any other line type, such as landline or voip, for a number.
+         */
+        @Attribute(order = 500)
+        default int negativeCacheTimeToLive() {
+            return 3600;
+        }
+
+        /**
+         * Whether errors reported by Twilio take the outcome of their {@link TwilioError} instead of the error outcome.
+         */
+        @Attribute(order = 600)
+        default boolean errorOutcomes() {
+            return false;
+        }
+
+        /**
+         * The identity attribute in which the line type of the user's number is stored after a lookup. Empty to not
+         * store it. The stored value is only read back from the transient state set by a {@link
+         * VerifyAuthIdentifierNode} reading the same attribute, and only stored for the identity that node read.
+         */
+        @Attribute(order = 700)
+        default String lineTypeAttribute() {
+            return "";
+        }
+
+        /**
+         * Seconds during which a line type stored on the identity is used instead of a lookup.
+         */
+        @Attribute(order = 800)
+        default int lineTypeMaxAge() {
+            return 2592000;
+        }
     }
 
     /**
@@ -74,45 +134,141 @@ public class VerifyAuthLookupNode extends AbstractDecisionNode {
      * from the plugin.
      *
      * @param config The service config.
+     * @param clientRegistry The registry of shared Twilio clients.
+     * @param lookupCache The cache of carrier line types.
+     * @param coreWrapper The core wrapper used to store line types on the identity.
+     * @param identityCache The cache of identity attribute values, refreshed when a line type is stored.
+     * @param executor The pool line types are stored on.
+     * @param callGuard The circuit breaker and bulkhead guarding Twilio calls.
+     * @param metrics The latency and outcome metrics of the nodes.
+     * @param errorLog The log of the errors the nodes run into.
+     * @param deadline The latency budget of the journey.
      */
     @Inject
-    public VerifyAuthLookupNode(@Assisted Config config) {
+    public VerifyAuthLookupNode(@Assisted Config config, TwilioClientRegistry clientRegistry,
+                                CarrierLookupCache lookupCache, CoreWrapper coreWrapper,
+                                IdentityAttributeCache identityCache, TwilioTaskExecutor executor,
+                                TwilioCallGuard callGuard, TwilioMetrics metrics, TwilioErrorLog errorLog,
+                                JourneyDeadline deadline) {
         this.config = config;
-        Twilio.init(config.accountSID(), String.valueOf(config.authToken()));
+        this.clientRegistry = clientRegistry;
+        this.lookupCache = lookupCache;
+        this.coreWrapper = coreWrapper;
+        this.identityCache = identityCache;
+        this.executor = executor;
+        this.callGuard = callGuard;
+        this.metrics = metrics;
+        this.errorLog = errorLog;
+        this.deadline = deadline;
     }
 
     @Override
     public Action process(TreeContext context) {
+        return metrics.outcome(NODE_NAME, lookup(context));
+    }
+
+    private Action lookup(TreeContext context) {
         logger.debug(loggerPrefix + "Started");
         try {
-            logger.debug(loggerPrefix + "Grabbing phone number from "+ config.identifierSharedState() +" shared state");
-            String phoneNumber = context.sharedState.get(config.identifierSharedState()).asString();
-            if(phoneNumber == null || phoneNumber == "") {
+            JourneyDeadline.Budget budget = deadline.budget(context.getStateFor(this));
+            logger.debug("{}Grabbing phone number from {} shared state", loggerPrefix, config.identifierSharedState());
+            String identifier = context.sharedState.get(config.identifierSharedState()).asString();
+            if(identifier == null || identifier.isEmpty()) {
                 logger.error(loggerPrefix + "Phone number not found");
                 return Action.goTo("False").build();
             }
-            logger.debug(loggerPrefix + "User phone number" + phoneNumber);
-            PhoneNumber number = PhoneNumber
-                    .fetcher(new com.twilio.type.PhoneNumber(phoneNumber))
-                    .setType("carrier")
-                    .fetch();
-
-             String type = number.getCarrier().get("type");
-             if (type.equals("mobile")) {
+            String phoneNumber = IdentifierNormalizer.normalizePhone(identifier);
+            logger.debug("{}User phone number {}", loggerPrefix, phoneNumber);
+            boolean cacheEnabled = config.cacheTimeToLive() > 0;
+            boolean storeEnabled = !config.lineTypeAttribute().isEmpty();
+            long now = System.currentTimeMillis();
+            Optional<StoredLineType> stored = storeEnabled
+                    ? StoredLineType.parse(context.getStateFor(this).get(STORED_LINE_TYPE).asString())
+                    : Optional.empty();
+            boolean storedFresh = stored.isPresent() && stored.get().isFreshFor(
+                    phoneNumber, now, TimeUnit.SECONDS.toMillis(config.lineTypeMaxAge()));
+            Optional<String> cachedType = cacheEnabled && !storedFresh ? lookupCache.get(phoneNumber)
+                                                                       : Optional.empty();
+            String type;
+            if (storedFresh) {
+                type = stored.get().type();
+                logger.debug(loggerPrefix + "Phone type found on the identity");
+            } else if (cachedType.isPresent()) {
+                type = cachedType.get();
+                logger.debug(loggerPrefix + "Phone type found in cache");
+            } else {
+                budget.check();
+                TwilioRestClient client = clientRegistry.getClient(config.accountSID(), config.authToken());
+                type = metrics.time(NODE_NAME, TwilioEndpoint.LOOKUP, "carrier", () -> callGuard.call(
+                        config.accountSID(), TwilioEndpoint.LOOKUP,
+                        budget.bound(() -> fetchLineType(client, phoneNumber))));
+                if (cacheEnabled) {
+                    lookupCache.put(phoneNumber, type, TimeUnit.SECONDS.toMillis(config.cacheTimeToLive()),
+                                    TimeUnit.SECONDS.toMillis(config.negativeCacheTimeToLive()));
+                }
+                if (storeEnabled && type != null) {
+                    storeLineType(context, new StoredLineType(type, now, phoneNumber));
+                }
+            }
+
+             if (CarrierLookupCache.MOBILE.equals(type)) {
                 logger.debug(loggerPrefix + "Phone type is mobile");
                 return Action.goTo("True").build();
 
              }
-             logger.error(loggerPrefix + "Phone type is not mobile");
-             logger.error(loggerPrefix + "Phone type is " + type);
+             logger.error("{}Phone type is not mobile but {}", loggerPrefix, type);
              return Action.goTo("False").build();
         } catch(Exception ex) {
-            logger.error(loggerPrefix + "Exception occurred" + ex.getMessage());
-            ex.printStackTrace();
-            context.sharedState.put("Exception", ex.toString());
-            return Action.goTo("Error").build();
+            TwilioError error = errorLog.log(logger, loggerPrefix, ex);
+            context.getStateFor(this).putShared(TwilioError.STATE_KEY, error.name());
+            return Action.goTo(config.errorOutcomes() ? error.outcome(OutcomeProvider.ERROR_OUTCOME)
+                                                      : OutcomeProvider.ERROR_OUTCOME).build();
+        }
+
+    }
+
+    /**
+     * Store a line type on the identity of the user in the background, so that later logins can skip the lookup
+     * without the user waiting for the directory write. Only the identity the Identifier node read is written, as
+     * nothing else would read the value back, and it is addressed by its universal ID so no search is needed. A
+     * failure is logged and does not change the outcome of the node.
+     */
+    private void storeLineType(TreeContext context, StoredLineType lineType) {
+        String universalId = context.getStateFor(this).get(LINE_TYPE_IDENTITY).asString();
+        if (universalId == null) {
+            logger.debug(loggerPrefix + "No identity read by the Identifier node, line type not stored");
+            return;
+        }
+        try {
+            executor.submit(() -> {
+                try {
+                    AMIdentity identity = coreWrapper.getIdentity(universalId);
+                    identity.setAttributes(Collections.singletonMap(config.lineTypeAttribute(),
+                                                                    Collections.singleton(lineType.toString())));
+                    identity.store();
+                    identityCache.invalidate(universalId);
+                } catch (IdRepoException | SSOException | RuntimeException e) {
+                    errorLog.log(logger, loggerPrefix, e);
+                }
+                return null;
+            });
+        } catch (RejectedExecutionException e) {
+            logger.debug(loggerPrefix + "Background executor is saturated, line type not stored");
         }
+    }
 
+    /**
+     * Look up the carrier line type of a phone number.
+     *
+     * @param client The Twilio client.
+     * @param phoneNumber The phone number in E.164 format.
+     * @return The line type, such as "mobile", "landline" or "voip".
+     */
+    static String fetchLineType(TwilioRestClient client, String phoneNumber) {
+        PhoneNumber number = PhoneNumber.fetcher(new com.twilio.type.PhoneNumber(phoneNumber))
+                                        .setType("carrier")
+                                        .fetch(client);
+        return number.getCarrier().get("type");
     }
 
     public static final class OutcomeProvider implements org.forgerock.openam.auth.node.api.OutcomeProvider {
@@ -123,22 +279,25 @@ public class VerifyAuthLookupNode extends AbstractDecisionNode {
             static final String ERROR_OUTCOME = "Error";
             static final String NOT_FOUND_OUTCOME = "False";
            // static final String NOT_MOBILE_OUTCOME = "Not Mobile";
-            private static final String BUNDLE = VerifyAuthLookupNode.class.getName();
+            private static final List<Outcome> OUTCOMES = outcomes(false);
+            private static final List<Outcome> ERROR_OUTCOMES = outcomes(true);
 
             @Override
             public List<Outcome> getOutcomes(PreferredLocales locales, JsonValue nodeAttributes) {
+                boolean errors = nodeAttributes.isNotNull()
+                        && nodeAttributes.get("errorOutcomes").defaultTo(false).asBoolean();
+                return errors ? ERROR_OUTCOMES : OUTCOMES;
+            }
 
-                ResourceBundle bundle = locales.getBundleInPreferredLocale(BUNDLE, OutcomeProvider.class.getClassLoader());
-
-                List<Outcome> results = new ArrayList<>(
-                        Arrays.asList(
-                                new Outcome(SUCCESS_OUTCOME, SUCCESS_OUTCOME)
-                        )
-                );
+            private static List<Outcome> outcomes(boolean errors) {
+                List<Outcome> results = new ArrayList<>();
+                results.add(new Outcome(SUCCESS_OUTCOME, SUCCESS_OUTCOME));
                 results.add(new Outcome(NOT_FOUND_OUTCOME, NOT_FOUND_OUTCOME));
                 //results.add(new Outcome(NOT_MOBILE_OUTCOME, NOT_MOBILE_OUTCOME));
+                if (errors) {
+                    TwilioError.addOutcomes(results);
+                }
                 results.add(new Outcome(ERROR_OUTCOME, ERROR_OUTCOME));
-
                 return Collections.unmodifiableList(results);
             }
         }
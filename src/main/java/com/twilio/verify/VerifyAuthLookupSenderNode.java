@@ -0,0 +1,417 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2018 ForgeRock AS.
+ */
+
+
+package com.twilio.verify;
+
+import com.google.inject.assistedinject.Assisted;
+import com.sun.identity.sm.RequiredValueValidator;
+import com.twilio.http.TwilioRestClient;
+import com.twilio.rest.verify.v2.service.Verification;
+import com.twilio.rest.verify.v2.service.VerificationCreator;
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.annotations.sm.Attribute;
+import org.forgerock.openam.auth.node.api.AbstractDecisionNode;
+import org.forgerock.openam.auth.node.api.Action;
+import org.forgerock.openam.auth.node.api.Node;
+import org.forgerock.openam.auth.node.api.TreeContext;
+import org.forgerock.openam.sm.annotations.adapters.Password;
+import org.forgerock.util.i18n.PreferredLocales;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+import static com.twilio.verify.VerifyAuthSenderNode.ACCOUNT_SID;
+import static com.twilio.verify.VerifyAuthSenderNode.SERVICE_SID;
+
+/**
+ * Twilio Verify Lookup Sender Node
+ * <p>
+ * Does the work of the Lookup node followed by the Sender node, but sends the verification while the carrier lookup
+ * is in flight, so that the user waits for the slower of the two calls rather than for both. When the lookup reports
+ * a line type other than mobile, a send that has not started is skipped and one that went through is cancelled in
+ * the background.
+ */
+@Node.Metadata(outcomeProvider = VerifyAuthLookupSenderNode.OutcomeProvider.class,
+        configClass = VerifyAuthLookupSenderNode.Config.class, tags = {"multi-factor authentication", "marketplace", "trustnetwork"})
+public class VerifyAuthLookupSenderNode extends AbstractDecisionNode {
+
+    static final String NODE_NAME = "lookup_sender";
+    private final Logger logger = LoggerFactory.getLogger(VerifyAuthLookupSenderNode.class);
+    private final Config config;
+    private final TwilioClientRegistry clientRegistry;
+    private final CarrierLookupCache lookupCache;
+    private final TwilioTaskExecutor executor;
+    private final TwilioCallGuard callGuard;
+    private final SendThrottle sendThrottle;
+    private final PendingVerificationStore pendingStore;
+    private final TwilioMetrics metrics;
+    private final TwilioErrorLog errorLog;
+    private final JourneyDeadline deadline;
+    private final String loggerPrefix = "[Twilio Lookup Sender Node][Partner] ";
+
+    /**
+     * Configuration for the node.
+     */
+    public interface Config {
+        /**
+         * The unique string to identify the Account in the Twilio account dashboard.
+         */
+        @Attribute(order = 100, validators = {RequiredValueValidator.class})
+        default String accountSID() {
+            return "";
+        }
+
+        /**
+         * The authentication token found in the Twilio account dashboard.
+         */
+        @Attribute(order = 200, validators = {RequiredValueValidator.class})
+        @Password
+        char[] authToken();
+
+        /**
+         * The unique string to identify the Service in the Twilio account dashboard.
+         */
+        @Attribute(order = 300, validators = {RequiredValueValidator.class})
+        default String serviceSID() {
+            return "";
+        }
+
+        /**
+         * The channel the verification is sent through. Numbers are only looked up for phone channels.
+         */
+        @Attribute(order = 400)
+        default VerifyAuthSenderNode.Module channel() {
+            return VerifyAuthSenderNode.Module.SMS;
+        }
+
+        @Attribute(order = 500)
+        default String identifierSharedState() {
+            return "userIdentifier";
+        }
+
+        /**
+         * Seconds to cache a mobile line type for a number. Zero disables the cache.
+         */
+        @Attribute(order = 600)
+        default int cacheTimeToLive() {
+            return 86400;
+        }
+
+        /**
+         * Seconds to cache any other line type, such as landline or voip, for a number.
+         */
+        @Attribute(order = 700)
+        default int negativeCacheTimeToLive() {
+            return 3600;
+        }
+
+        /**
+         * The number of sends to the same identifier and channel allowed in quick succession, or 0 for no limit.
+         */
+        @Attribute(order = 800)
+        default int sendBurst() {
+            return 0;
+        }
+
+        /**
+         * Milliseconds after which one more send to the same identifier and channel is allowed.
+         */
+        @Attribute(order = 900)
+        default int sendRefillInterval() {
+            return 60000;
+        }
+
+        /**
+         * Whether errors reported by Twilio take the outcome of their {@link TwilioError} instead of the error outcome.
+         */
+        @Attribute(order = 1000)
+        default boolean errorOutcomes() {
+            return false;
+        }
+
+        /**
+         * Milliseconds within which a verification already sent to the identifier is reused, or 0 to always send.
+         */
+        @Attribute(order = 1100)
+        default int reuseWindow() {
+            return 0;
+        }
+
+        /**
+         * Milliseconds to wait for the verification sent alongside the lookup once the number is known to be mobile.
+         */
+        @Attribute(order = 1200)
+        default int sendTimeout() {
+            return 5000;
+        }
+    }
+
+    /**
+     * Create the node using Guice injection. Just-in-time bindings can be used to obtain instances of other classes
+     * from the plugin.
+     *
+     * @param config The service config.
+     * @param clientRegistry The registry of shared Twilio clients.
+     * @param lookupCache The cache of carrier line types.
+     * @param executor The pool the verification is sent on while the lookup is in flight.
+     * @param callGuard The circuit breaker and bulkhead guarding Twilio calls.
+     * @param sendThrottle The throttle limiting sends to the same identifier.
+     * @param pendingStore The store of verifications recently sent.
+     * @param metrics The latency and outcome metrics of the nodes.
+     * @param errorLog The log of the errors the nodes run into.
+     * @param deadline The latency budget of the journey.
+     */
+    @Inject
+    public VerifyAuthLookupSenderNode(@Assisted Config config, TwilioClientRegistry clientRegistry,
+                                      CarrierLookupCache lookupCache, TwilioTaskExecutor executor,
+                                      TwilioCallGuard callGuard, SendThrottle sendThrottle,
+                                      PendingVerificationStore pendingStore, TwilioMetrics metrics,
+                                      TwilioErrorLog errorLog, JourneyDeadline deadline) {
+        this.config = config;
+        this.clientRegistry = clientRegistry;
+        this.lookupCache = lookupCache;
+        this.executor = executor;
+        this.callGuard = callGuard;
+        this.sendThrottle = sendThrottle;
+        this.pendingStore = pendingStore;
+        this.metrics = metrics;
+        this.errorLog = errorLog;
+        this.deadline = deadline;
+    }
+
+    @Override
+    public Action process(TreeContext context) {
+        return metrics.outcome(NODE_NAME, lookupAndSend(context));
+    }
+
+    private Action lookupAndSend(TreeContext context) {
+        logger.debug(loggerPrefix + "Started");
+        try {
+            JourneyDeadline.Budget budget = deadline.budget(context.getStateFor(this));
+            String identifier = context.sharedState.get(config.identifierSharedState()).asString();
+            if (identifier == null || identifier.isEmpty()) {
+                logger.error(loggerPrefix + "Identifier not found");
+                return Action.goTo(OutcomeProvider.FALSE_OUTCOME).build();
+            }
+            String userIdentifier = IdentifierNormalizer.normalize(identifier, config.channel());
+            boolean lookupEnabled = config.channel().isPhone();
+            boolean cacheEnabled = lookupEnabled && config.cacheTimeToLive() > 0;
+            Optional<String> cachedType = cacheEnabled ? lookupCache.get(userIdentifier) : Optional.empty();
+            if (cachedType.isPresent() && !CarrierLookupCache.MOBILE.equals(cachedType.get())) {
+                return notMobile(cachedType.get());
+            }
+            // Only a number the lookup accepted can have a pending verification, so there is nothing to look up.
+            if (config.reuseWindow() > 0 && pendingStore.isPending(config.serviceSID(), userIdentifier,
+                                                                    config.channel(), config.reuseWindow())) {
+                logger.debug(loggerPrefix + "Reusing pending verification for {}", userIdentifier);
+                return sent(context, userIdentifier);
+            }
+            if (callGuard.isOpen(config.accountSID(), TwilioEndpoint.VERIFICATION)) {
+                throw new TwilioUnavailableException("Circuit breaker for verification is open");
+            }
+            budget.check();
+            // Only take a token for a send that is about to be made, so refused sends do not use up the burst.
+            if (!sendThrottle.tryAcquire(userIdentifier, config.channel(), config.sendBurst(),
+                                         config.sendRefillInterval())) {
+                logger.debug(loggerPrefix + "Send to {} throttled", userIdentifier);
+                context.getStateFor(this).putShared(config.identifierSharedState(), userIdentifier);
+                return Action.goTo(OutcomeProvider.THROTTLED_OUTCOME).build();
+            }
+            TwilioRestClient client = clientRegistry.getClient(config.accountSID(), config.authToken());
+            VerificationCreator creator = Verification.creator(config.serviceSID(), userIdentifier,
+                                                               config.channel().currentChannel());
+            // Set by whichever comes first of the send starting and the lookup rejecting the number.
+            AtomicBoolean claimed = new AtomicBoolean();
+            Supplier<Verification> send = () -> {
+                if (claimed.getAndSet(true)) {
+                    return null;
+                }
+                try {
+                    return metrics.time(NODE_NAME, TwilioEndpoint.VERIFICATION, config.channel().currentChannel(),
+                                        () -> callGuard.call(config.accountSID(), TwilioEndpoint.VERIFICATION,
+                                                             budget.bound(() -> creator.create(client))));
+                } catch (RuntimeException e) {
+                    if (config.reuseWindow() > 0) {
+                        pendingStore.remove(config.serviceSID(), userIdentifier);
+                    }
+                    throw e;
+                }
+            };
+            if (config.reuseWindow() > 0) {
+                pendingStore.record(config.serviceSID(), userIdentifier, config.channel(), config.reuseWindow());
+            }
+            if (!lookupEnabled || cachedType.isPresent()) {
+                send.get();
+                return sent(context, userIdentifier);
+            }
+            CompletableFuture<Verification> pendingSend;
+            try {
+                pendingSend = executor.submit(send);
+            } catch (RejectedExecutionException e) {
+                logger.warn(loggerPrefix + "Background executor is saturated, looking up before sending");
+                pendingSend = null;
+            }
+            String type;
+            try {
+                type = metrics.time(NODE_NAME, TwilioEndpoint.LOOKUP, "carrier", () -> callGuard.call(
+                        config.accountSID(), TwilioEndpoint.LOOKUP,
+                        budget.bound(() -> VerifyAuthLookupNode.fetchLineType(client, userIdentifier))));
+            } catch (RuntimeException e) {
+                abandon(pendingSend, claimed, client, userIdentifier);
+                throw e;
+            }
+            if (cacheEnabled) {
+                lookupCache.put(userIdentifier, type, TimeUnit.SECONDS.toMillis(config.cacheTimeToLive()),
+                                TimeUnit.SECONDS.toMillis(config.negativeCacheTimeToLive()));
+            }
+            if (!CarrierLookupCache.MOBILE.equals(type)) {
+                abandon(pendingSend, claimed, client, userIdentifier);
+                return notMobile(type);
+            }
+            if (pendingSend == null) {
+                send.get();
+            } else {
+                awaitSend(pendingSend, budget);
+            }
+            return sent(context, userIdentifier);
+        } catch (Exception ex) {
+            TwilioError error = errorLog.log(logger, loggerPrefix, ex);
+            context.getStateFor(this).putShared(TwilioError.STATE_KEY, error.name());
+            return Action.goTo(config.errorOutcomes() ? error.outcome(OutcomeProvider.ERROR_OUTCOME)
+                                                      : OutcomeProvider.ERROR_OUTCOME).build();
+        }
+    }
+
+    private Action sent(TreeContext context, String userIdentifier) {
+        context.getStateFor(this).remove(VerifyAuthSenderNode.SEND_HANDLE);
+        context.getStateFor(this).putShared(SERVICE_SID, config.serviceSID())
+               .putShared(ACCOUNT_SID, config.accountSID())
+               .putShared(config.identifierSharedState(), userIdentifier);
+        VerifyAuthSenderNode.markReusable(context.getStateFor(this), config.reuseWindow());
+        return Action.goTo(OutcomeProvider.SUCCESS_OUTCOME).build();
+    }
+
+    private Action notMobile(String type) {
+        logger.error("{}Phone type is not mobile but {}", loggerPrefix, type);
+        return Action.goTo(OutcomeProvider.FALSE_OUTCOME).build();
+    }
+
+    /**
+     * Wait for the verification sent alongside the lookup, rethrowing the failure of the send if there was one.
+     */
+    private void awaitSend(CompletableFuture<Verification> pendingSend, JourneyDeadline.Budget budget)
+            throws Exception {
+        try {
+            pendingSend.get(budget.cap(config.sendTimeout()), TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    /**
+     * Make sure the verification sent alongside a lookup that failed or rejected the number cannot be used. A send
+     * that has not started yet is skipped and gives its throttle token back, and one that went through is cancelled
+     * once it completes.
+     */
+    private void abandon(CompletableFuture<Verification> pendingSend, AtomicBoolean claimed,
+                         TwilioRestClient client, String userIdentifier) {
+        if (config.reuseWindow() > 0) {
+            pendingStore.remove(config.serviceSID(), userIdentifier);
+        }
+        if (!claimed.getAndSet(true)) {
+            sendThrottle.release(userIdentifier, config.channel(), config.sendBurst(), config.sendRefillInterval());
+        } else if (pendingSend != null) {
+            pendingSend.thenAccept(verification -> {
+                if (verification != null) {
+                    cancel(client, verification);
+                }
+            });
+        }
+    }
+
+    private void cancel(TwilioRestClient client, Verification verification) {
+        try {
+            executor.submit(() -> callGuard.call(
+                    config.accountSID(), TwilioEndpoint.VERIFICATION,
+                    () -> Verification.updater(config.serviceSID(), verification.getSid(),
+                                               Verification.Status.CANCELED).update(client)))
+                    .whenComplete((cancelled, e) -> {
+                        if (e != null) {
+                            logger.debug("{}Unable to cancel verification {}", loggerPrefix, verification.getSid(), e);
+                        }
+                    });
+        } catch (RejectedExecutionException e) {
+            logger.debug("{}Background executor is saturated, verification {} not cancelled", loggerPrefix,
+                         verification.getSid());
+        }
+    }
+
+    public static final class OutcomeProvider implements org.forgerock.openam.auth.node.api.OutcomeProvider {
+        /**
+         * Outcomes Ids for this node.
+         */
+        static final String SUCCESS_OUTCOME = "true";
+        static final String FALSE_OUTCOME = "false";
+        static final String THROTTLED_OUTCOME = "throttled";
+        static final String ERROR_OUTCOME = "error";
+        private static final int THROTTLED = 1;
+        private static final int ERRORS = 2;
+        private static final List<List<Outcome>> OUTCOMES = new ArrayList<>();
+
+        static {
+            for (int flags = 0; flags <= (THROTTLED | ERRORS); flags++) {
+                OUTCOMES.add(outcomes(flags));
+            }
+        }
+
+        @Override
+        public List<Outcome> getOutcomes(PreferredLocales locales, JsonValue nodeAttributes) {
+            int flags = 0;
+            if (nodeAttributes.isNotNull()) {
+                if (nodeAttributes.get("sendBurst").defaultTo(0).asInteger() > 0) {
+                    flags |= THROTTLED;
+                }
+                if (nodeAttributes.get("errorOutcomes").defaultTo(false).asBoolean()) {
+                    flags |= ERRORS;
+                }
+            }
+            return OUTCOMES.get(flags);
+        }
+
+        private static List<Outcome> outcomes(int flags) {
+            List<Outcome> results = new ArrayList<>();
+            results.add(new Outcome(SUCCESS_OUTCOME, "True"));
+            results.add(new Outcome(FALSE_OUTCOME, "False"));
+            if ((flags & THROTTLED) != 0) {
+                results.add(new Outcome(THROTTLED_OUTCOME, "Throttled"));
+            }
+            if ((flags & ERRORS) != 0) {
+                TwilioError.addOutcomes(results);
+            }
+            results.add(new Outcome(ERROR_OUTCOME, "Error"));
+            return Collections.unmodifiableList(results);
+        }
+    }
+}
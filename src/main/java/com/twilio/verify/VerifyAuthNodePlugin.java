@@ -16,10 +16,21 @@
 
 package com.twilio.verify;
 
+import com.iplanet.sso.SSOException;
+import com.sun.identity.sm.SMSException;
 import org.forgerock.openam.auth.node.api.AbstractNodeAmPlugin;
 import org.forgerock.openam.auth.node.api.Node;
+import org.forgerock.openam.core.realms.Realm;
 import org.forgerock.openam.plugins.PluginException;
+import org.forgerock.openam.sm.AnnotatedServiceRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import javax.inject.Inject;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Map;
@@ -60,7 +71,165 @@ import java.util.Map;
  */
 public class VerifyAuthNodePlugin extends AbstractNodeAmPlugin {
 
-    static private String currentVersion = "1.4.27";
+    static private String currentVersion = "1.6.0";
+    static private String serviceVersion = "1.6.0";
+
+    private final Logger logger = LoggerFactory.getLogger(VerifyAuthNodePlugin.class);
+    private final String loggerPrefix = "[Twilio Verify Plugin][Partner] ";
+    private TwilioClientRegistry clientRegistry;
+    private TwilioHttpTransport transport;
+    private CarrierLookupCache lookupCache;
+    private IdentityAttributeCache identityCache;
+    private TwilioTaskExecutor taskExecutor;
+    private SendThrottle sendThrottle;
+    private PendingVerificationStore pendingStore;
+    private CtsVerificationStore clusterStore;
+    private TwilioCallGuard callGuard;
+    private TwilioMetricsPublisher metricsPublisher;
+    private TwilioErrorLog errorLog;
+    private JourneyDeadline journeyDeadline;
+    private CarrierLookupPrewarm lookupPrewarm;
+    private AnnotatedServiceRegistry serviceRegistry;
+
+    /**
+     * Set the registry of Twilio clients shared by the nodes of this plugin.
+     *
+     * @param clientRegistry The client registry.
+     */
+    @Inject
+    public void setClientRegistry(TwilioClientRegistry clientRegistry) {
+        this.clientRegistry = clientRegistry;
+    }
+
+    /**
+     * Set the HTTP transport shared by all Twilio clients of this plugin.
+     *
+     * @param transport The HTTP transport.
+     */
+    @Inject
+    public void setTransport(TwilioHttpTransport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Set the carrier lookup cache shared by the lookup nodes.
+     *
+     * @param lookupCache The carrier lookup cache.
+     */
+    @Inject
+    public void setLookupCache(CarrierLookupCache lookupCache) {
+        this.lookupCache = lookupCache;
+    }
+
+    /**
+     * Set the identity attribute cache shared by the identifier nodes.
+     *
+     * @param identityCache The identity attribute cache.
+     */
+    @Inject
+    public void setIdentityCache(IdentityAttributeCache identityCache) {
+        this.identityCache = identityCache;
+    }
+
+    /**
+     * Set the executor used to call Twilio in the background.
+     *
+     * @param taskExecutor The task executor.
+     */
+    @Inject
+    public void setTaskExecutor(TwilioTaskExecutor taskExecutor) {
+        this.taskExecutor = taskExecutor;
+    }
+
+    /**
+     * Set the throttle limiting sends to the same identifier.
+     *
+     * @param sendThrottle The send throttle.
+     */
+    @Inject
+    public void setSendThrottle(SendThrottle sendThrottle) {
+        this.sendThrottle = sendThrottle;
+    }
+
+    /**
+     * Set the store of verifications recently sent by the sender nodes.
+     *
+     * @param pendingStore The pending verification store.
+     */
+    @Inject
+    public void setPendingStore(PendingVerificationStore pendingStore) {
+        this.pendingStore = pendingStore;
+    }
+
+    /**
+     * Set the store keeping verification state in the Core Token Service, used when it is shared by the cluster.
+     *
+     * @param clusterStore The Core Token Service store.
+     */
+    @Inject
+    public void setClusterStore(CtsVerificationStore clusterStore) {
+        this.clusterStore = clusterStore;
+    }
+
+    /**
+     * Set the circuit breaker and bulkhead guarding Twilio calls.
+     *
+     * @param callGuard The call guard.
+     */
+    @Inject
+    public void setCallGuard(TwilioCallGuard callGuard) {
+        this.callGuard = callGuard;
+    }
+
+    /**
+     * Set the publisher of the node metrics to AM monitoring.
+     *
+     * @param metricsPublisher The metrics publisher.
+     */
+    @Inject
+    public void setMetricsPublisher(TwilioMetricsPublisher metricsPublisher) {
+        this.metricsPublisher = metricsPublisher;
+    }
+
+    /**
+     * Set the log shared by the nodes for the errors they run into.
+     *
+     * @param errorLog The error log.
+     */
+    @Inject
+    public void setErrorLog(TwilioErrorLog errorLog) {
+        this.errorLog = errorLog;
+    }
+
+    /**
+     * Set the latency budget of journeys shared by the nodes of this plugin.
+     *
+     * @param journeyDeadline The journey deadline.
+     */
+    @Inject
+    public void setJourneyDeadline(JourneyDeadline journeyDeadline) {
+        this.journeyDeadline = journeyDeadline;
+    }
+
+    /**
+     * Set the job prewarming the carrier lookup cache, registered with JMX while the plugin runs.
+     *
+     * @param lookupPrewarm The prewarm job.
+     */
+    @Inject
+    public void setLookupPrewarm(CarrierLookupPrewarm lookupPrewarm) {
+        this.lookupPrewarm = lookupPrewarm;
+    }
+
+    /**
+     * Set the registry used to read the {@link TwilioVerifyService} settings.
+     *
+     * @param serviceRegistry The annotated service registry.
+     */
+    @Inject
+    public void setServiceRegistry(AnnotatedServiceRegistry serviceRegistry) {
+        this.serviceRegistry = serviceRegistry;
+    }
 
     /**
      * Specify the Map of list of node classes that the plugin is providing. These will then be installed and
@@ -74,7 +243,8 @@ public class VerifyAuthNodePlugin extends AbstractNodeAmPlugin {
                                         Arrays.asList(VerifyAuthSenderNode.class,
                                                       VerifyAuthCollectorDecisionNode.class,
                                                       VerifyAuthLookupNode.class,
-                                                      VerifyAuthIdentifierNode.class));
+                                                      VerifyAuthIdentifierNode.class,
+                                                      VerifyAuthLookupSenderNode.class));
     }
 
     /**
@@ -86,19 +256,90 @@ public class VerifyAuthNodePlugin extends AbstractNodeAmPlugin {
     @Override
     public void onInstall() throws PluginException {
         super.onInstall();
+        pluginTools.installService(TwilioVerifyService.class);
     }
 
     /**
      * Handle plugin startup. This method will be called every time AM starts, after {@link #onInstall()},
      * {@link #onAmUpgrade(String, String)} and {@link #upgrade(String)} have been called (if relevant).
      * <p>
-     * No need to implement this unless your AuthNode has specific requirements on startup.
-     *
-     * @param startupType The type of startup that is taking place.
+     * Applies the {@link TwilioVerifyService} settings of the root realm to the shared transport, caches, executor,
+     * circuit breakers, send throttle, pending verification store, error log and journey budget, and starts publishing
+     * the node metrics. Shares the throttle and pending verifications through the CTS when enabled. Registers the
+     * carrier lookup prewarm job with JMX.
      */
     @Override
     public void onStartup() throws PluginException {
         super.onStartup();
+        TwilioVerifyService settings = loadSettings();
+        if (transport != null) {
+            transport.configure(settings);
+        }
+        if (lookupCache != null) {
+            lookupCache.setMaxEntries(settings.lookupCacheMaxEntries());
+        }
+        if (identityCache != null) {
+            identityCache.setMaxEntries(settings.identityCacheMaxEntries());
+        }
+        if (taskExecutor != null) {
+            taskExecutor.configure(settings);
+            logger.info(loggerPrefix + "Background Twilio calls run on {} threads",
+                        TwilioExecutors.isVirtual() ? "virtual" : "platform");
+        }
+        if (callGuard != null) {
+            callGuard.configure(settings);
+        }
+        VerificationStore sharedStore = settings.clusterStore() ? clusterStore : null;
+        if (sendThrottle != null) {
+            sendThrottle.setMaxEntries(settings.throttleMaxEntries());
+            sendThrottle.setStore(sharedStore);
+        }
+        if (pendingStore != null) {
+            pendingStore.setMaxEntries(settings.pendingStoreMaxEntries());
+            pendingStore.setStore(sharedStore);
+        }
+        if (sharedStore != null) {
+            logger.info(loggerPrefix + "Pending verifications and send throttles are shared through the CTS");
+        }
+        if (errorLog != null) {
+            errorLog.configure(settings);
+        }
+        if (journeyDeadline != null) {
+            journeyDeadline.configure(settings);
+        }
+        if (metricsPublisher != null) {
+            metricsPublisher.start(settings.metricRegistry());
+        }
+        if (lookupPrewarm != null) {
+            registerMBean(lookupPrewarm, CarrierLookupPrewarm.OBJECT_NAME);
+        }
+    }
+
+    /**
+     * Handle plugin shutdown. Releases the Twilio clients held by the plugin and withdraws its metrics.
+     */
+    @Override
+    public void onShutdown() {
+        if (metricsPublisher != null) {
+            metricsPublisher.stop();
+        }
+        if (lookupPrewarm != null) {
+            lookupPrewarm.cancel();
+            unregisterMBean(CarrierLookupPrewarm.OBJECT_NAME);
+        }
+        if (clientRegistry != null) {
+            clientRegistry.clear();
+        }
+        if (transport != null) {
+            transport.shutdown();
+        }
+        if (identityCache != null) {
+            identityCache.shutdown();
+        }
+        if (taskExecutor != null) {
+            taskExecutor.shutdown();
+        }
+        super.onShutdown();
     }
 
     /**
@@ -115,6 +356,9 @@ public class VerifyAuthNodePlugin extends AbstractNodeAmPlugin {
         pluginTools.upgradeAuthNode(VerifyAuthCollectorDecisionNode.class);
         pluginTools.upgradeAuthNode(VerifyAuthLookupNode.class);
         pluginTools.upgradeAuthNode(VerifyAuthIdentifierNode.class);
+        if (isOlder(fromVersion, serviceVersion)) {
+            pluginTools.installService(TwilioVerifyService.class);
+        }
         super.upgrade(fromVersion);
     }
 
@@ -128,4 +372,55 @@ public class VerifyAuthNodePlugin extends AbstractNodeAmPlugin {
     public String getPluginVersion() {
         return VerifyAuthNodePlugin.currentVersion;
     }
+
+    private TwilioVerifyService loadSettings() {
+        if (serviceRegistry == null) {
+            return TwilioVerifyService.DEFAULTS;
+        }
+        try {
+            return serviceRegistry.getRealmSingleton(TwilioVerifyService.class, Realm.root())
+                                  .orElse(TwilioVerifyService.DEFAULTS);
+        } catch (SSOException | SMSException e) {
+            logger.warn(loggerPrefix + "Unable to read the Twilio Verify service settings, using defaults", e);
+            return TwilioVerifyService.DEFAULTS;
+        }
+    }
+
+    private void registerMBean(Object mbean, String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(name);
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(mbean, objectName);
+        } catch (JMException e) {
+            logger.warn(loggerPrefix + "Unable to register " + name + " with JMX", e);
+        }
+    }
+
+    private void unregisterMBean(String name) {
+        try {
+            ObjectName objectName = new ObjectName(name);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        } catch (JMException e) {
+            logger.warn(loggerPrefix + "Unable to unregister " + name + " from JMX", e);
+        }
+    }
+
+    private static boolean isOlder(String version, String than) {
+        String[] left = version.split("\\.");
+        String[] right = than.split("\\.");
+        for (int i = 0; i < Math.max(left.length, right.length); i++) {
+            int l = i < left.length ? Integer.parseInt(left[i].replaceAll("\\D.*", "")) : 0;
+            int r = i < right.length ? Integer.parseInt(right[i].replaceAll("\\D.*", "")) : 0;
+            if (l != r) {
+                return l < r;
+            }
+        }
+        return false;
+    }
 }
@@ -19,13 +19,15 @@ package com.twilio.verify;
 
 import com.google.inject.assistedinject.Assisted;
 import com.sun.identity.sm.RequiredValueValidator;
-import com.twilio.Twilio;
+import com.twilio.http.TwilioRestClient;
 import com.twilio.rest.verify.v2.service.Verification;
+import com.twilio.rest.verify.v2.service.VerificationCreator;
 import org.forgerock.json.JsonValue;
 import org.forgerock.openam.annotations.sm.Attribute;
 import org.forgerock.openam.auth.node.api.AbstractDecisionNode;
 import org.forgerock.openam.auth.node.api.Action;
 import org.forgerock.openam.auth.node.api.Node;
+import org.forgerock.openam.auth.node.api.NodeState;
 import org.forgerock.openam.auth.node.api.TreeContext;
 import org.forgerock.openam.sm.annotations.adapters.Password;
 import org.forgerock.util.i18n.PreferredLocales;
@@ -36,6 +38,10 @@ import javax.inject.Inject;
 import javax.security.auth.callback.NameCallback;
 import javax.security.auth.callback.TextOutputCallback;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
 
 import static org.forgerock.openam.auth.node.api.Action.send;
 /**
@@ -46,10 +52,25 @@ import static org.forgerock.openam.auth.node.api.Action.send;
 public class VerifyAuthSenderNode extends AbstractDecisionNode {
 
     static final String SERVICE_SID = "serviceSID";
+    static final String ACCOUNT_SID = "accountSID";
+    static final String SEND_HANDLE = "twilioSendHandle";
+    /** Set in shared state when the verification was recorded in the {@link PendingVerificationStore}. */
+    static final String REUSABLE = "twilioReusable";
+    static final String NODE_NAME = "sender";
     private static final String BUNDLE = "com/twilio/verify/VerifyAuthSenderNode";
+    private static final int MAX_PROMPTS = 32;
     private final Logger logger = LoggerFactory.getLogger(VerifyAuthSenderNode.class);
     private final Config config;
-    private String loggerPrefix = "[Twilio Auth Sender Node][Partner] ";
+    private final TwilioClientRegistry clientRegistry;
+    private final VerificationDispatcher dispatcher;
+    private final TwilioCallGuard callGuard;
+    private final SendThrottle sendThrottle;
+    private final PendingVerificationStore pendingStore;
+    private final TwilioMetrics metrics;
+    private final TwilioErrorLog errorLog;
+    private final JourneyDeadline deadline;
+    private final ConcurrentMap<List<Locale>, IdentifierPrompt> prompts = new ConcurrentHashMap<>();
+    private final String loggerPrefix = "[Twilio Auth Sender Node][Partner] ";
 
     /**
      * Configuration for the node.
@@ -99,6 +120,46 @@ public class VerifyAuthSenderNode extends AbstractDecisionNode {
             return "userIdentifier";
         }
 
+        /**
+         * Send the verification in the background and continue to the next node without waiting for Twilio.
+         */
+        @Attribute(order = 700)
+        default boolean asynchronousSend() {
+            return false;
+        }
+
+        /**
+         * The number of sends to the same identifier and channel allowed in quick succession, or 0 for no limit.
+         */
+        @Attribute(order = 800)
+        default int sendBurst() {
+            return 0;
+        }
+
+        /**
+         * Milliseconds after which one more send to the same identifier and channel is allowed.
+         */
+        @Attribute(order = 900)
+        default int sendRefillInterval() {
+            return 60000;
+        }
+
+        /**
+         * Milliseconds within which a verification already sent to the identifier is reused, or 0 to always send.
+         */
+        @Attribute(order = 1000)
+        default int reuseWindow() {
+            return 0;
+        }
+
+        /**
+         * Whether errors reported by Twilio take the outcome of their {@link TwilioError} instead of the error outcome.
+         */
+        @Attribute(order = 1100)
+        default boolean errorOutcomes() {
+            return false;
+        }
+
     }
 
 
@@ -107,43 +168,165 @@ public class VerifyAuthSenderNode extends AbstractDecisionNode {
      * from the plugin.
      *
      * @param config The service config.
+     * @param clientRegistry The registry of shared Twilio clients.
+     * @param dispatcher The dispatcher used for asynchronous sends.
+     * @param callGuard The circuit breaker and bulkhead guarding Twilio calls.
+     * @param sendThrottle The throttle limiting sends to the same identifier.
+     * @param pendingStore The store of verifications recently sent.
+     * @param metrics The latency and outcome metrics of the nodes.
+     * @param errorLog The log of the errors the nodes run into.
+     * @param deadline The latency budget of the journey.
      */
     @Inject
-    public VerifyAuthSenderNode(@Assisted Config config) {
+    public VerifyAuthSenderNode(@Assisted Config config, TwilioClientRegistry clientRegistry,
+                                VerificationDispatcher dispatcher, TwilioCallGuard callGuard,
+                                SendThrottle sendThrottle, PendingVerificationStore pendingStore,
+                                TwilioMetrics metrics, TwilioErrorLog errorLog, JourneyDeadline deadline) {
         this.config = config;
-        Twilio.init(config.accountSID(), String.valueOf(config.authToken()));
+        this.clientRegistry = clientRegistry;
+        this.dispatcher = dispatcher;
+        this.callGuard = callGuard;
+        this.sendThrottle = sendThrottle;
+        this.pendingStore = pendingStore;
+        this.metrics = metrics;
+        this.errorLog = errorLog;
+        this.deadline = deadline;
     }
 
     @Override
     public Action process(TreeContext context) {
+        return metrics.outcome(NODE_NAME, sendCode(context));
+    }
+
+    private Action sendCode(TreeContext context) {
         logger.debug(loggerPrefix + "Started");
         try {
-            ResourceBundle bundle = context.request.locales.getBundleInPreferredLocale(BUNDLE, getClass().getClassLoader());
+            JourneyDeadline.Budget budget = deadline.budget(context.getStateFor(this));
             String userIdentifier = context.sharedState.get(config.identifierSharedState()).asString();
             if (null == userIdentifier && config.requestIdentifier()) {
-                boolean isPhone = config.channel().currentChannel() == "sms" ||
-                        config.channel().currentChannel() == "call" || config.channel().currentChannel() == "whatsapp";
                 if (context.hasCallbacks() && context.getCallback(NameCallback.class).isPresent()) {
-                    String callbackValue = context.getCallback(NameCallback.class).get().getName();
-                    userIdentifier = isPhone ? "+" + callbackValue.replaceAll("[\\D]", "") : callbackValue;
+                    userIdentifier = context.getCallback(NameCallback.class).get().getName();
                     logger.debug(loggerPrefix + "User Identifier is {}", userIdentifier);
                 } else {
-                    String key = isPhone ? "phoneNumber" : "email";
-                    return send(Arrays.asList(new TextOutputCallback(TextOutputCallback.INFORMATION,
-                                                                     bundle.getString("callback." + key + "Text")),
-                                              new NameCallback(bundle.getString("callback." + key), config.identifierSharedState())))
+                    IdentifierPrompt prompt = prompt(context.request.locales);
+                    return send(prompt.text, new NameCallback(prompt.identifier, config.identifierSharedState()))
                             .build();
                 }
 
             }
-            Verification.creator(config.serviceSID(), userIdentifier, config.channel().currentChannel()).create();
-            return Action.goTo("true").replaceSharedState(
-                    context.sharedState.put(SERVICE_SID, config.serviceSID()).put(config.identifierSharedState(), userIdentifier)).build();
+            userIdentifier = IdentifierNormalizer.normalize(userIdentifier, config.channel());
+            if (config.reuseWindow() > 0 && pendingStore.isPending(config.serviceSID(), userIdentifier,
+                                                                    config.channel(), config.reuseWindow())) {
+                logger.debug(loggerPrefix + "Reusing pending verification for {}", userIdentifier);
+                return sent(context, userIdentifier);
+            }
+            if (callGuard.isOpen(config.accountSID(), TwilioEndpoint.VERIFICATION)) {
+                throw new TwilioUnavailableException("Circuit breaker for verification is open");
+            }
+            budget.check();
+            // Only take a token for a send that is about to be made, so refused sends do not use up the burst.
+            if (!sendThrottle.tryAcquire(userIdentifier, config.channel(), config.sendBurst(),
+                                         config.sendRefillInterval())) {
+                logger.debug(loggerPrefix + "Send to {} throttled", userIdentifier);
+                context.getStateFor(this).putShared(config.identifierSharedState(), userIdentifier);
+                return Action.goTo(OutcomeProvider.THROTTLED_OUTCOME).build();
+            }
+            TwilioRestClient client = clientRegistry.getClient(config.accountSID(), config.authToken());
+            VerificationCreator creator = Verification.creator(config.serviceSID(), userIdentifier,
+                                                               config.channel().currentChannel());
+            String identifier = userIdentifier;
+            Supplier<Verification> send = () -> {
+                try {
+                    return metrics.time(NODE_NAME, TwilioEndpoint.VERIFICATION, config.channel().currentChannel(),
+                                        () -> callGuard.call(config.accountSID(), TwilioEndpoint.VERIFICATION,
+                                                             budget.bound(() -> creator.create(client))));
+                } catch (RuntimeException e) {
+                    if (config.reuseWindow() > 0) {
+                        pendingStore.remove(config.serviceSID(), identifier);
+                    }
+                    throw e;
+                }
+            };
+            if (config.reuseWindow() > 0) {
+                pendingStore.record(config.serviceSID(), userIdentifier, config.channel(), config.reuseWindow());
+            }
+            String handle = null;
+            if (config.asynchronousSend()) {
+                try {
+                    handle = dispatcher.dispatch(send);
+                    logger.debug(loggerPrefix + "Verification dispatched with handle {}", handle);
+                } catch (RejectedExecutionException e) {
+                    logger.warn(loggerPrefix + "Background executor is saturated, sending synchronously");
+                }
+            }
+            if (handle == null) {
+                send.get();
+                context.getStateFor(this).remove(SEND_HANDLE);
+            } else {
+                context.getStateFor(this).putShared(SEND_HANDLE, handle);
+            }
+            return sent(context, userIdentifier);
         } catch(Exception ex) {
-            logger.error(loggerPrefix + "Exception occurred" + ex.getMessage());
-            ex.printStackTrace();
-            context.sharedState.put("Exception", ex.toString());
-            return Action.goTo("error").build();
+            TwilioError error = errorLog.log(logger, loggerPrefix, ex);
+            context.getStateFor(this).putShared(TwilioError.STATE_KEY, error.name());
+            return Action.goTo(config.errorOutcomes() ? error.outcome(OutcomeProvider.ERROR_OUTCOME)
+                                                      : OutcomeProvider.ERROR_OUTCOME).build();
+        }
+    }
+
+    /**
+     * Record the verification for the collector node. Only the keys the collector needs are written, one at a time,
+     * as shared state travels with every request of the journey.
+     */
+    private Action sent(TreeContext context, String userIdentifier) {
+        context.getStateFor(this).putShared(SERVICE_SID, config.serviceSID())
+               .putShared(ACCOUNT_SID, config.accountSID())
+               .putShared(config.identifierSharedState(), userIdentifier);
+        markReusable(context.getStateFor(this), config.reuseWindow());
+        return Action.goTo("true").build();
+    }
+
+    /**
+     * Tell the collector node whether there is a pending send to forget once the code is approved or resent, so that
+     * journeys without a reuse window never touch the store.
+     */
+    static void markReusable(NodeState state, int reuseWindow) {
+        if (reuseWindow > 0) {
+            state.putShared(REUSABLE, true);
+        } else {
+            state.remove(REUSABLE);
+        }
+    }
+
+    /**
+     * Get the localized identifier prompt for the preferred locales of a request, resolving the bundle only the first
+     * time the locales are seen.
+     */
+    private IdentifierPrompt prompt(PreferredLocales locales) {
+        IdentifierPrompt prompt = prompts.get(locales.getLocales());
+        if (prompt == null) {
+            ResourceBundle bundle = locales.getBundleInPreferredLocale(BUNDLE, getClass().getClassLoader());
+            String key = config.channel().isPhone() ? "phoneNumber" : "email";
+            prompt = new IdentifierPrompt(bundle.getString("callback." + key + "Text"),
+                                          bundle.getString("callback." + key));
+            if (prompts.size() < MAX_PROMPTS) {
+                prompts.putIfAbsent(new ArrayList<>(locales.getLocales()), prompt);
+            }
+        }
+        return prompt;
+    }
+
+    /**
+     * The immutable parts of the identifier callbacks for one set of locales. The text output callback has no setters,
+     * so it is shared between requests.
+     */
+    private static final class IdentifierPrompt {
+        private final TextOutputCallback text;
+        private final String identifier;
+
+        private IdentifierPrompt(String text, String identifier) {
+            this.text = new TextOutputCallback(TextOutputCallback.INFORMATION, text);
+            this.identifier = identifier;
         }
     }
 
@@ -162,6 +345,15 @@ public class VerifyAuthSenderNode extends AbstractDecisionNode {
         public String currentChannel() {
             return currentChannel;
         }
+
+        /**
+         * Whether the channel delivers the code to a phone number.
+         *
+         * @return Whether the identifier for this channel is a phone number.
+         */
+        public boolean isPhone() {
+            return this != EMAIL;
+        }
     }
     public static final class OutcomeProvider implements org.forgerock.openam.auth.node.api.OutcomeProvider {
         /**
@@ -169,20 +361,41 @@ public class VerifyAuthSenderNode extends AbstractDecisionNode {
          */
         static final String SUCCESS_OUTCOME = "true";
         static final String ERROR_OUTCOME = "error";
-        private static final String BUNDLE = VerifyAuthSenderNode.class.getName();
+        static final String THROTTLED_OUTCOME = "throttled";
+        private static final int THROTTLED = 1;
+        private static final int ERRORS = 2;
+        private static final List<List<Outcome>> OUTCOMES = new ArrayList<>();
+
+        static {
+            for (int flags = 0; flags <= (THROTTLED | ERRORS); flags++) {
+                OUTCOMES.add(outcomes(flags));
+            }
+        }
 
         @Override
         public List<Outcome> getOutcomes(PreferredLocales locales, JsonValue nodeAttributes) {
+            int flags = 0;
+            if (nodeAttributes.isNotNull()) {
+                if (nodeAttributes.get("sendBurst").defaultTo(0).asInteger() > 0) {
+                    flags |= THROTTLED;
+                }
+                if (nodeAttributes.get("errorOutcomes").defaultTo(false).asBoolean()) {
+                    flags |= ERRORS;
+                }
+            }
+            return OUTCOMES.get(flags);
+        }
 
-            ResourceBundle bundle = locales.getBundleInPreferredLocale(BUNDLE, OutcomeProvider.class.getClassLoader());
-
-            List<Outcome> results = new ArrayList<>(
-                    Arrays.asList(
-                            new Outcome(SUCCESS_OUTCOME, "True")
-                    )
-            );
+        private static List<Outcome> outcomes(int flags) {
+            List<Outcome> results = new ArrayList<>();
+            results.add(new Outcome(SUCCESS_OUTCOME, "True"));
+            if ((flags & THROTTLED) != 0) {
+                results.add(new Outcome(THROTTLED_OUTCOME, "Throttled"));
+            }
+            if ((flags & ERRORS) != 0) {
+                TwilioError.addOutcomes(results);
+            }
             results.add(new Outcome(ERROR_OUTCOME, "Error"));
-
             return Collections.unmodifiableList(results);
         }
     }
@@ -0,0 +1,126 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2018 ForgeRock AS.
+ */
+
+
+
+package com.twilio.verify;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates the pools that run blocking Twilio calls off the AM request threads.
+ * <p>
+ * This is the Java 21 implementation, packaged in the multi-release jar. Every call runs on a virtual thread of its
+ * own, which releases its carrier thread while waiting for Twilio, so a latency spike parks cheap virtual threads
+ * instead of tying up platform threads. A semaphore keeps the number of calls running at a time to the configured
+ * number of threads, and submissions beyond that and the queue size are rejected as by the Java 11 pool.
+ */
+final class TwilioExecutors {
+
+    private TwilioExecutors() {
+    }
+
+    /**
+     * Create a pool running at most {@code threads} calls at a time and holding at most {@code queueSize} more.
+     * Further submissions are rejected with a {@link RejectedExecutionException}.
+     *
+     * @param name The prefix of the names of the threads.
+     * @param threads The maximum number of calls running at a time.
+     * @param queueSize The maximum number of calls waiting to run.
+     * @return The pool.
+     */
+    static ExecutorService newExecutor(String name, int threads, int queueSize) {
+        return new BoundedVirtualThreadExecutor(name, threads, queueSize);
+    }
+
+    /**
+     * @return Whether the calls run on virtual threads.
+     */
+    static boolean isVirtual() {
+        return true;
+    }
+
+    /**
+     * Starts a virtual thread per task. A task waits on its own virtual thread for one of the running permits, so
+     * queued tasks cost no platform thread.
+     */
+    private static final class BoundedVirtualThreadExecutor extends AbstractExecutorService {
+
+        private final ExecutorService delegate;
+        private final Semaphore running;
+        private final Semaphore admitted;
+
+        private BoundedVirtualThreadExecutor(String name, int threads, int queueSize) {
+            this.delegate = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name, 1).factory());
+            this.running = new Semaphore(threads);
+            this.admitted = new Semaphore(threads + queueSize);
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            if (!admitted.tryAcquire()) {
+                throw new RejectedExecutionException("Twilio executor is saturated");
+            }
+            try {
+                delegate.execute(() -> {
+                    // An admitted task always runs, as the future of a CompletableFuture.supplyAsync would otherwise
+                    // never complete. An interrupt while waiting is kept for the task to see.
+                    running.acquireUninterruptibly();
+                    try {
+                        task.run();
+                    } finally {
+                        running.release();
+                        admitted.release();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                admitted.release();
+                throw e;
+            }
+        }
+
+        @Override
+        public void shutdown() {
+            delegate.shutdown();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return delegate.shutdownNow();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return delegate.isShutdown();
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return delegate.isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            return delegate.awaitTermination(timeout, unit);
+        }
+    }
+}
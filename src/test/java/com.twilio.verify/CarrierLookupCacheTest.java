@@ -0,0 +1,75 @@
+/*
+ * Copyright 2019-2020 ForgeRock AS. All Rights Reserved
+ *
+ * Use of this code requires a commercial software license with ForgeRock AS.
+ * or with one of its affiliates. All use shall be exclusively subject
+ * to such license between the licensee and ForgeRock AS.
+ */
+
+package com.twilio.verify;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class CarrierLookupCacheTest {
+
+    private final AtomicLong now = new AtomicLong();
+
+    private CarrierLookupCache cache;
+
+    @BeforeMethod
+    public void setUp() {
+        now.set(0);
+        cache = new CarrierLookupCache(now::get);
+    }
+
+    @Test
+    public void testNegativeResultsExpireBeforePositiveResults() {
+        cache.put("+11234567890", "mobile", 1000, 100);
+        cache.put("+11234567891", "voip", 1000, 100);
+
+        now.set(500);
+
+        assertThat(cache.get("+11234567890")).contains("mobile");
+        assertThat(cache.get("+11234567891")).isEmpty();
+        assertThat(cache.getHits()).isEqualTo(1);
+        assertThat(cache.getMisses()).isEqualTo(1);
+    }
+
+    @Test
+    public void testContainsDoesNotCountHitsOrMisses() {
+        cache.put("+11234567890", "mobile", 1000, 100);
+
+        assertThat(cache.contains("+11234567890")).isTrue();
+        assertThat(cache.contains("+11234567891")).isFalse();
+        now.set(1000);
+        assertThat(cache.contains("+11234567890")).isFalse();
+        assertThat(cache.getHits()).isZero();
+        assertThat(cache.getMisses()).isZero();
+    }
+
+    @Test
+    public void testNumbersAreNormalizedBeforeCaching() {
+        cache.put("1(123)456-7890", "mobile", 1000, 100);
+
+        assertThat(cache.get("+11234567890")).contains("mobile");
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEntryIsEvicted() {
+        cache.setMaxEntries(2);
+        cache.put("+11234567890", "mobile", 1000, 1000);
+        cache.put("+11234567891", "mobile", 1000, 1000);
+        cache.get("+11234567890");
+        cache.put("+11234567892", "mobile", 1000, 1000);
+
+        assertThat(cache.size()).isEqualTo(2);
+        assertThat(cache.getEvictions()).isEqualTo(1);
+        assertThat(cache.get("+11234567891")).isEmpty();
+        assertThat(cache.get("+11234567890")).contains("mobile");
+    }
+}
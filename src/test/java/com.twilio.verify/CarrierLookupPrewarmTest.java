@@ -0,0 +1,168 @@
+/*
+ * Copyright 2019-2020 ForgeRock AS. All Rights Reserved
+ *
+ * Use of this code requires a commercial software license with ForgeRock AS.
+ * or with one of its affiliates. All use shall be exclusively subject
+ * to such license between the licensee and ForgeRock AS.
+ */
+
+package com.twilio.verify;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CarrierLookupPrewarmTest {
+
+    private static final String ACCOUNT = "AC00000000000000000000000000000000";
+    private static final int TTL = 3600;
+
+    private LocalTwilioServer server;
+    private TwilioHttpTransport transport;
+    private CarrierLookupCache lookupCache;
+    private TwilioCallGuard callGuard;
+    private CarrierLookupPrewarm prewarm;
+    private Path file;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        server = new LocalTwilioServer(4);
+        transport = new TwilioHttpTransport();
+        transport.configure(new TwilioVerifyService() {
+            @Override
+            public String apiBaseUrl() {
+                return server.getBaseUrl();
+            }
+        });
+        lookupCache = new CarrierLookupCache();
+        callGuard = new TwilioCallGuard();
+        prewarm = prewarm(ACCOUNT, "token");
+        file = Files.createTempFile("prewarm", ".txt");
+    }
+
+    /**
+     * Create a job reading its credentials from a realm with the given prewarm settings.
+     */
+    private CarrierLookupPrewarm prewarm(String accountSID, String authToken) {
+        TwilioVerifyService settings = new TwilioVerifyService() {
+            @Override
+            public String prewarmAccountSID() {
+                return accountSID;
+            }
+
+            @Override
+            public char[] prewarmAuthToken() {
+                return authToken.toCharArray();
+            }
+        };
+        return new CarrierLookupPrewarm(null, new TwilioClientRegistry(transport), lookupCache, callGuard,
+                                        new TwilioMetrics(), new TwilioErrorLog()) {
+            @Override
+            Optional<TwilioVerifyService> settings(String realm) {
+                return "/".equals(realm) ? Optional.of(settings) : Optional.empty();
+            }
+        };
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        prewarm.cancel();
+        prewarm.await(10, TimeUnit.SECONDS);
+        transport.shutdown();
+        server.close();
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void testNumbersAreLookedUpAndCached() throws Exception {
+        server.setLineType("+18457412694", "landline");
+        lookupCache.put("+18457412695", CarrierLookupCache.MOBILE, 60000, 60000);
+        write("# numbers to prewarm", "+18457412693", "", "1 845 741 2694", "+18457412695", "not a number");
+
+        assertThat(prewarm.start(file.toString(), "/", 2, 1000, TTL, TTL)).isEqualTo("Started");
+        assertThat(prewarm.await(10, TimeUnit.SECONDS)).isTrue();
+
+        assertThat(prewarm.getRead()).isEqualTo(6);
+        assertThat(prewarm.getSkipped()).isEqualTo(3);
+        assertThat(prewarm.getCompleted()).isEqualTo(2);
+        assertThat(prewarm.getFailed()).isEqualTo(1);
+        assertThat(prewarm.getLastFailure()).startsWith("Line 6: ");
+        assertThat(lookupCache.get("+18457412693")).contains(CarrierLookupCache.MOBILE);
+        assertThat(lookupCache.get("+18457412694")).contains("landline");
+        assertThat(server.getRequestCount(TwilioEndpoint.LOOKUP)).isEqualTo(2);
+        assertThat(lookupCache.getHits()).isEqualTo(2);
+        assertThat(lookupCache.getMisses()).isZero();
+    }
+
+    @Test
+    public void testFailedLookupsAreCounted() throws Exception {
+        server.failNext(1, 404);
+        write("+18457412693");
+
+        prewarm.start(file.toString(), "/", 1, 1000, TTL, TTL);
+        assertThat(prewarm.await(10, TimeUnit.SECONDS)).isTrue();
+
+        assertThat(prewarm.getCompleted()).isZero();
+        assertThat(prewarm.getFailed()).isEqualTo(1);
+        assertThat(prewarm.getLastFailure()).startsWith("+18457412693: ");
+        assertThat(lookupCache.get("+18457412693")).isEmpty();
+    }
+
+    @Test
+    public void testParallelismIsCappedToAQuarterOfTheConcurrentCalls() throws Exception {
+        callGuard.configure(new TwilioVerifyService() {
+            @Override
+            public int maxConcurrentCalls() {
+                return 4;
+            }
+        });
+        AtomicInteger maxInFlight = new AtomicInteger();
+        server.setLatency(() -> {
+            maxInFlight.accumulateAndGet(callGuard.getCallsInFlight(), Math::max);
+            return 20;
+        });
+        write("+18457412693", "+18457412694", "+18457412695", "+18457412696");
+
+        assertThat(prewarm.start(file.toString(), "/", 4, 1000, TTL, TTL)).isEqualTo("Started with parallelism 1");
+        assertThat(prewarm.await(10, TimeUnit.SECONDS)).isTrue();
+
+        assertThat(prewarm.getCompleted()).isEqualTo(4);
+        assertThat(maxInFlight.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void testOnlyOneJobRunsAtATime() throws Exception {
+        write("+18457412693", "+18457412694", "+18457412695");
+
+        assertThat(prewarm.start(file.toString(), "/", 1, 1, TTL, TTL)).isEqualTo("Started");
+        assertThat(prewarm.isRunning()).isTrue();
+        assertThat(prewarm.start(file.toString(), "/", 1, 1, TTL, TTL))
+                .isEqualTo("A prewarm job is already running");
+
+        prewarm.cancel();
+        assertThat(prewarm.await(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(prewarm.getCompleted()).isLessThan(3);
+    }
+
+    @Test
+    public void testJobsWithoutCredentialsClientOrFileAreRefused() {
+        assertThat(prewarm.start(file.toString(), "/other", 1, 1, TTL, TTL)).startsWith("No prewarm account");
+        assertThat(prewarm(ACCOUNT, "").start(file.toString(), "/", 1, 1, TTL, TTL)).startsWith("No client");
+        assertThat(prewarm.start(file + ".missing", "/", 1, 1, TTL, TTL)).startsWith("Cannot read");
+        assertThat(prewarm.isRunning()).isFalse();
+    }
+
+    private void write(String... lines) throws Exception {
+        Files.write(file, Arrays.asList(lines), StandardCharsets.UTF_8);
+    }
+}
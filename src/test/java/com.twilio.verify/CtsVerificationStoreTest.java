@@ -0,0 +1,113 @@
+/*
+ * Copyright 2019-2020 ForgeRock AS. All Rights Reserved
+ *
+ * Use of this code requires a commercial software license with ForgeRock AS.
+ * or with one of its affiliates. All use shall be exclusively subject
+ * to such license between the licensee and ForgeRock AS.
+ */
+
+package com.twilio.verify;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import org.forgerock.openam.cts.CTSPersistentStore;
+import org.forgerock.openam.cts.api.tokens.Token;
+import org.forgerock.openam.cts.exceptions.CoreTokenException;
+import org.forgerock.openam.tokens.TokenType;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Calendar;
+
+public class CtsVerificationStoreTest {
+
+    private static final String KEY = "twilio-p-VA123-key";
+    private static final long NOW = 1_600_000_000_000L;
+
+    @Mock
+    private CTSPersistentStore cts;
+
+    private CtsVerificationStore store;
+
+    @BeforeMethod
+    public void setUp() {
+        initMocks(this);
+        store = new CtsVerificationStore(cts, new TwilioErrorLog(), () -> NOW);
+    }
+
+    @Test
+    public void testEntriesAreGenericTokensWithExpiry() throws Exception {
+        store.put(KEY, "0abc", 1000);
+
+        ArgumentCaptor<Token> token = ArgumentCaptor.forClass(Token.class);
+        verify(cts).create(token.capture());
+        assertThat(token.getValue().getTokenId()).isEqualTo(KEY);
+        assertThat(token.getValue().getType()).isEqualTo(TokenType.GENERIC);
+        assertThat(token.getValue().getExpiryTimestamp().getTimeInMillis()).isEqualTo(NOW + 1000);
+        assertThat(new String(token.getValue().getBlob(), StandardCharsets.UTF_8)).isEqualTo("0abc");
+        verify(cts, never()).read(KEY);
+    }
+
+    @Test
+    public void testExistingEntriesAreUpdated() throws Exception {
+        doThrow(new CoreTokenException("exists")).when(cts).create(any(Token.class));
+        when(cts.read(KEY)).thenReturn(token(NOW + 1));
+
+        store.put(KEY, "0abc", 1000);
+
+        ArgumentCaptor<Token> token = ArgumentCaptor.forClass(Token.class);
+        verify(cts).update(token.capture());
+        assertThat(token.getValue().getExpiryTimestamp().getTimeInMillis()).isEqualTo(NOW + 1000);
+    }
+
+    @Test
+    public void testCreateFailuresWithoutATokenAreNotRetriedAsUpdates() throws Exception {
+        doThrow(new CoreTokenException("unavailable")).when(cts).create(any(Token.class));
+
+        store.put(KEY, "0abc", 1000);
+
+        verify(cts, never()).update(any(Token.class));
+    }
+
+    @Test
+    public void testRemovingAMissingEntryDoesNothing() throws Exception {
+        store.remove(KEY);
+
+        verify(cts, never()).delete(KEY);
+    }
+
+    @Test
+    public void testExpiredTokensAreIgnored() throws Exception {
+        when(cts.read(KEY)).thenReturn(token(NOW + 1), token(NOW));
+
+        assertThat(store.get(KEY)).contains("0abc");
+        assertThat(store.get(KEY)).isEmpty();
+    }
+
+    @Test
+    public void testFailuresReadAsMissingEntries() throws Exception {
+        when(cts.read(KEY)).thenThrow(new CoreTokenException("unavailable"));
+
+        assertThat(store.get(KEY)).isEmpty();
+        store.remove(KEY);
+        store.put(KEY, "0abc", 1000);
+    }
+
+    private static Token token(long expiresAt) {
+        Token token = new Token(KEY, TokenType.GENERIC);
+        Calendar expiry = Calendar.getInstance();
+        expiry.setTimeInMillis(expiresAt);
+        token.setExpiryTimestamp(expiry);
+        token.setBlob("0abc".getBytes(StandardCharsets.UTF_8));
+        return token;
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2019-2020 ForgeRock AS. All Rights Reserved
+ *
+ * Use of this code requires a commercial software license with ForgeRock AS.
+ * or with one of its affiliates. All use shall be exclusively subject
+ * to such license between the licensee and ForgeRock AS.
+ */
+
+package com.twilio.verify;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+import com.twilio.verify.VerifyAuthSenderNode.Module;
+import org.testng.annotations.Test;
+
+public class IdentifierNormalizerTest {
+
+    @Test
+    public void testCanonicalNumberIsReturnedAsIs() {
+        String number = "+18457412693";
+
+        assertThat(IdentifierNormalizer.normalizePhone(number)).isSameAs(number);
+    }
+
+    @Test
+    public void testSeparatorsAreDropped() {
+        assertThat(IdentifierNormalizer.normalizePhone("1 (845) 741-2693")).isEqualTo("+18457412693");
+        assertThat(IdentifierNormalizer.normalizePhone("+44 20.7946/0958")).isEqualTo("+442079460958");
+    }
+
+    @Test
+    public void testInvalidNumbersAreRejected() {
+        for (String number : new String[] {"845-741-ABCD", "+12345", "0845741269", "+1234567890123456",
+                                           "+1+8457412693", null}) {
+            assertThatExceptionOfType(InvalidPhoneNumberException.class)
+                    .isThrownBy(() -> IdentifierNormalizer.normalizePhone(number));
+        }
+    }
+
+    @Test
+    public void testChannelSelectsNormalization() {
+        assertThat(IdentifierNormalizer.normalize("1-845-741-2693", Module.WHATSAPP)).isEqualTo("+18457412693");
+        assertThat(IdentifierNormalizer.normalize(" User@Example.com ", Module.EMAIL)).isEqualTo("user@example.com");
+        assertThat(Module.SMS.isPhone()).isTrue();
+        assertThat(Module.CALL.isPhone()).isTrue();
+        assertThat(Module.EMAIL.isPhone()).isFalse();
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2019-2020 ForgeRock AS. All Rights Reserved
+ *
+ * Use of this code requires a commercial software license with ForgeRock AS.
+ * or with one of its affiliates. All use shall be exclusively subject
+ * to such license between the licensee and ForgeRock AS.
+ */
+
+package com.twilio.verify;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import com.sun.identity.idm.AMIdentityRepository;
+import com.sun.identity.idm.IdRepoException;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class IdentityAttributeCacheTest {
+
+    private static final String REALM = "/alpha";
+    private static final String DEMO = "id=demo,ou=user,o=alpha,ou=services,dc=example";
+    private static final String OTHER = "id=other,ou=user,o=alpha,ou=services,dc=example";
+    private static final String PHONE_ATTRIBUTE = "telephoneNumber";
+    private static final Set<String> PHONE = Collections.singleton("+18457412693");
+
+    private final AtomicLong now = new AtomicLong();
+    private final AtomicInteger repositoriesOpened = new AtomicInteger();
+    private final AMIdentityRepository repository = mock(AMIdentityRepository.class);
+
+    private IdentityAttributeCache cache;
+
+    @BeforeMethod
+    public void setUp() {
+        now.set(0);
+        repositoriesOpened.set(0);
+        cache = new IdentityAttributeCache(now::get) {
+            @Override
+            AMIdentityRepository repository(String realm) {
+                repositoriesOpened.incrementAndGet();
+                return repository;
+            }
+        };
+    }
+
+    @Test
+    public void testValuesAreCachedUntilTheyExpire() {
+        cache.put(REALM, DEMO, PHONE_ATTRIBUTE, PHONE, 1000, 100);
+        cache.put(REALM, OTHER, PHONE_ATTRIBUTE, null, 1000, 100);
+
+        now.set(500);
+        assertThat(cache.get(DEMO, PHONE_ATTRIBUTE)).contains(PHONE);
+        assertThat(cache.get(OTHER, PHONE_ATTRIBUTE)).isEmpty();
+        assertThat(cache.get(DEMO, "mail")).isEmpty();
+
+        now.set(1000);
+        assertThat(cache.get(DEMO, PHONE_ATTRIBUTE)).isEmpty();
+    }
+
+    @Test
+    public void testUsersWithoutValuesAreCachedAsEmpty() {
+        cache.put(REALM, OTHER, PHONE_ATTRIBUTE, null, 1000, 100);
+
+        assertThat(cache.get(OTHER, PHONE_ATTRIBUTE)).contains(Collections.emptySet());
+    }
+
+    @Test
+    public void testAliasesResolveToTheSameEntries() {
+        cache.putUniversalId(REALM, "demo", DEMO, 1000);
+        cache.putUniversalId(REALM, "demo@example.com", DEMO, 1000);
+        cache.put(REALM, DEMO, PHONE_ATTRIBUTE, PHONE, 1000, 100);
+
+        assertThat(cache.getUniversalId(REALM, "Demo@Example.com")).contains(DEMO);
+        assertThat(cache.get(cache.getUniversalId(REALM, "demo").get(), PHONE_ATTRIBUTE)).contains(PHONE);
+        assertThat(cache.getUniversalId("/", "demo")).isEmpty();
+    }
+
+    @Test
+    public void testChangedIdentityIsInvalidated() {
+        cache.putUniversalId(REALM, "demo", DEMO, 1000);
+        cache.put(REALM, DEMO, PHONE_ATTRIBUTE, PHONE, 1000, 100);
+        cache.put(REALM, OTHER, PHONE_ATTRIBUTE, PHONE, 1000, 100);
+
+        cache.identityChanged(DEMO.toUpperCase());
+
+        assertThat(cache.get(DEMO, PHONE_ATTRIBUTE)).isEmpty();
+        assertThat(cache.get(OTHER, PHONE_ATTRIBUTE)).contains(PHONE);
+        assertThat(cache.getUniversalId(REALM, "demo")).contains(DEMO);
+    }
+
+    @Test
+    public void testRenamedIdentityForgetsItsUsernames() {
+        cache.putUniversalId(REALM, "demo", DEMO, 1000);
+        cache.put(REALM, DEMO, PHONE_ATTRIBUTE, PHONE, 1000, 100);
+
+        cache.identityRenamed(DEMO);
+
+        assertThat(cache.getUniversalId(REALM, "demo")).isEmpty();
+        assertThat(cache.get(DEMO, PHONE_ATTRIBUTE)).isEmpty();
+    }
+
+    @Test
+    public void testListenerIsRegisteredOncePerRealm() {
+        cache.put(REALM, DEMO, PHONE_ATTRIBUTE, PHONE, 1000, 100);
+        cache.put(REALM, OTHER, PHONE_ATTRIBUTE, PHONE, 1000, 100);
+
+        assertThat(repositoriesOpened.get()).isEqualTo(1);
+        verify(repository).addEventListener(cache);
+
+        cache.shutdown();
+        verify(repository).removeEventListener(cache);
+    }
+
+    @Test
+    public void testFailedListenerIsNotRetried() {
+        AtomicInteger attempts = new AtomicInteger();
+        IdentityAttributeCache unlistened = new IdentityAttributeCache(now::get) {
+            @Override
+            AMIdentityRepository repository(String realm) throws IdRepoException {
+                attempts.incrementAndGet();
+                throw new IdRepoException("unavailable");
+            }
+        };
+
+        unlistened.put(REALM, DEMO, PHONE_ATTRIBUTE, PHONE, 1000, 100);
+        unlistened.put(REALM, OTHER, PHONE_ATTRIBUTE, PHONE, 1000, 100);
+
+        assertThat(attempts.get()).isEqualTo(1);
+        assertThat(unlistened.get(DEMO, PHONE_ATTRIBUTE)).contains(PHONE);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEntryIsEvicted() {
+        cache.setMaxEntries(2);
+        cache.put(REALM, DEMO, PHONE_ATTRIBUTE, PHONE, 1000, 100);
+        cache.put(REALM, OTHER, PHONE_ATTRIBUTE, PHONE, 1000, 100);
+        cache.get(DEMO, PHONE_ATTRIBUTE);
+        cache.put(REALM, DEMO, "mail", Collections.singleton("demo@example.com"), 1000, 100);
+
+        assertThat(cache.get(OTHER, PHONE_ATTRIBUTE)).isEmpty();
+        assertThat(cache.get(DEMO, PHONE_ATTRIBUTE)).contains(PHONE);
+    }
+}
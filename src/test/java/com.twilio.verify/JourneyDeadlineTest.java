@@ -0,0 +1,97 @@
+/*
+ * Copyright 2019-2020 ForgeRock AS. All Rights Reserved
+ *
+ * Use of this code requires a commercial software license with ForgeRock AS.
+ * or with one of its affiliates. All use shall be exclusively subject
+ * to such license between the licensee and ForgeRock AS.
+ */
+
+package com.twilio.verify;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.mockito.Mockito.mock;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.auth.node.api.ExternalRequestContext;
+import org.forgerock.openam.auth.node.api.Node;
+import org.forgerock.openam.auth.node.api.NodeState;
+import org.forgerock.openam.auth.node.api.TreeContext;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Collections;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class JourneyDeadlineTest {
+
+    private final AtomicLong now = new AtomicLong();
+
+    private JourneyDeadline deadline;
+
+    @BeforeMethod
+    public void setUp() {
+        now.set(1_000_000);
+        deadline = new JourneyDeadline(now::get);
+        deadline.configure(new TwilioVerifyService() {
+            @Override
+            public int journeyBudget() {
+                return 5000;
+            }
+        });
+    }
+
+    @Test
+    public void testFirstNodeWritesTheDeadline() {
+        JsonValue sharedState = json(object());
+
+        JourneyDeadline.Budget budget = deadline.budget(state(sharedState));
+
+        assertThat(sharedState.get(JourneyDeadline.STATE_KEY).asLong()).isEqualTo(1_005_000);
+        assertThat(budget.isBounded()).isTrue();
+        assertThat(budget.remaining()).isBetween(4900L, 5000L);
+        assertThat(budget.cap(10000)).isLessThanOrEqualTo(5000);
+        assertThat(budget.cap(100)).isEqualTo(100);
+    }
+
+    @Test
+    public void testLaterNodesKeepTheDeadline() {
+        JsonValue sharedState = json(object(field(JourneyDeadline.STATE_KEY, 1_002_000)));
+        now.addAndGet(500);
+
+        assertThat(deadline.budget(state(sharedState)).remaining()).isBetween(1400L, 1500L);
+        assertThat(sharedState.get(JourneyDeadline.STATE_KEY).asLong()).isEqualTo(1_002_000);
+    }
+
+    @Test
+    public void testSpentBudgetFailsFast() {
+        JsonValue sharedState = json(object(field(JourneyDeadline.STATE_KEY, 999_000)));
+
+        JourneyDeadline.Budget budget = deadline.budget(state(sharedState));
+
+        assertThat(budget.remaining()).isZero();
+        assertThatThrownBy(budget::check).isInstanceOf(JourneyBudgetException.class);
+    }
+
+    @Test
+    public void testNoBudgetIsUnbounded() {
+        JourneyDeadline unconfigured = new JourneyDeadline(now::get);
+        JsonValue sharedState = json(object());
+
+        JourneyDeadline.Budget budget = unconfigured.budget(state(sharedState));
+        budget.check();
+
+        assertThat(budget.isBounded()).isFalse();
+        assertThat(budget.cap(10000)).isEqualTo(10000);
+        assertThat(sharedState.isDefined(JourneyDeadline.STATE_KEY)).isFalse();
+    }
+
+    private static NodeState state(JsonValue sharedState) {
+        return new TreeContext(sharedState, new ExternalRequestContext.Builder().build(), Collections.emptyList(),
+                               Optional.empty()).getStateFor(mock(Node.class));
+    }
+}
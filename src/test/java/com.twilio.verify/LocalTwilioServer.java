@@ -0,0 +1,343 @@
+/*
+ * Copyright 2019-2020 ForgeRock AS. All Rights Reserved
+ *
+ * Use of this code requires a commercial software license with ForgeRock AS.
+ * or with one of its affiliates. All use shall be exclusively subject
+ * to such license between the licensee and ForgeRock AS.
+ */
+
+package com.twilio.verify;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Local stand-in for the Twilio Verify and Lookup APIs, for integration, load and soak tests run without network
+ * access. Point the plugin at it by returning {@link #getBaseUrl()} from {@link TwilioVerifyService#apiBaseUrl()}.
+ * <p>
+ * It emulates Verification create and cancel, VerificationCheck create and carrier Lookups. A verification is approved when
+ * checked with {@link #CODE}, and a lookup reports every number as mobile unless told otherwise. Responses can be
+ * delayed by a latency distribution, and a share of them, or the next few, can be replaced by server errors or 429s.
+ */
+public class LocalTwilioServer implements AutoCloseable {
+
+    static final String CODE = "123456";
+
+    private static final Pattern VERIFICATIONS = Pattern.compile("/v2/Services/([^/]+)/Verifications(?:/([^/]+))?");
+    private static final Pattern VERIFICATION_CHECK = Pattern.compile("/v2/Services/([^/]+)/VerificationCheck");
+    private static final Pattern LOOKUP = Pattern.compile("/v1/PhoneNumbers/([^/]+)");
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final ConcurrentMap<String, String> pending = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, String> verifications = new ConcurrentHashMap<>();
+    private final AtomicLong verificationCount = new AtomicLong();
+    private final ConcurrentMap<String, String> lineTypes = new ConcurrentHashMap<>();
+    private final ConcurrentMap<TwilioEndpoint, LongAdder> requests = new ConcurrentHashMap<>();
+    private final AtomicInteger forcedFailures = new AtomicInteger();
+    private volatile int forcedStatus;
+    private volatile LongSupplier latency = fixed(0);
+    private volatile double errorRate;
+    private volatile double throttleRate;
+
+    /**
+     * Start the server on a free port of the loopback interface.
+     *
+     * @param threads The number of threads serving requests.
+     * @throws IOException If the server cannot be started.
+     */
+    public LocalTwilioServer(int threads) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        executor = Executors.newFixedThreadPool(threads);
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    /**
+     * The base URL of the server.
+     *
+     * @return The base URL.
+     */
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * Delay every response by a number of milliseconds drawn from a distribution.
+     *
+     * @param latency The latency distribution, see {@link #fixed}, {@link #uniform} and {@link #logNormal}.
+     */
+    public void setLatency(LongSupplier latency) {
+        this.latency = latency;
+    }
+
+    /**
+     * Answer a share of requests with a 500 error.
+     *
+     * @param errorRate The share of requests, between 0 and 1.
+     */
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * Answer a share of requests with a 429 error.
+     *
+     * @param throttleRate The share of requests, between 0 and 1.
+     */
+    public void setThrottleRate(double throttleRate) {
+        this.throttleRate = throttleRate;
+    }
+
+    /**
+     * Answer the next requests with an error status.
+     *
+     * @param count The number of requests.
+     * @param status The status, such as 429 or 503.
+     */
+    public void failNext(int count, int status) {
+        forcedStatus = status;
+        forcedFailures.set(count);
+    }
+
+    /**
+     * Set the line type reported by lookups of a number.
+     *
+     * @param phoneNumber The number in E.164.
+     * @param type The line type, such as {@code landline} or {@code voip}.
+     */
+    public void setLineType(String phoneNumber, String type) {
+        lineTypes.put(phoneNumber, type);
+    }
+
+    /**
+     * Whether a verification sent to a number is waiting for its code, neither approved nor cancelled.
+     *
+     * @param serviceSID The Verify service.
+     * @param to The number or email address the verification was sent to.
+     * @return Whether the verification is pending.
+     */
+    public boolean isPending(String serviceSID, String to) {
+        return pending.containsKey(serviceSID + '|' + to);
+    }
+
+    /**
+     * The number of requests received for an endpoint, including those answered with an error.
+     *
+     * @param endpoint The endpoint.
+     * @return The number of requests.
+     */
+    public long getRequestCount(TwilioEndpoint endpoint) {
+        LongAdder count = requests.get(endpoint);
+        return count == null ? 0 : count.sum();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * A constant latency.
+     *
+     * @param millis The latency in milliseconds.
+     * @return The distribution.
+     */
+    public static LongSupplier fixed(long millis) {
+        return () -> millis;
+    }
+
+    /**
+     * A latency uniformly distributed between two bounds.
+     *
+     * @param min The lower bound in milliseconds.
+     * @param max The upper bound in milliseconds.
+     * @return The distribution.
+     */
+    public static LongSupplier uniform(long min, long max) {
+        return () -> ThreadLocalRandom.current().nextLong(min, max + 1);
+    }
+
+    /**
+     * A log-normal latency with a long tail, as typically seen from remote APIs.
+     *
+     * @param median The median in milliseconds.
+     * @param sigma The standard deviation of the logarithm of the latency. 0.5 gives a 95th percentile of about
+     *              2.3 times the median.
+     * @return The distribution.
+     */
+    public static LongSupplier logNormal(long median, double sigma) {
+        return () -> Math.round(median * Math.exp(sigma * ThreadLocalRandom.current().nextGaussian()));
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            Matcher verifications = VERIFICATIONS.matcher(path);
+            Matcher check = VERIFICATION_CHECK.matcher(path);
+            Matcher lookup = LOOKUP.matcher(path);
+            TwilioEndpoint endpoint = verifications.matches() ? TwilioEndpoint.VERIFICATION
+                    : check.matches() ? TwilioEndpoint.VERIFICATION_CHECK
+                    : lookup.matches() ? TwilioEndpoint.LOOKUP : null;
+            if (endpoint == null) {
+                send(exchange, 404, error(20404, "The requested resource was not found", 404));
+                return;
+            }
+            requests.computeIfAbsent(endpoint, key -> new LongAdder()).increment();
+            pause(latency.getAsLong());
+            if (exchange.getRequestHeaders().getFirst("Authorization") == null) {
+                send(exchange, 401, error(20003, "Authenticate", 401));
+                return;
+            }
+            int status = injectedStatus();
+            if (status != 0) {
+                send(exchange, status, error(status == 429 ? 20429 : 20500, "Injected failure", status));
+                return;
+            }
+            switch (endpoint) {
+            case VERIFICATION:
+                if (verifications.group(2) == null) {
+                    createVerification(exchange, verifications.group(1));
+                } else {
+                    updateVerification(exchange, verifications.group(1), verifications.group(2));
+                }
+                break;
+            case VERIFICATION_CHECK:
+                checkVerification(exchange, check.group(1));
+                break;
+            default:
+                lookup(exchange, lookup.group(1));
+                break;
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private int injectedStatus() {
+        if (forcedFailures.getAndUpdate(remaining -> Math.max(0, remaining - 1)) > 0) {
+            return forcedStatus;
+        }
+        double draw = ThreadLocalRandom.current().nextDouble();
+        if (draw < throttleRate) {
+            return 429;
+        }
+        if (draw < throttleRate + errorRate) {
+            return 500;
+        }
+        return 0;
+    }
+
+    private void createVerification(HttpExchange exchange, String serviceSID) throws IOException {
+        Map<String, String> form = form(exchange);
+        String to = form.get("To");
+        String channel = form.get("Channel");
+        if (to == null || channel == null) {
+            send(exchange, 400, error(60200, "Invalid parameter `" + (to == null ? "To" : "Channel") + "`", 400));
+            return;
+        }
+        String sid = String.format("VE%032x", verificationCount.incrementAndGet());
+        pending.put(serviceSID + '|' + to, CODE);
+        verifications.put(sid, serviceSID + '|' + to);
+        send(exchange, 201, verification(sid, serviceSID, to, channel, "pending"));
+    }
+
+    private void updateVerification(HttpExchange exchange, String serviceSID, String sid) throws IOException {
+        String status = form(exchange).get("Status");
+        String key = verifications.get(sid);
+        if (key == null || !key.startsWith(serviceSID + '|') || pending.remove(key) == null) {
+            send(exchange, 404, error(20404, "The requested resource was not found", 404));
+            return;
+        }
+        send(exchange, 200, verification(sid, serviceSID, key.substring(serviceSID.length() + 1), "sms", status));
+    }
+
+    private void checkVerification(HttpExchange exchange, String serviceSID) throws IOException {
+        Map<String, String> form = form(exchange);
+        String key = serviceSID + '|' + form.get("To");
+        String code = pending.get(key);
+        if (code == null) {
+            send(exchange, 404, error(20404, "The requested resource was not found", 404));
+            return;
+        }
+        boolean approved = code.equals(form.get("Code"));
+        if (approved) {
+            pending.remove(key);
+        }
+        send(exchange, 201, verification("VE00000000000000000000000000000000", serviceSID, form.get("To"), "sms",
+                                         approved ? "approved" : "pending"));
+    }
+
+    private void lookup(HttpExchange exchange, String phoneNumber) throws IOException {
+        String type = lineTypes.getOrDefault(phoneNumber, CarrierLookupCache.MOBILE);
+        send(exchange, 200, "{\"phone_number\":\"" + phoneNumber + "\",\"country_code\":\"US\","
+                + "\"carrier\":{\"type\":\"" + type + "\",\"name\":\"Local Carrier\"}}");
+    }
+
+    private static String verification(String sid, String serviceSID, String to, String channel, String status) {
+        return "{\"sid\":\"" + sid + "\",\"service_sid\":\"" + serviceSID + "\","
+                + "\"to\":\"" + to + "\",\"channel\":\"" + channel + "\",\"status\":\"" + status + "\","
+                + "\"valid\":" + "approved".equals(status) + "}";
+    }
+
+    private static String error(int code, String message, int status) {
+        return "{\"code\":" + code + ",\"message\":\"" + message + "\",\"status\":" + status + "}";
+    }
+
+    private static Map<String, String> form(HttpExchange exchange) throws IOException {
+        Map<String, String> form = new HashMap<>();
+        try (InputStream in = exchange.getRequestBody()) {
+            String body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            for (String pair : body.split("&")) {
+                int separator = pair.indexOf('=');
+                if (separator > 0) {
+                    form.put(URLDecoder.decode(pair.substring(0, separator), StandardCharsets.UTF_8),
+                             URLDecoder.decode(pair.substring(separator + 1), StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return form;
+    }
+
+    private static void send(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static void pause(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
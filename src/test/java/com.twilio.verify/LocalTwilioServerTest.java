@@ -0,0 +1,611 @@
+/*
+ * Copyright 2019-2020 ForgeRock AS. All Rights Reserved
+ *
+ * Use of this code requires a commercial software license with ForgeRock AS.
+ * or with one of its affiliates. All use shall be exclusively subject
+ * to such license between the licensee and ForgeRock AS.
+ */
+
+package com.twilio.verify;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.openam.auth.node.api.SharedStateConstants.REALM;
+import static org.forgerock.openam.auth.node.api.SharedStateConstants.USERNAME;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.sun.identity.idm.AMIdentity;
+import com.twilio.http.TwilioRestClient;
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.auth.node.api.Action;
+import org.forgerock.openam.auth.node.api.ExternalRequestContext;
+import org.forgerock.openam.auth.node.api.TreeContext;
+import org.forgerock.openam.core.CoreWrapper;
+import org.mockito.ArgumentCaptor;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.NameCallback;
+
+/**
+ * Drives the nodes over real HTTP exchanges with {@link LocalTwilioServer}.
+ */
+public class LocalTwilioServerTest {
+
+    private static final String ACCOUNT = "AC00000000000000000000000000000000";
+    private static final String SERVICE = "VA00000000000000000000000000000000";
+    private static final String PHONE = "+18457412693";
+    private static final char[] TOKEN = "token".toCharArray();
+    private static final String LINE_TYPE_ATTRIBUTE = "twilioLineType";
+    private static final String UNIVERSAL_ID = "id=demo,ou=user,dc=openam,dc=forgerock,dc=org";
+
+    private LocalTwilioServer server;
+    private TwilioHttpTransport transport;
+    private TwilioTaskExecutor executor;
+    private TwilioClientRegistry clientRegistry;
+    private TwilioCallGuard callGuard;
+    private TwilioErrorLog errorLog;
+    private VerifyAuthSenderNode sender;
+    private VerifyAuthSenderNode asyncSender;
+    private VerificationDispatcher dispatcher;
+    private VerifyAuthCollectorDecisionNode collector;
+    private VerifyAuthLookupNode lookup;
+    private VerifyAuthLookupSenderNode lookupSender;
+    private CarrierLookupCache lookupCache;
+    private TwilioMetrics metrics;
+    private JourneyDeadline deadline;
+    private AMIdentity identity;
+    private CoreWrapper coreWrapper;
+    private IdentityAttributeCache identityCache;
+    private VerifyAuthIdentifierNode identifier;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        server = new LocalTwilioServer(4);
+        transport = new TwilioHttpTransport();
+        transport.configure(new TwilioVerifyService() {
+            @Override
+            public String apiBaseUrl() {
+                return server.getBaseUrl();
+            }
+        });
+        executor = new TwilioTaskExecutor();
+        metrics = new TwilioMetrics();
+        errorLog = new TwilioErrorLog();
+        deadline = new JourneyDeadline();
+        identity = mock(AMIdentity.class);
+        coreWrapper = mock(CoreWrapper.class);
+        when(coreWrapper.getIdentityOrElseSearchUsingAuthNUserAlias(any(), any())).thenReturn(identity);
+        when(coreWrapper.getIdentity(UNIVERSAL_ID)).thenReturn(identity);
+        identityCache = new IdentityAttributeCache();
+        clientRegistry = new TwilioClientRegistry(transport);
+        callGuard = new TwilioCallGuard();
+        PendingVerificationStore pendingStore = new PendingVerificationStore();
+        sender = new VerifyAuthSenderNode(new VerifyAuthSenderNode.Config() {
+            @Override
+            public String accountSID() {
+                return ACCOUNT;
+            }
+
+            @Override
+            public char[] authToken() {
+                return TOKEN;
+            }
+
+            @Override
+            public String serviceSID() {
+                return SERVICE;
+            }
+        }, clientRegistry, new VerificationDispatcher(executor), callGuard, new SendThrottle(), pendingStore,
+                metrics, errorLog, deadline);
+        dispatcher = new VerificationDispatcher(executor);
+        asyncSender = new VerifyAuthSenderNode(new VerifyAuthSenderNode.Config() {
+            @Override
+            public String accountSID() {
+                return ACCOUNT;
+            }
+
+            @Override
+            public char[] authToken() {
+                return TOKEN;
+            }
+
+            @Override
+            public String serviceSID() {
+                return SERVICE;
+            }
+
+            @Override
+            public boolean asynchronousSend() {
+                return true;
+            }
+        }, clientRegistry, dispatcher, callGuard, new SendThrottle(), pendingStore, metrics, errorLog, deadline);
+        collector = new VerifyAuthCollectorDecisionNode(new VerifyAuthCollectorDecisionNode.Config() {
+            @Override
+            public boolean hideCode() {
+                return false;
+            }
+
+            @Override
+            public int retryBackoff() {
+                return 1;
+            }
+        }, clientRegistry, dispatcher, callGuard, new TwilioRetrier(), pendingStore, metrics, errorLog,
+                deadline);
+        lookup = new VerifyAuthLookupNode(new VerifyAuthLookupNode.Config() {
+            @Override
+            public String accountSID() {
+                return ACCOUNT;
+            }
+
+            @Override
+            public char[] authToken() {
+                return TOKEN;
+            }
+
+            @Override
+            public int cacheTimeToLive() {
+                return 0;
+            }
+
+            @Override
+            public String lineTypeAttribute() {
+                return LINE_TYPE_ATTRIBUTE;
+            }
+        }, clientRegistry, new CarrierLookupCache(), coreWrapper, identityCache, executor, callGuard, metrics,
+                errorLog, deadline);
+        identifier = new VerifyAuthIdentifierNode(new VerifyAuthIdentifierNode.Config() {
+            @Override
+            public String identifierAttribute() {
+                return "telephoneNumber";
+            }
+
+            @Override
+            public String lineTypeAttribute() {
+                return LINE_TYPE_ATTRIBUTE;
+            }
+        }, coreWrapper, identityCache, metrics, errorLog, deadline);
+        lookupCache = new CarrierLookupCache();
+        lookupSender = lookupSender(executor, 0, 86400, 0);
+    }
+
+    private VerifyAuthLookupSenderNode lookupSender(TwilioTaskExecutor executor, int sendBurst, int cacheTimeToLive,
+                                                    int reuseWindow) {
+        return new VerifyAuthLookupSenderNode(new VerifyAuthLookupSenderNode.Config() {
+            @Override
+            public String accountSID() {
+                return ACCOUNT;
+            }
+
+            @Override
+            public char[] authToken() {
+                return TOKEN;
+            }
+
+            @Override
+            public String serviceSID() {
+                return SERVICE;
+            }
+
+            @Override
+            public int cacheTimeToLive() {
+                return cacheTimeToLive;
+            }
+
+            @Override
+            public int sendBurst() {
+                return sendBurst;
+            }
+
+            @Override
+            public int reuseWindow() {
+                return reuseWindow;
+            }
+        }, clientRegistry, lookupCache, executor, callGuard, new SendThrottle(), new PendingVerificationStore(),
+                metrics, errorLog, deadline);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        identityCache.shutdown();
+        executor.shutdown();
+        transport.shutdown();
+        server.close();
+    }
+
+    @Test
+    public void testSendAndCheckCode() {
+        JsonValue sharedState = json(object(field("userIdentifier", PHONE)));
+        assertThat(sender.process(context(sharedState)).outcome).isEqualTo("true");
+
+        assertThat(collector.process(context(sharedState, code("000000"))).outcome).isEqualTo("false");
+        assertThat(collector.process(context(sharedState, code(LocalTwilioServer.CODE))).outcome)
+                .isEqualTo("true");
+        assertThat(server.getRequestCount(TwilioEndpoint.VERIFICATION)).isEqualTo(1);
+        assertThat(server.getRequestCount(TwilioEndpoint.VERIFICATION_CHECK)).isEqualTo(2);
+        assertThat(metrics.getTimer(VerifyAuthCollectorDecisionNode.NODE_NAME, TwilioEndpoint.VERIFICATION_CHECK,
+                                    null, "success").getCount()).isEqualTo(2);
+        assertThat(metrics.getOutcomeCount(VerifyAuthCollectorDecisionNode.NODE_NAME, "false")).isEqualTo(1);
+        assertThat(metrics.getOutcomeCount(VerifyAuthCollectorDecisionNode.NODE_NAME, "true")).isEqualTo(1);
+    }
+
+    @Test
+    public void testCollectorWithCredentialsChecksCodesOnAnotherServer() {
+        VerifyAuthCollectorDecisionNode otherServer = new VerifyAuthCollectorDecisionNode(
+                new VerifyAuthCollectorDecisionNode.Config() {
+                    @Override
+                    public boolean hideCode() {
+                        return false;
+                    }
+
+                    @Override
+                    public String accountSID() {
+                        return ACCOUNT;
+                    }
+
+                    @Override
+                    public char[] authToken() {
+                        return TOKEN;
+                    }
+                }, new TwilioClientRegistry(transport), new VerificationDispatcher(executor), new TwilioCallGuard(),
+                new TwilioRetrier(), new PendingVerificationStore(), metrics, new TwilioErrorLog(), deadline);
+        JsonValue sharedState = json(object(field("userIdentifier", PHONE)));
+        assertThat(sender.process(context(sharedState)).outcome).isEqualTo("true");
+
+        assertThat(otherServer.process(context(sharedState, code(LocalTwilioServer.CODE))).outcome)
+                .isEqualTo("true");
+        assertThat(server.getRequestCount(TwilioEndpoint.VERIFICATION_CHECK)).isEqualTo(1);
+    }
+
+    @Test
+    public void testBackgroundSendIsAwaitedBeforeTheCheck() {
+        server.setLatency(LocalTwilioServer.fixed(300));
+        JsonValue sharedState = json(object(field("userIdentifier", PHONE)));
+
+        long start = System.nanoTime();
+        assertThat(asyncSender.process(context(sharedState)).outcome).isEqualTo("true");
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isLessThan(250);
+        assertThat(sharedState.get(VerifyAuthSenderNode.SEND_HANDLE).isString()).isTrue();
+
+        assertThat(collector.process(context(sharedState, code(LocalTwilioServer.CODE))).outcome)
+                .isEqualTo("true");
+        assertThat(server.getRequestCount(TwilioEndpoint.VERIFICATION)).isEqualTo(1);
+        assertThat(server.getRequestCount(TwilioEndpoint.VERIFICATION_CHECK)).isEqualTo(1);
+    }
+
+    @Test
+    public void testBackgroundSendFailureTakesErrorWhenThePromptIsShown() {
+        server.failNext(1, 400);
+        JsonValue sharedState = json(object(field("userIdentifier", PHONE)));
+
+        assertThat(asyncSender.process(context(sharedState)).outcome).isEqualTo("true");
+        CompletableFuture<?> send = dispatcher.get(sharedState.get(VerifyAuthSenderNode.SEND_HANDLE).asString()).get();
+        assertThatThrownBy(send::join).isInstanceOf(CompletionException.class);
+
+        assertThat(collector.process(context(sharedState)).outcome).isEqualTo("error");
+        assertThat(sharedState.isDefined(TwilioError.STATE_KEY)).isTrue();
+    }
+
+    @Test
+    public void testBackgroundSendFailingAfterThePromptTakesErrorOnSubmit() {
+        server.setLatency(LocalTwilioServer.fixed(200));
+        server.failNext(1, 400);
+        JsonValue sharedState = json(object(field("userIdentifier", PHONE)));
+
+        assertThat(asyncSender.process(context(sharedState)).outcome).isEqualTo("true");
+        assertThat(collector.process(context(sharedState)).callbacks).isNotEmpty();
+
+        assertThat(collector.process(context(sharedState, code(LocalTwilioServer.CODE))).outcome)
+                .isEqualTo("error");
+        assertThat(server.getRequestCount(TwilioEndpoint.VERIFICATION_CHECK)).isZero();
+    }
+
+    @Test
+    public void testCheckIsNotRetriedAfterServerError() {
+        JsonValue sharedState = json(object(field("userIdentifier", PHONE)));
+        sender.process(context(sharedState));
+        server.failNext(1, 503);
+
+        assertThat(collector.process(context(sharedState, code(LocalTwilioServer.CODE))).outcome)
+                .isEqualTo("error");
+        assertThat(server.getRequestCount(TwilioEndpoint.VERIFICATION_CHECK)).isEqualTo(1);
+    }
+
+    @Test
+    public void testCheckIsRetriedAfterThrottling() {
+        JsonValue sharedState = json(object(field("userIdentifier", PHONE)));
+        sender.process(context(sharedState));
+        server.failNext(1, 429);
+
+        assertThat(collector.process(context(sharedState, code(LocalTwilioServer.CODE))).outcome)
+                .isEqualTo("true");
+        assertThat(server.getRequestCount(TwilioEndpoint.VERIFICATION_CHECK)).isEqualTo(2);
+    }
+
+    @Test
+    public void testThrottledSendTakesErrorOutcome() {
+        server.setThrottleRate(1);
+
+        assertThat(sender.process(context(json(object(field("userIdentifier", PHONE))))).outcome)
+                .isEqualTo("error");
+        assertThat(metrics.getTimer(VerifyAuthSenderNode.NODE_NAME, TwilioEndpoint.VERIFICATION, "sms", "429")
+                          .getCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testLookupReportsLineType() {
+        server.setLineType("+18457412694", "landline");
+
+        assertThat(lookup.process(context(json(object(field("userIdentifier", PHONE))))).outcome)
+                .isEqualTo("True");
+        assertThat(lookup.process(context(json(object(field("userIdentifier", "+18457412694"))))).outcome)
+                .isEqualTo("False");
+    }
+
+    @Test
+    public void testLookupSenderSendsWhileLookingUp() {
+        server.setLatency(LocalTwilioServer.fixed(300));
+
+        long start = System.nanoTime();
+        JsonValue sharedState = json(object(field("userIdentifier", PHONE)));
+        Action sent = lookupSender.process(context(sharedState));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertThat(sent.outcome).isEqualTo("true");
+        assertThat(elapsed).isLessThan(550);
+        assertThat(server.getRequestCount(TwilioEndpoint.LOOKUP)).isEqualTo(1);
+        assertThat(server.isPending(SERVICE, PHONE)).isTrue();
+        server.setLatency(LocalTwilioServer.fixed(0));
+        assertThat(collector.process(context(sharedState, code(LocalTwilioServer.CODE))).outcome)
+                .isEqualTo("true");
+    }
+
+    @Test
+    public void testLookupSenderCancelsSendToLandline() throws Exception {
+        server.setLineType(PHONE, "landline");
+
+        assertThat(lookupSender.process(context(json(object(field("userIdentifier", PHONE))))).outcome)
+                .isEqualTo("false");
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (server.isPending(SERVICE, PHONE) && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(server.isPending(SERVICE, PHONE)).isFalse();
+        assertThat(lookupCache.get(PHONE)).contains("landline");
+    }
+
+    @Test
+    public void testLookupSenderDoesNotSendToCachedLandline() {
+        lookupCache.put(PHONE, "landline", 60000, 60000);
+
+        assertThat(lookupSender.process(context(json(object(field("userIdentifier", PHONE))))).outcome)
+                .isEqualTo("false");
+        assertThat(server.getRequestCount(TwilioEndpoint.VERIFICATION)).isZero();
+        assertThat(server.getRequestCount(TwilioEndpoint.LOOKUP)).isZero();
+    }
+
+    @Test
+    public void testLookupSenderGivesBackTheTokenOfASendToALandline() {
+        TwilioTaskExecutor saturated = mock(TwilioTaskExecutor.class);
+        when(saturated.submit(any())).thenThrow(new RejectedExecutionException());
+        VerifyAuthLookupSenderNode node = lookupSender(saturated, 1, 0, 0);
+        server.setLineType(PHONE, "landline");
+
+        assertThat(node.process(context(json(object(field("userIdentifier", PHONE))))).outcome)
+                .isEqualTo("false");
+        server.setLineType(PHONE, "mobile");
+        assertThat(node.process(context(json(object(field("userIdentifier", PHONE))))).outcome)
+                .isEqualTo("true");
+        assertThat(server.getRequestCount(TwilioEndpoint.VERIFICATION)).isEqualTo(1);
+    }
+
+    @Test
+    public void testLookupSenderReusesPendingVerification() {
+        VerifyAuthLookupSenderNode node = lookupSender(executor, 0, 0, 60000);
+
+        assertThat(node.process(context(json(object(field("userIdentifier", PHONE))))).outcome)
+                .isEqualTo("true");
+        assertThat(node.process(context(json(object(field("userIdentifier", PHONE))))).outcome)
+                .isEqualTo("true");
+        assertThat(server.getRequestCount(TwilioEndpoint.VERIFICATION)).isEqualTo(1);
+        assertThat(server.getRequestCount(TwilioEndpoint.LOOKUP)).isEqualTo(1);
+    }
+
+    @Test
+    public void testLookupSenderTakesErrorOutcomeWhenEitherCallFails() {
+        server.failNext(1, 400);
+
+        assertThat(lookupSender.process(context(json(object(field("userIdentifier", PHONE))))).outcome)
+                .isEqualTo("error");
+    }
+
+    @Test
+    public void testLineTypeStoredOnTheIdentitySkipsTheLookup() throws Exception {
+        String stored = "landline|" + System.currentTimeMillis() + "|" + PHONE;
+        when(identity.getAttributes(any())).thenReturn(ImmutableMap.of(
+                "telephoneNumber", ImmutableSet.of(PHONE), LINE_TYPE_ATTRIBUTE, ImmutableSet.of(stored)));
+        when(identity.getUniversalId()).thenReturn(UNIVERSAL_ID);
+        JsonValue sharedState = json(object(field(USERNAME, "demo"), field(REALM, "/")));
+
+        JsonValue transientState = json(object());
+
+        assertThat(identifier.process(context(sharedState, transientState)).outcome).isEqualTo("True");
+        assertThat(transientState.get(VerifyAuthLookupNode.LINE_TYPE_IDENTITY).asString()).isEqualTo(UNIVERSAL_ID);
+        assertThat(lookup.process(context(sharedState, transientState)).outcome).isEqualTo("False");
+
+        assertThat(server.getRequestCount(TwilioEndpoint.LOOKUP)).isZero();
+        verify(identity).getAttributes(any());
+        verify(identity, never()).store();
+    }
+
+    @Test
+    public void testStaleOrForeignLineTypesAreLookedUpAndStored() throws Exception {
+        long stale = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(31);
+        for (String stored : Arrays.asList("landline|" + stale + "|" + PHONE,
+                                           "landline|" + System.currentTimeMillis() + "|+18457412694")) {
+            JsonValue sharedState = json(object(field("userIdentifier", PHONE), field(USERNAME, "demo"),
+                                                field(REALM, "/")));
+            JsonValue transientState = json(object(field(VerifyAuthLookupNode.STORED_LINE_TYPE, stored),
+                                                   field(VerifyAuthLookupNode.LINE_TYPE_IDENTITY, UNIVERSAL_ID)));
+
+            assertThat(lookup.process(context(sharedState, transientState)).outcome).isEqualTo("True");
+        }
+
+        assertThat(server.getRequestCount(TwilioEndpoint.LOOKUP)).isEqualTo(2);
+        ArgumentCaptor<Map<String, Set<String>>> attributes = ArgumentCaptor.forClass(Map.class);
+        verify(identity, timeout(5000).times(2)).store();
+        verify(identity, times(2)).setAttributes(attributes.capture());
+        verify(coreWrapper, never()).getIdentityOrElseSearchUsingAuthNUserAlias(any(), any());
+        assertThat(attributes.getValue().get(LINE_TYPE_ATTRIBUTE).iterator().next()).startsWith("mobile|")
+                                                                                     .endsWith("|" + PHONE);
+    }
+
+    @Test
+    public void testLineTypeIsOnlyStoredOnTheIdentityReadByTheIdentifierNode() throws Exception {
+        JsonValue sharedState = json(object(field("userIdentifier", PHONE), field(USERNAME, "demo"),
+                                            field(REALM, "/")));
+
+        assertThat(lookup.process(context(sharedState)).outcome).isEqualTo("True");
+
+        assertThat(server.getRequestCount(TwilioEndpoint.LOOKUP)).isEqualTo(1);
+        verify(coreWrapper, never()).getIdentity(any());
+        verify(coreWrapper, never()).getIdentityOrElseSearchUsingAuthNUserAlias(any(), any());
+    }
+
+    @Test
+    public void testCallsAreCutShortByTheJourneyDeadline() {
+        server.setLatency(LocalTwilioServer.fixed(2000));
+        long deadlineMillis = System.currentTimeMillis() + 300;
+
+        long start = System.nanoTime();
+        Action action = lookup.process(context(json(object(field("userIdentifier", PHONE),
+                                                           field(JourneyDeadline.STATE_KEY, deadlineMillis)))));
+
+        assertThat(action.outcome).isEqualTo("Error");
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isLessThan(1500);
+    }
+
+    @Test
+    public void testCallsCutShortByTheJourneyDeadlineDoNotOpenTheBreaker() {
+        server.setLatency(LocalTwilioServer.fixed(2000));
+        TwilioCallGuard guard = new TwilioCallGuard();
+        guard.configure(new TwilioVerifyService() {
+            @Override
+            public int circuitBreakerWindowSize() {
+                return 2;
+            }
+
+            @Override
+            public int circuitBreakerMinimumCalls() {
+                return 2;
+            }
+        });
+        TwilioRestClient client = new TwilioClientRegistry(transport).getClient(ACCOUNT, TOKEN);
+
+        for (int i = 0; i < 2; i++) {
+            JsonValue sharedState = json(object(field(JourneyDeadline.STATE_KEY, System.currentTimeMillis() + 100)));
+            JourneyDeadline.Budget budget = deadline.budget(context(sharedState).getStateFor(lookup));
+            assertThatThrownBy(() -> guard.call(ACCOUNT, TwilioEndpoint.LOOKUP, budget.bound(
+                    () -> VerifyAuthLookupNode.fetchLineType(client, PHONE))))
+                    .isInstanceOf(JourneyBudgetException.class);
+        }
+
+        assertThat(guard.isOpen(ACCOUNT, TwilioEndpoint.LOOKUP)).isFalse();
+    }
+
+    @Test
+    public void testSpentJourneyBudgetFailsWithoutCallingTwilio() {
+        JsonValue sharedState = json(object(field("userIdentifier", PHONE),
+                                            field(JourneyDeadline.STATE_KEY, System.currentTimeMillis() - 1)));
+
+        assertThat(sender.process(context(sharedState)).outcome).isEqualTo("error");
+        assertThat(sharedState.get(TwilioError.STATE_KEY).asString())
+                .isEqualTo(TwilioError.SERVICE_UNAVAILABLE.name());
+        assertThat(server.getRequestCount(TwilioEndpoint.VERIFICATION)).isZero();
+    }
+
+    @Test
+    public void testNodesKeepSharedStateSmall() {
+        JsonValue sharedState = json(object(field("userIdentifier", PHONE)));
+        int initialSize = size(sharedState);
+
+        assertThat(sender.process(context(sharedState)).outcome).isEqualTo("true");
+        assertThat(sharedState.keys()).containsOnly("userIdentifier", VerifyAuthSenderNode.SERVICE_SID,
+                                                   VerifyAuthSenderNode.ACCOUNT_SID);
+        assertThat(size(sharedState) - initialSize).isLessThanOrEqualTo(110);
+        int sentSize = size(sharedState);
+
+        assertThat(collector.process(context(sharedState, code("000000"))).outcome).isEqualTo("false");
+        assertThat(collector.process(context(sharedState, code(LocalTwilioServer.CODE))).outcome)
+                .isEqualTo("true");
+        assertThat(size(sharedState) - sentSize).isLessThanOrEqualTo(20);
+
+        server.failNext(1, 400);
+        int errorSize = size(sharedState);
+        assertThat(lookup.process(context(sharedState)).outcome).isEqualTo("Error");
+        assertThat(size(sharedState) - errorSize).isLessThanOrEqualTo(40);
+    }
+
+    /**
+     * The size in bytes of a state serialized as JSON, as it travels in the authentication session.
+     */
+    private static int size(JsonValue state) {
+        try {
+            return new ObjectMapper().writeValueAsBytes(state.getObject()).length;
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static List<Callback> code(String code) {
+        NameCallback callback = new NameCallback("Code");
+        callback.setName(code);
+        return Collections.singletonList(callback);
+    }
+
+    private static TreeContext context(JsonValue sharedState) {
+        return context(sharedState, Collections.emptyList());
+    }
+
+    /**
+     * Build the tree context of a new request, which starts with empty transient state as AM does after callbacks.
+     */
+    private static TreeContext context(JsonValue sharedState, List<? extends Callback> callbacks) {
+        return new TreeContext(sharedState, json(object()), new ExternalRequestContext.Builder().build(), callbacks,
+                               Optional.empty());
+    }
+
+    /**
+     * Build the tree context of a node run in the same request as the previous one, sharing its transient state.
+     */
+    private static TreeContext context(JsonValue sharedState, JsonValue transientState) {
+        return new TreeContext(sharedState, transientState, new ExternalRequestContext.Builder().build(),
+                               Collections.emptyList(), Optional.empty());
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2019-2020 ForgeRock AS. All Rights Reserved
+ *
+ * Use of this code requires a commercial software license with ForgeRock AS.
+ * or with one of its affiliates. All use shall be exclusively subject
+ * to such license between the licensee and ForgeRock AS.
+ */
+
+package com.twilio.verify;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.auth.node.api.OutcomeProvider.Outcome;
+import org.forgerock.util.i18n.PreferredLocales;
+import org.testng.annotations.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Collectors;
+
+public class OutcomeProviderTest {
+
+    private static final PreferredLocales ENGLISH = new PreferredLocales(Collections.singletonList(Locale.ENGLISH));
+    private static final PreferredLocales FRENCH = new PreferredLocales(Collections.singletonList(Locale.FRENCH));
+
+    @Test
+    public void testCollectorOutcomesAreSharedForIdenticalAttributes() {
+        VerifyAuthCollectorDecisionNode.OutcomeProvider provider = new VerifyAuthCollectorDecisionNode.OutcomeProvider();
+
+        List<Outcome> first = provider.getOutcomes(ENGLISH, collectorAttributes(true, false));
+        List<Outcome> second = provider.getOutcomes(FRENCH, collectorAttributes(true, false));
+        List<Outcome> other = provider.getOutcomes(ENGLISH, collectorAttributes(true, true));
+
+        assertThat(first).isSameAs(second);
+        assertThat(ids(first)).containsExactly("true", "false", "resend", "error");
+        assertThat(ids(other)).containsExactly("true", "false", "resend", "cancel", "error");
+        assertThatThrownBy(() -> first.add(new Outcome("x", "x"))).isInstanceOf(UnsupportedOperationException.class);
+    }
+
+    @Test
+    public void testSenderOutcomesAreSharedForIdenticalAttributes() {
+        VerifyAuthSenderNode.OutcomeProvider provider = new VerifyAuthSenderNode.OutcomeProvider();
+
+        assertThat(provider.getOutcomes(ENGLISH, json(object(field("sendBurst", 3)))))
+                .isSameAs(provider.getOutcomes(FRENCH, json(object(field("sendBurst", 5)))));
+        assertThat(ids(provider.getOutcomes(ENGLISH, json(object())))).containsExactly("true", "error");
+    }
+
+    @Test
+    public void testLookupSenderOutcomesCombineThoseOfLookupAndSender() {
+        VerifyAuthLookupSenderNode.OutcomeProvider provider = new VerifyAuthLookupSenderNode.OutcomeProvider();
+
+        assertThat(ids(provider.getOutcomes(ENGLISH, json(object())))).containsExactly("true", "false", "error");
+        assertThat(ids(provider.getOutcomes(ENGLISH, json(object(field("sendBurst", 3))))))
+                .containsExactly("true", "false", "throttled", "error");
+    }
+
+    @Test
+    public void testErrorOutcomesAreAddedWhenEnabled() {
+        JsonValue attributes = json(object(field("errorOutcomes", true)));
+        String[] errors = {"invalidNumber", "maxAttempts", "rateLimited", "unavailable", "authFailure", "notFound"};
+
+        assertThat(ids(new VerifyAuthSenderNode.OutcomeProvider().getOutcomes(ENGLISH, attributes)))
+                .startsWith("true").contains(errors).endsWith("error");
+        assertThat(ids(new VerifyAuthCollectorDecisionNode.OutcomeProvider().getOutcomes(ENGLISH, attributes.copy()
+                .put("showResendButton", false).put("showCancelButton", false))))
+                .startsWith("true", "false").contains(errors).endsWith("error");
+        assertThat(ids(new VerifyAuthLookupNode.OutcomeProvider().getOutcomes(ENGLISH, attributes)))
+                .startsWith("True", "False").contains(errors).endsWith("Error");
+    }
+
+    @Test
+    public void testLookupAndIdentifierOutcomesAreConstant() {
+        VerifyAuthLookupNode.OutcomeProvider lookup = new VerifyAuthLookupNode.OutcomeProvider();
+        VerifyAuthIdentifierNode.OutcomeProvider identifier = new VerifyAuthIdentifierNode.OutcomeProvider();
+
+        assertThat(lookup.getOutcomes(ENGLISH, json(object()))).isSameAs(lookup.getOutcomes(FRENCH, json(null)));
+        assertThat(identifier.getOutcomes(ENGLISH, json(object())))
+                .isSameAs(identifier.getOutcomes(FRENCH, json(null)));
+    }
+
+    private static JsonValue collectorAttributes(boolean resend, boolean cancel) {
+        return json(object(field("showResendButton", resend), field("showCancelButton", cancel)));
+    }
+
+    private static List<String> ids(List<Outcome> outcomes) {
+        return outcomes.stream().map(outcome -> outcome.id).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2019-2020 ForgeRock AS. All Rights Reserved
+ *
+ * Use of this code requires a commercial software license with ForgeRock AS.
+ * or with one of its affiliates. All use shall be exclusively subject
+ * to such license between the licensee and ForgeRock AS.
+ */
+
+package com.twilio.verify;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.twilio.verify.VerifyAuthSenderNode.Module;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class PendingVerificationStoreTest {
+
+    private static final String SERVICE = "VA123";
+    private static final String PHONE = "+11234567890";
+
+    private final AtomicLong now = new AtomicLong();
+
+    private PendingVerificationStore store;
+
+    @BeforeMethod
+    public void setUp() {
+        now.set(0);
+        store = new PendingVerificationStore(now::get);
+    }
+
+    @Test
+    public void testPendingWithinWindowOnSameChannel() {
+        store.record(SERVICE, PHONE, Module.SMS, 1000);
+
+        now.set(500);
+
+        assertThat(store.isPending(SERVICE, PHONE, Module.SMS, 1000)).isTrue();
+        assertThat(store.isPending(SERVICE, PHONE, Module.CALL, 1000)).isFalse();
+        assertThat(store.isPending("VA456", PHONE, Module.SMS, 1000)).isFalse();
+
+        now.set(1000);
+
+        assertThat(store.isPending(SERVICE, PHONE, Module.SMS, 1000)).isFalse();
+    }
+
+    @Test
+    public void testRemoveEndsWindow() {
+        store.record(SERVICE, PHONE, Module.SMS, 1000);
+        store.remove(SERVICE, PHONE);
+
+        assertThat(store.isPending(SERVICE, PHONE, Module.SMS, 1000)).isFalse();
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIdentifierForgotten() {
+        store.setMaxEntries(2);
+        store.record(SERVICE, "+11234567891", Module.SMS, 1000);
+        store.record(SERVICE, "+11234567892", Module.SMS, 1000);
+        store.record(SERVICE, "+11234567893", Module.SMS, 1000);
+
+        assertThat(store.isPending(SERVICE, "+11234567891", Module.SMS, 1000)).isFalse();
+        assertThat(store.isPending(SERVICE, "+11234567893", Module.SMS, 1000)).isTrue();
+    }
+
+    @Test
+    public void testSharedStoreSeesSendsOfOtherServers() {
+        VerificationStore shared = new InMemoryVerificationStore(10);
+        PendingVerificationStore other = new PendingVerificationStore(now::get);
+        store.setStore(shared);
+        other.setStore(shared);
+
+        store.record(SERVICE, PHONE, Module.SMS, 1000);
+
+        assertThat(other.isPending(SERVICE, PHONE, Module.SMS, 1000)).isTrue();
+        other.remove(SERVICE, PHONE);
+        assertThat(store.isPending(SERVICE, PHONE, Module.SMS, 1000)).isFalse();
+    }
+
+    @Test
+    public void testKeysHashTheIdentifier() {
+        String key = VerificationStore.key("p", SERVICE, PHONE);
+
+        assertThat(key).startsWith("twilio-p-" + SERVICE + "-").doesNotContain(PHONE.substring(1));
+        assertThat(key).isEqualTo(VerificationStore.key("p", SERVICE, PHONE))
+                       .isNotEqualTo(VerificationStore.key("p", "VA456", PHONE));
+    }
+}
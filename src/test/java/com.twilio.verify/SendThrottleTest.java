@@ -0,0 +1,137 @@
+/*
+ * Copyright 2019-2020 ForgeRock AS. All Rights Reserved
+ *
+ * Use of this code requires a commercial software license with ForgeRock AS.
+ * or with one of its affiliates. All use shall be exclusively subject
+ * to such license between the licensee and ForgeRock AS.
+ */
+
+package com.twilio.verify;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.twilio.verify.VerifyAuthSenderNode.Module;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class SendThrottleTest {
+
+    private static final String PHONE = "+11234567890";
+
+    private final AtomicLong now = new AtomicLong();
+
+    private SendThrottle throttle;
+
+    @BeforeMethod
+    public void setUp() {
+        now.set(TimeUnit.SECONDS.toNanos(1));
+        throttle = new SendThrottle(now::get);
+    }
+
+    @Test
+    public void testBurstThenRefill() {
+        assertThat(throttle.tryAcquire(PHONE, Module.SMS, 2, 1000)).isTrue();
+        assertThat(throttle.tryAcquire(PHONE, Module.SMS, 2, 1000)).isTrue();
+        assertThat(throttle.tryAcquire(PHONE, Module.SMS, 2, 1000)).isFalse();
+
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(1000));
+
+        assertThat(throttle.tryAcquire(PHONE, Module.SMS, 2, 1000)).isTrue();
+        assertThat(throttle.tryAcquire(PHONE, Module.SMS, 2, 1000)).isFalse();
+    }
+
+    @Test
+    public void testSharedStoreThrottlesAcrossServers() {
+        AtomicLong wallClock = new AtomicLong(1_600_000_000_000L);
+        VerificationStore shared = new InMemoryVerificationStore(10);
+        SendThrottle first = new SendThrottle(now::get, wallClock::get);
+        SendThrottle second = new SendThrottle(now::get, wallClock::get);
+        first.setStore(shared);
+        second.setStore(shared);
+
+        assertThat(first.tryAcquire(PHONE, Module.SMS, 2, 1000)).isTrue();
+        assertThat(second.tryAcquire(PHONE, Module.SMS, 2, 1000)).isTrue();
+        assertThat(first.tryAcquire(PHONE, Module.SMS, 2, 1000)).isFalse();
+        assertThat(second.tryAcquire(PHONE, Module.CALL, 2, 1000)).isTrue();
+
+        wallClock.addAndGet(1000);
+
+        assertThat(second.tryAcquire(PHONE, Module.SMS, 2, 1000)).isTrue();
+        assertThat(first.tryAcquire(PHONE, Module.SMS, 2, 1000)).isFalse();
+    }
+
+    @Test
+    public void testReleasedTokenCanBeTakenAgain() {
+        assertThat(throttle.tryAcquire(PHONE, Module.SMS, 2, 1000)).isTrue();
+        assertThat(throttle.tryAcquire(PHONE, Module.SMS, 2, 1000)).isTrue();
+        throttle.release(PHONE, Module.SMS, 2, 1000);
+
+        assertThat(throttle.tryAcquire(PHONE, Module.SMS, 2, 1000)).isTrue();
+        assertThat(throttle.tryAcquire(PHONE, Module.SMS, 2, 1000)).isFalse();
+    }
+
+    @Test
+    public void testReleasedTokenIsSharedAcrossServers() {
+        AtomicLong wallClock = new AtomicLong(1_600_000_000_000L);
+        VerificationStore shared = new InMemoryVerificationStore(10);
+        SendThrottle first = new SendThrottle(now::get, wallClock::get);
+        SendThrottle second = new SendThrottle(now::get, wallClock::get);
+        first.setStore(shared);
+        second.setStore(shared);
+
+        assertThat(first.tryAcquire(PHONE, Module.SMS, 1, 1000)).isTrue();
+        first.release(PHONE, Module.SMS, 1, 1000);
+
+        assertThat(second.tryAcquire(PHONE, Module.SMS, 1, 1000)).isTrue();
+        assertThat(first.tryAcquire(PHONE, Module.SMS, 1, 1000)).isFalse();
+    }
+
+    @Test
+    public void testChannelsAndIdentifiersAreIndependent() {
+        assertThat(throttle.tryAcquire(PHONE, Module.SMS, 1, 1000)).isTrue();
+        assertThat(throttle.tryAcquire(PHONE, Module.SMS, 1, 1000)).isFalse();
+
+        assertThat(throttle.tryAcquire(PHONE, Module.CALL, 1, 1000)).isTrue();
+        assertThat(throttle.tryAcquire("+11234567891", Module.SMS, 1, 1000)).isTrue();
+    }
+
+    @Test
+    public void testZeroBurstDisablesThrottle() {
+        for (int i = 0; i < 10; i++) {
+            assertThat(throttle.tryAcquire(PHONE, Module.SMS, 0, 1000)).isTrue();
+        }
+    }
+
+    @Test
+    public void testConcurrentSendsNeverExceedBurst() throws Exception {
+        AtomicInteger permitted = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                tasks.add(() -> {
+                    for (int j = 0; j < 1000; j++) {
+                        if (throttle.tryAcquire(PHONE, Module.SMS, 5, 60000)) {
+                            permitted.incrementAndGet();
+                        }
+                    }
+                    return null;
+                });
+            }
+            pool.invokeAll(tasks);
+        } finally {
+            pool.shutdown();
+        }
+
+        assertThat(permitted.get()).isEqualTo(5);
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2019-2020 ForgeRock AS. All Rights Reserved
+ *
+ * Use of this code requires a commercial software license with ForgeRock AS.
+ * or with one of its affiliates. All use shall be exclusively subject
+ * to such license between the licensee and ForgeRock AS.
+ */
+
+package com.twilio.verify;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.twilio.exception.ApiException;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TwilioCallGuardTest {
+
+    private static final String ACCOUNT = "AC123";
+
+    private final AtomicLong now = new AtomicLong();
+
+    private TwilioCallGuard guard;
+
+    @BeforeMethod
+    public void setUp() {
+        now.set(0);
+        guard = new TwilioCallGuard(now::get);
+        guard.configure(new TwilioVerifyService() {
+            @Override
+            public int circuitBreakerWindowSize() {
+                return 4;
+            }
+
+            @Override
+            public int circuitBreakerMinimumCalls() {
+                return 4;
+            }
+
+            @Override
+            public int circuitBreakerHalfOpenCalls() {
+                return 1;
+            }
+
+            @Override
+            public int maxConcurrentCalls() {
+                return 1;
+            }
+        });
+    }
+
+    @Test
+    public void testBreakerOpensOnServerErrorsAndClosesAfterProbe() {
+        for (int i = 0; i < 4; i++) {
+            fail(503);
+        }
+        assertThat(guard.isOpen(ACCOUNT, TwilioEndpoint.VERIFICATION)).isTrue();
+        assertThat(guard.isOpen(ACCOUNT, TwilioEndpoint.LOOKUP)).isFalse();
+
+        AtomicInteger calls = new AtomicInteger();
+        assertThatThrownBy(() -> guard.call(ACCOUNT, TwilioEndpoint.VERIFICATION, calls::incrementAndGet))
+                .isInstanceOf(TwilioUnavailableException.class);
+        assertThat(calls.get()).isZero();
+
+        now.set(TwilioVerifyService.DEFAULTS.circuitBreakerOpenDuration());
+        assertThat(guard.call(ACCOUNT, TwilioEndpoint.VERIFICATION, calls::incrementAndGet)).isEqualTo(1);
+        assertThat(guard.isOpen(ACCOUNT, TwilioEndpoint.VERIFICATION)).isFalse();
+    }
+
+    @Test
+    public void testClientErrorsDoNotOpenBreaker() {
+        for (int i = 0; i < 4; i++) {
+            fail(400);
+        }
+        assertThat(guard.isOpen(ACCOUNT, TwilioEndpoint.VERIFICATION)).isFalse();
+    }
+
+    @Test
+    public void testJourneyBudgetFailuresDoNotOpenBreaker() {
+        for (int i = 0; i < 4; i++) {
+            assertThatThrownBy(() -> guard.call(ACCOUNT, TwilioEndpoint.VERIFICATION, () -> {
+                throw new JourneyBudgetException("spent");
+            })).isInstanceOf(JourneyBudgetException.class);
+        }
+        assertThat(guard.isOpen(ACCOUNT, TwilioEndpoint.VERIFICATION)).isFalse();
+    }
+
+    @Test
+    public void testJourneyBudgetFailureOfProbeLetsNextProbeIn() {
+        for (int i = 0; i < 4; i++) {
+            fail(503);
+        }
+        now.set(TwilioVerifyService.DEFAULTS.circuitBreakerOpenDuration());
+
+        assertThatThrownBy(() -> guard.call(ACCOUNT, TwilioEndpoint.VERIFICATION, () -> {
+            throw new JourneyBudgetException("spent");
+        })).isInstanceOf(JourneyBudgetException.class);
+        assertThat(guard.call(ACCOUNT, TwilioEndpoint.VERIFICATION, () -> "probe")).isEqualTo("probe");
+        assertThat(guard.isOpen(ACCOUNT, TwilioEndpoint.VERIFICATION)).isFalse();
+    }
+
+    @Test
+    public void testBulkheadRefusesCallsOverLimit() {
+        guard.call(ACCOUNT, TwilioEndpoint.VERIFICATION, () -> {
+            assertThat(guard.getCallsInFlight()).isEqualTo(1);
+            assertThatThrownBy(() -> guard.call(ACCOUNT, TwilioEndpoint.LOOKUP, () -> null))
+                    .isInstanceOf(TwilioUnavailableException.class);
+            return null;
+        });
+        assertThat(guard.getCallsInFlight()).isZero();
+    }
+
+    private void fail(int status) {
+        assertThatThrownBy(() -> guard.call(ACCOUNT, TwilioEndpoint.VERIFICATION, () -> {
+            throw new ApiException("error", null, null, status, null);
+        })).isInstanceOf(ApiException.class);
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2019-2020 ForgeRock AS. All Rights Reserved
+ *
+ * Use of this code requires a commercial software license with ForgeRock AS.
+ * or with one of its affiliates. All use shall be exclusively subject
+ * to such license between the licensee and ForgeRock AS.
+ */
+
+package com.twilio.verify;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.twilio.exception.ApiConnectionException;
+import com.twilio.exception.ApiException;
+import org.slf4j.Logger;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TwilioErrorLogTest {
+
+    private static final String PREFIX = "[Test] ";
+
+    private final AtomicLong now = new AtomicLong();
+
+    private Logger logger;
+    private TwilioErrorLog errorLog;
+
+    @BeforeMethod
+    public void setUp() {
+        now.set(0);
+        logger = mock(Logger.class);
+        when(logger.getName()).thenReturn("test");
+        errorLog = new TwilioErrorLog(now::get);
+    }
+
+    @Test
+    public void testTwilioErrorCodesAreClassified() {
+        assertThat(TwilioError.classify(new ApiException("Invalid parameter `To`: +1555", 60200, null, 400, null)))
+                .isEqualTo(TwilioError.INVALID_NUMBER);
+        assertThat(TwilioError.classify(new ApiException("Invalid parameter `Channel`", 60200, null, 400, null)))
+                .isEqualTo(TwilioError.UNEXPECTED);
+        assertThat(TwilioError.classify(api(60200, 400))).isEqualTo(TwilioError.UNEXPECTED);
+        assertThat(TwilioError.classify(new InvalidPhoneNumberException("Phone number has fewer than 7 digits")))
+                .isEqualTo(TwilioError.INVALID_NUMBER);
+        assertThat(TwilioError.classify(new IllegalArgumentException("bad"))).isEqualTo(TwilioError.UNEXPECTED);
+        assertThat(TwilioError.classify(api(21614, 400))).isEqualTo(TwilioError.INVALID_NUMBER);
+        assertThat(TwilioError.classify(api(60203, 429))).isEqualTo(TwilioError.MAX_ATTEMPTS);
+        assertThat(TwilioError.classify(api(20429, 429))).isEqualTo(TwilioError.RATE_LIMITED);
+        assertThat(TwilioError.classify(api(20003, 401))).isEqualTo(TwilioError.AUTH_FAILURE);
+        assertThat(TwilioError.classify(api(20404, 404))).isEqualTo(TwilioError.NOT_FOUND);
+        assertThat(TwilioError.classify(api(null, 503))).isEqualTo(TwilioError.SERVICE_UNAVAILABLE);
+        assertThat(TwilioError.classify(api(null, 403))).isEqualTo(TwilioError.AUTH_FAILURE);
+        assertThat(TwilioError.classify(api(99999, 400))).isEqualTo(TwilioError.UNEXPECTED);
+    }
+
+    @Test
+    public void testOutagesAndWrappedErrorsAreClassified() {
+        assertThat(TwilioError.classify(new TwilioUnavailableException("Open")))
+                .isEqualTo(TwilioError.SERVICE_UNAVAILABLE);
+        assertThat(TwilioError.classify(new ApiConnectionException("Refused")))
+                .isEqualTo(TwilioError.SERVICE_UNAVAILABLE);
+        assertThat(TwilioError.classify(new TimeoutException())).isEqualTo(TwilioError.SERVICE_UNAVAILABLE);
+        assertThat(TwilioError.classify(new ExecutionException(api(60203, 429))))
+                .isEqualTo(TwilioError.MAX_ATTEMPTS);
+        assertThat(TwilioError.classify(new IllegalStateException())).isEqualTo(TwilioError.UNEXPECTED);
+    }
+
+    @Test
+    public void testSimilarErrorsAreSuppressedAndCounted() {
+        for (int i = 0; i < 5; i++) {
+            assertThat(errorLog.log(logger, PREFIX, api(20429, 429))).isEqualTo(TwilioError.RATE_LIMITED);
+        }
+        verify(logger).error(anyString(), eq(PREFIX), eq(TwilioError.RATE_LIMITED), eq("Too many requests"),
+                             eq(0));
+
+        now.addAndGet(TwilioVerifyService.DEFAULTS.errorLogInterval());
+        errorLog.log(logger, PREFIX, api(20429, 429));
+
+        verify(logger).error(anyString(), eq(PREFIX), eq(TwilioError.RATE_LIMITED), eq("Too many requests"),
+                             eq(4));
+    }
+
+    @Test
+    public void testDifferentErrorsAreLoggedSeparately() {
+        errorLog.log(logger, PREFIX, api(20429, 429));
+        errorLog.log(logger, PREFIX, api(60203, 429));
+        errorLog.log(logger, PREFIX, new TwilioUnavailableException("Open"));
+
+        verify(logger, times(3)).error(anyString(), any(), any(), any(), eq(0));
+    }
+
+    @Test
+    public void testStackTracesAreOnlyAttachedToUnexpectedErrors() {
+        IllegalStateException unexpected = new IllegalStateException("Boom");
+        errorLog.log(logger, PREFIX, unexpected);
+        errorLog.log(logger, PREFIX, api(20429, 429));
+
+        verify(logger).error(anyString(), eq(PREFIX), eq(TwilioError.UNEXPECTED), eq("Boom"), eq(0), eq(unexpected));
+        verify(logger, never()).error(anyString(), eq(PREFIX), eq(TwilioError.RATE_LIMITED), any(), any(), any());
+    }
+
+    private static ApiException api(Integer code, Integer status) {
+        return new ApiException("Too many requests", code, null, status, null);
+    }
+}
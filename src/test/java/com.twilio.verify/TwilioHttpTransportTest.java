@@ -0,0 +1,111 @@
+/*
+ * Copyright 2019-2020 ForgeRock AS. All Rights Reserved
+ *
+ * Use of this code requires a commercial software license with ForgeRock AS.
+ * or with one of its affiliates. All use shall be exclusively subject
+ * to such license between the licensee and ForgeRock AS.
+ */
+
+package com.twilio.verify;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+import com.twilio.http.HttpMethod;
+import com.twilio.http.Request;
+import com.twilio.http.Response;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+public class TwilioHttpTransportTest {
+
+    private HttpsServer server;
+
+    private SSLContext sslContext;
+
+    private TwilioHttpTransport transport;
+
+    private final Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream in = getClass().getResourceAsStream("/com/twilio/verify/localhost.p12")) {
+            keyStore.load(in, "changeit".toCharArray());
+        }
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, "changeit".toCharArray());
+        TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(keyStore);
+        sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(keyManagers.getKeyManagers(), trustManagers.getTrustManagers(), null);
+
+        server = HttpsServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setHttpsConfigurator(new HttpsConfigurator(sslContext));
+        server.createContext("/", exchange -> {
+            clientPorts.add(exchange.getRemoteAddress().getPort());
+            byte[] body = "{\"status\":\"pending\"}".getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(201, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+
+        transport = new TwilioHttpTransport();
+        transport.configure(new TwilioVerifyService() {
+            @Override
+            public int maxConnections() {
+                return 4;
+            }
+
+            @Override
+            public int maxConnectionsPerRoute() {
+                return 2;
+            }
+        }, sslContext);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        transport.shutdown();
+        server.stop(0);
+    }
+
+    @Test
+    public void testSequentialRequestsReuseOnePooledConnection() {
+        for (int i = 0; i < 5; i++) {
+            Response response = transport.makeRequest(request());
+            assertThat(response.getStatusCode()).isEqualTo(201);
+            assertThat(response.getContent()).contains("pending");
+        }
+
+        assertThat(clientPorts).hasSize(1);
+        assertThat(transport.getPoolStats().getAvailable()).isEqualTo(1);
+        assertThat(transport.getPoolStats().getLeased()).isZero();
+    }
+
+    @Test
+    public void testPoolIsBoundedByConfiguredLimits() {
+        assertThat(transport.getPoolStats().getMax()).isEqualTo(4);
+    }
+
+    private Request request() {
+        return new Request(HttpMethod.POST,
+                           "https://localhost:" + server.getAddress().getPort() + "/v2/Services/VA123/Verifications");
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2019-2020 ForgeRock AS. All Rights Reserved
+ *
+ * Use of this code requires a commercial software license with ForgeRock AS.
+ * or with one of its affiliates. All use shall be exclusively subject
+ * to such license between the licensee and ForgeRock AS.
+ */
+
+package com.twilio.verify;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Timer;
+import com.twilio.exception.ApiException;
+import org.forgerock.openam.auth.node.api.Action;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TwilioMetricsTest {
+
+    private final AtomicLong now = new AtomicLong();
+
+    private TwilioMetrics metrics;
+
+    @BeforeMethod
+    public void setUp() {
+        now.set(0);
+        metrics = new TwilioMetrics(now::get);
+    }
+
+    @Test
+    public void testCallsAreTimedByStatus() {
+        metrics.time("sender", TwilioEndpoint.VERIFICATION, "sms", () -> now.addAndGet(ms(120)));
+        assertThatThrownBy(() -> metrics.time("sender", TwilioEndpoint.VERIFICATION, "sms", () -> {
+            throw new ApiException("Too many requests", 20429, null, 429, null);
+        })).isInstanceOf(ApiException.class);
+        assertThatThrownBy(() -> metrics.time("sender", TwilioEndpoint.VERIFICATION, "sms", () -> {
+            throw new TwilioUnavailableException("Open");
+        })).isInstanceOf(TwilioUnavailableException.class);
+
+        Timer success = metrics.getTimer("sender", TwilioEndpoint.VERIFICATION, "sms", "success");
+        assertThat(success.getCount()).isEqualTo(1);
+        assertThat(success.getSnapshot().getMax()).isEqualTo(ms(120));
+        assertThat(metrics.getTimer("sender", TwilioEndpoint.VERIFICATION, "sms", "429").getCount()).isEqualTo(1);
+        assertThat(metrics.getTimer("sender", TwilioEndpoint.VERIFICATION, "sms", "unavailable").getCount())
+                .isEqualTo(1);
+        assertThat(metrics.getTimer("sender", TwilioEndpoint.VERIFICATION, "call", "success")).isNull();
+    }
+
+    @Test
+    public void testCallsAreInFlightUntilTheyReturn() {
+        metrics.time("lookup", TwilioEndpoint.LOOKUP, "carrier", () -> {
+            assertThat(metrics.getInFlight(TwilioEndpoint.LOOKUP)).isEqualTo(1);
+            assertThat(metrics.getInFlight(TwilioEndpoint.VERIFICATION)).isEqualTo(0);
+            return null;
+        });
+
+        assertThat(metrics.getInFlight(TwilioEndpoint.LOOKUP)).isEqualTo(0);
+    }
+
+    @Test
+    public void testCallsWithoutChannelAreNamedWithoutOne() {
+        metrics.time("collector", TwilioEndpoint.VERIFICATION_CHECK, null, () -> null);
+
+        assertThat(metrics.getTimer("collector", TwilioEndpoint.VERIFICATION_CHECK, null, "success").getCount())
+                .isEqualTo(1);
+        assertThat(metrics.getTimer("collector", TwilioEndpoint.VERIFICATION_CHECK, "none", "success")).isNull();
+    }
+
+    @Test
+    public void testOutcomesAreCountedButCallbacksAreNot() {
+        metrics.outcome("collector", Action.goTo("true").build());
+        metrics.outcome("collector", Action.goTo("true").build());
+        metrics.outcome("collector", Action.goTo("resend").build());
+        metrics.outcome("collector", Action.send().build());
+
+        assertThat(metrics.getOutcomeCount("collector", "true")).isEqualTo(2);
+        assertThat(metrics.getOutcomeCount("collector", "resend")).isEqualTo(1);
+        assertThat(metrics.getOutcomeCount("collector", "cancel")).isEqualTo(0);
+    }
+
+    @Test
+    public void testPublisherRegistersExistingAndNewMetrics() {
+        MetricRegistry registry = new MetricRegistry();
+        TwilioMetricsPublisher publisher = new TwilioMetricsPublisher(metrics);
+        metrics.outcome("lookup", Action.goTo("True").build());
+
+        publisher.start(registry);
+        metrics.time("lookup", TwilioEndpoint.LOOKUP, "carrier", () -> null);
+        metrics.outcome("lookup", Action.goTo("True").build());
+
+        assertThat(registry.getCounters().get("twilio.outcome.lookup.true").getCount()).isEqualTo(2);
+        assertThat(registry.getGauges().get("twilio.inflight.lookup").getValue()).isEqualTo(0);
+        assertThat(registry.getTimers()).containsOnlyKeys("twilio.call.lookup.lookup.carrier.success");
+
+        publisher.stop();
+        metrics.time("lookup", TwilioEndpoint.LOOKUP, "carrier", () -> null);
+        assertThat(registry.getMetrics()).isEmpty();
+    }
+
+    @Test
+    public void testPublisherOnlyUsesAnExistingSharedRegistry() {
+        TwilioMetricsPublisher publisher = new TwilioMetricsPublisher(metrics);
+
+        assertThat(publisher.start("twilio-test-missing")).isFalse();
+        assertThat(SharedMetricRegistries.names()).doesNotContain("twilio-test-missing");
+
+        MetricRegistry registry = SharedMetricRegistries.getOrCreate("twilio-test-monitoring");
+        try {
+            assertThat(publisher.start("twilio-test-monitoring")).isTrue();
+            assertThat(registry.getGauges()).containsKey("twilio.inflight.verification");
+            publisher.stop();
+        } finally {
+            SharedMetricRegistries.remove("twilio-test-monitoring");
+        }
+    }
+
+    private static long ms(long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+}
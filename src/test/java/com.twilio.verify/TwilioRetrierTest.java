@@ -0,0 +1,109 @@
+/*
+ * Copyright 2019-2020 ForgeRock AS. All Rights Reserved
+ *
+ * Use of this code requires a commercial software license with ForgeRock AS.
+ * or with one of its affiliates. All use shall be exclusively subject
+ * to such license between the licensee and ForgeRock AS.
+ */
+
+package com.twilio.verify;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.twilio.exception.ApiConnectionException;
+import com.twilio.exception.ApiException;
+import org.testng.annotations.Test;
+
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TwilioRetrierTest {
+
+    private final TwilioRetrier retrier = new TwilioRetrier();
+
+    @Test
+    public void testRetriesThrottledCalls() {
+        AtomicInteger calls = new AtomicInteger();
+
+        String result = retrier.call(TwilioRetrier.Policy.nonIdempotent(3, 1, 10, 1000), () -> {
+            if (calls.incrementAndGet() < 3) {
+                throw new ApiException("Too many requests", 20429, null, 429, null);
+            }
+            return "approved";
+        });
+
+        assertThat(result).isEqualTo("approved");
+        assertThat(calls.get()).isEqualTo(3);
+    }
+
+    @Test
+    public void testDoesNotRetryClientErrors() {
+        AtomicInteger calls = new AtomicInteger();
+
+        assertThatThrownBy(() -> retrier.call(TwilioRetrier.Policy.nonIdempotent(3, 1, 10, 1000), () -> {
+            calls.incrementAndGet();
+            throw new ApiException("not found", null, null, 404, null);
+        })).isInstanceOf(ApiException.class);
+
+        assertThat(calls.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void testDoesNotRetryErrorsThatCannotSucceed() {
+        AtomicInteger calls = new AtomicInteger();
+
+        assertThatThrownBy(() -> retrier.call(TwilioRetrier.Policy.nonIdempotent(3, 1, 10, 1000), () -> {
+            calls.incrementAndGet();
+            throw new ApiException("Max check attempts reached", 60202, null, 429, null);
+        })).isInstanceOf(ApiException.class);
+        assertThatThrownBy(() -> retrier.call(TwilioRetrier.Policy.nonIdempotent(3, 1, 10, 1000), () -> {
+            calls.incrementAndGet();
+            throw new TwilioUnavailableException("Circuit breaker is open");
+        })).isInstanceOf(TwilioUnavailableException.class);
+
+        assertThat(calls.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void testStopsAtDeadline() {
+        AtomicInteger calls = new AtomicInteger();
+
+        assertThatThrownBy(() -> retrier.call(TwilioRetrier.Policy.nonIdempotent(100, 50, 50, 0), () -> {
+            calls.incrementAndGet();
+            throw new ApiConnectionException("refused", new ConnectException("Connection refused"));
+        })).isInstanceOf(ApiConnectionException.class);
+
+        assertThat(calls.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void testNonIdempotentCallsAreOnlyRetriedWhenUnprocessed() {
+        AtomicInteger calls = new AtomicInteger();
+        TwilioRetrier.Policy policy = TwilioRetrier.Policy.nonIdempotent(3, 1, 10, 1000);
+
+        assertThatThrownBy(() -> retrier.call(policy, () -> {
+            calls.incrementAndGet();
+            throw new ApiException("unavailable", null, null, 503, null);
+        })).isInstanceOf(ApiException.class);
+        assertThatThrownBy(() -> retrier.call(policy, () -> {
+            calls.incrementAndGet();
+            throw new ApiException("Read timed out", new SocketTimeoutException("Read timed out"));
+        })).isInstanceOf(ApiException.class);
+        assertThat(calls.getAndSet(0)).isEqualTo(2);
+
+        String result = retrier.call(policy, () -> {
+            int call = calls.incrementAndGet();
+            if (call == 1) {
+                throw new ApiException("Too many requests", 20429, null, 429, null);
+            }
+            if (call == 2) {
+                throw new ApiException("Connection refused", new ConnectException("Connection refused"));
+            }
+            return "approved";
+        });
+        assertThat(result).isEqualTo("approved");
+        assertThat(calls.get()).isEqualTo(3);
+    }
+}
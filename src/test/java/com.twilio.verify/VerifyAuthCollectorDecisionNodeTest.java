@@ -27,7 +27,11 @@ import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.mock;
+import static java.util.Collections.singletonList;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 import org.forgerock.json.JsonValue;
@@ -43,6 +47,7 @@ import org.forgerock.openam.auth.node.api.ExternalRequestContext;
 import org.forgerock.openam.auth.node.api.TreeContext;
 import org.forgerock.openam.core.realms.Realm;
 import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.ConfirmationCallback;
 import org.mockito.Mock;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
@@ -51,6 +56,7 @@ import java.util.ArrayList;
 import com.twilio.verify.VerifyAuthSenderNode.Module;
 import com.twilio.rest.verify.v2.service.Verification;
 import com.twilio.exception.ApiException;
+import com.twilio.http.TwilioRestClient;
 public class VerifyAuthCollectorDecisionNodeTest {
 
     @Mock
@@ -59,6 +65,21 @@ public class VerifyAuthCollectorDecisionNodeTest {
     @Mock
     private Realm realm;
 
+    @Mock
+    private TwilioClientRegistry clientRegistry;
+
+    @Mock
+    private VerificationDispatcher dispatcher;
+
+    @Mock
+    private TwilioCallGuard callGuard;
+
+    @Mock
+    private TwilioRetrier retrier;
+
+    @Mock
+    private PendingVerificationStore pendingStore;
+
     private TreeContext context;
 
     private VerifyAuthCollectorDecisionNode node;
@@ -68,7 +89,8 @@ public class VerifyAuthCollectorDecisionNodeTest {
        node = null;
        initMocks(this);
        when(config.identifierSharedState()).thenReturn("userIdentifier");
-       node = new VerifyAuthCollectorDecisionNode(config);
+       node = new VerifyAuthCollectorDecisionNode(config, clientRegistry, dispatcher, callGuard, retrier, pendingStore,
+                                                  new TwilioMetrics(), new TwilioErrorLog(), new JourneyDeadline());
    }
 
     @Test
@@ -85,6 +107,128 @@ public class VerifyAuthCollectorDecisionNodeTest {
       }};
     }
 
+    @Test
+    public void testMalformedCodeCountsAsFailedAttemptWithoutCallingTwilio() {
+      when(config.numericCode()).thenReturn(true);
+      when(config.codeLength()).thenReturn(6);
+      when(config.maxFailedAttempts()).thenReturn(2);
+      NameCallback codeCallback = new NameCallback("code");
+      codeCallback.setName("12a456");
+      JsonValue sharedState = json(object(field("userIdentifier", "+18457412693")));
+
+      Action first = node.process(new TreeContext(sharedState, new Builder().build(), singletonList(codeCallback),
+                                                  Optional.empty()));
+      assertThat(first.outcome).isEqualTo("false");
+      assertThat(sharedState.get(VerifyAuthCollectorDecisionNode.FAILED_ATTEMPTS).asInteger()).isEqualTo(1);
+
+      codeCallback.setName("12345");
+      Action second = node.process(new TreeContext(sharedState, new Builder().build(),
+                                                   singletonList(codeCallback), Optional.empty()));
+      assertThat(second.outcome).isEqualTo("locked");
+
+      codeCallback.setName(" 123 456 ");
+      Action third = node.process(new TreeContext(sharedState, new Builder().build(),
+                                                  singletonList(codeCallback), Optional.empty()));
+      assertThat(third.outcome).isEqualTo("locked");
+      verifyNoInteractions(retrier, callGuard, clientRegistry);
+    }
+
+    @Test
+    public void testTwilioErrorTakesItsOwnOutcomeWhenEnabled() {
+      when(config.errorOutcomes()).thenReturn(true);
+      when(clientRegistry.getClient("AC123")).thenReturn(Optional.of(mock(TwilioRestClient.class)));
+      when(retrier.call(any(), any())).thenThrow(new ApiException("Max check attempts reached", 60202, null, 429,
+                                                                  null));
+      NameCallback codeCallback = new NameCallback("code");
+      codeCallback.setName("123456");
+      JsonValue sharedState = json(object(field("userIdentifier", "+18457412693"),
+                                          field(VerifyAuthSenderNode.ACCOUNT_SID, "AC123"),
+                                          field(VerifyAuthSenderNode.SERVICE_SID, "VA123")));
+
+      Action action = node.process(new TreeContext(sharedState, new Builder().build(), singletonList(codeCallback),
+                                                   Optional.empty()));
+
+      assertThat(action.outcome).isEqualTo("maxAttempts");
+      assertThat(sharedState.get(TwilioError.STATE_KEY).asString()).isEqualTo("MAX_ATTEMPTS");
+      assertThat(sharedState.isDefined("Exception")).isFalse();
+    }
+
+    @Test
+    public void testCodeIsCheckedWithTheCredentialsOfTheNode() {
+      char[] token = "token".toCharArray();
+      when(config.accountSID()).thenReturn("AC999");
+      when(config.authToken()).thenReturn(token);
+      when(clientRegistry.getClient("AC999", token)).thenReturn(mock(TwilioRestClient.class));
+      when(retrier.call(any(), any())).thenReturn(null);
+      NameCallback codeCallback = new NameCallback("code");
+      codeCallback.setName("123456");
+      JsonValue sharedState = json(object(field("userIdentifier", "+18457412693"),
+                                          field(VerifyAuthSenderNode.ACCOUNT_SID, "AC123"),
+                                          field(VerifyAuthSenderNode.SERVICE_SID, "VA123")));
+
+      node.process(new TreeContext(sharedState, new Builder().build(), singletonList(codeCallback), Optional.empty()));
+
+      verify(clientRegistry).getClient("AC999", token);
+      verify(clientRegistry, never()).getClient("AC123");
+    }
+
+    @Test
+    public void testResendWithoutSenderStateSkipsThePendingStore() {
+      when(config.showResendButton()).thenReturn(true);
+      ConfirmationCallback resend = new ConfirmationCallback(ConfirmationCallback.INFORMATION,
+                                                             new String[] {"next", "resend"}, 0);
+      resend.setSelectedIndex(1);
+
+      Action action = node.process(new TreeContext(json(object()), new Builder().build(), singletonList(resend),
+                                                   Optional.empty()));
+
+      assertThat(action.outcome).isEqualTo("resend");
+      verifyNoInteractions(pendingStore);
+    }
+
+    @Test
+    public void testResendOnlyForgetsSendsRecordedForReuse() {
+      when(config.showResendButton()).thenReturn(true);
+      JsonValue sharedState = json(object(field("userIdentifier", "+18457412693"),
+                                          field(VerifyAuthSenderNode.SERVICE_SID, "VA123")));
+
+      assertThat(node.process(new TreeContext(sharedState, new Builder().build(), singletonList(resend()),
+                                              Optional.empty())).outcome).isEqualTo("resend");
+      verifyNoInteractions(pendingStore);
+
+      sharedState.put(VerifyAuthSenderNode.REUSABLE, true);
+      assertThat(node.process(new TreeContext(sharedState, new Builder().build(), singletonList(resend()),
+                                              Optional.empty())).outcome).isEqualTo("resend");
+      verify(pendingStore).remove("VA123", "+18457412693");
+    }
+
+    private static ConfirmationCallback resend() {
+      ConfirmationCallback resend = new ConfirmationCallback(ConfirmationCallback.INFORMATION,
+                                                             new String[] {"next", "resend"}, 0);
+      resend.setSelectedIndex(1);
+      return resend;
+    }
+
+    @Test
+    public void testCodePromptIsReusedButCallbacksAreNot() {
+      when(config.hideCode()).thenReturn(true);
+      when(config.showResendButton()).thenReturn(true);
+      when(config.nextButtonText()).thenReturn("next");
+      when(config.resendButtonText()).thenReturn("resend");
+      node = new VerifyAuthCollectorDecisionNode(config, clientRegistry, dispatcher, callGuard, retrier, pendingStore,
+                                                  new TwilioMetrics(), new TwilioErrorLog(), new JourneyDeadline());
+      JsonValue sharedState = json(object(field("userIdentifier", "+18457412693")));
+
+      Action first = node.process(getContext(sharedState));
+      Action second = node.process(getContext(sharedState));
+
+      assertThat(first.callbacks).hasSize(3);
+      assertThat(first.callbacks.get(0)).isSameAs(second.callbacks.get(0));
+      assertThat(first.callbacks.get(1)).isInstanceOf(PasswordCallback.class).isNotSameAs(second.callbacks.get(1));
+      assertThat(first.callbacks.get(2)).isNotSameAs(second.callbacks.get(2));
+      assertThat(((ConfirmationCallback) first.callbacks.get(2)).getOptions()).containsExactly("next", "resend");
+    }
+
     private TreeContext getContext() {
         return getContext(json(object()), json(object()));
     }
@@ -28,6 +28,7 @@ import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 import org.forgerock.json.JsonValue;
@@ -59,6 +60,21 @@ public class VerifyAuthSenderNodeTest {
     @Mock
     private Realm realm;
 
+    @Mock
+    private TwilioClientRegistry clientRegistry;
+
+    @Mock
+    private VerificationDispatcher dispatcher;
+
+    @Mock
+    private TwilioCallGuard callGuard;
+
+    @Mock
+    private SendThrottle sendThrottle;
+
+    @Mock
+    private PendingVerificationStore pendingStore;
+
     private TreeContext context;
 
     private VerifyAuthSenderNode node;
@@ -79,7 +95,8 @@ public class VerifyAuthSenderNodeTest {
        when(config.channel()).thenReturn(Module.SMS);
        when(config.identifierSharedState()).thenReturn("userIdentifier");
 
-       node = new VerifyAuthSenderNode(config);
+       node = new VerifyAuthSenderNode(config, clientRegistry, dispatcher, callGuard, sendThrottle, pendingStore,
+                                       new TwilioMetrics(), new TwilioErrorLog(), new JourneyDeadline());
    }
 
     @Test
@@ -99,6 +116,32 @@ public class VerifyAuthSenderNodeTest {
 
     }
 
+    @Test
+    public void testRefusedSendDoesNotUseAThrottleToken() {
+      when(callGuard.isOpen("accountSID", TwilioEndpoint.VERIFICATION)).thenReturn(true, false);
+      JsonValue sharedState = json(object(field("userIdentifier", "+11234567890")));
+
+      Action open = node.process(getContext(sharedState));
+      Action spent = node.process(getContext(json(object(field("userIdentifier", "+11234567890"),
+                                                         field(JourneyDeadline.STATE_KEY, 0L)))));
+
+      assertThat(open.outcome).isEqualTo("error");
+      assertThat(spent.outcome).isEqualTo("error");
+      verifyNoInteractions(sendThrottle);
+    }
+
+    @Test
+    public void testRejectedNumberTakesInvalidNumberOutcome() {
+      when(config.errorOutcomes()).thenReturn(true);
+      JsonValue sharedState = json(object(field("userIdentifier", "845-741-ABCD")));
+
+      Action action = node.process(getContext(sharedState));
+
+      assertThat(action.outcome).isEqualTo("invalidNumber");
+      assertThat(sharedState.get(TwilioError.STATE_KEY).asString()).isEqualTo(TwilioError.INVALID_NUMBER.name());
+      verifyNoInteractions(clientRegistry, sendThrottle);
+    }
+
     private TreeContext getContext() {
         return getContext(json(object()), json(object()));
     }
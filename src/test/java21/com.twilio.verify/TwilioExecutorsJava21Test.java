@@ -0,0 +1,102 @@
+/*
+ * Copyright 2019-2020 ForgeRock AS. All Rights Reserved
+ *
+ * Use of this code requires a commercial software license with ForgeRock AS.
+ * or with one of its affiliates. All use shall be exclusively subject
+ * to such license between the licensee and ForgeRock AS.
+ */
+
+package com.twilio.verify;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs against the classes in META-INF/versions/21 of the multi-release jar.
+ */
+public class TwilioExecutorsJava21Test {
+
+    private ExecutorService executor;
+
+    @BeforeMethod
+    public void setUp() {
+        executor = TwilioExecutors.newExecutor("test-", 2, 1);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testCallsRunOnVirtualThreads() throws Exception {
+        Thread thread = CompletableFuture.supplyAsync(Thread::currentThread, executor).get(5, TimeUnit.SECONDS);
+
+        assertThat(TwilioExecutors.isVirtual()).isTrue();
+        assertThat(thread.isVirtual()).isTrue();
+        assertThat(thread.getName()).startsWith("test-");
+    }
+
+    @Test
+    public void testRunningCallsAreBoundedAndExcessIsRejected() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch finished = new CountDownLatch(3);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        Runnable call = () -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                running.decrementAndGet();
+                finished.countDown();
+            }
+        };
+        for (int i = 0; i < 3; i++) {
+            executor.execute(call);
+        }
+
+        assertThatThrownBy(() -> executor.execute(call)).isInstanceOf(RejectedExecutionException.class);
+        release.countDown();
+        assertThat(finished.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(maxRunning.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void testQueuedCallsRunEvenIfInterruptedWhileWaiting() throws Exception {
+        CountDownLatch started = new CountDownLatch(2);
+        CountDownLatch release = new CountDownLatch(1);
+        Runnable call = () -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        executor.execute(call);
+        executor.execute(call);
+        assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+        CompletableFuture<Boolean> queued = CompletableFuture.supplyAsync(() -> Thread.currentThread().isInterrupted(),
+                                                                          executor);
+
+        // Interrupts every thread of the pool, including the one waiting for a running permit.
+        executor.shutdownNow();
+        release.countDown();
+
+        assertThat(queued.get(5, TimeUnit.SECONDS)).isTrue();
+    }
+}